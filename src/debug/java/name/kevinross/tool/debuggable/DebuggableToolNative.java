@@ -1,5 +1,7 @@
 package name.kevinross.tool.debuggable;
 
+import java.lang.reflect.Method;
+
 import name.kevinross.tool.ReflectionUtil;
 import name.kevinross.tool.nativehelpers.NativeToolHelpers;
 
@@ -14,6 +16,7 @@ import name.kevinross.tool.nativehelpers.NativeToolHelpers;
  */
 public class DebuggableToolNative {
     private static boolean canDebug = false;
+    private static volatile Method isDebuggerConnected = null;
     static {
         loadLibraries();
     }
@@ -47,6 +50,15 @@ public class DebuggableToolNative {
             }
         }
     }
+    public static void StopJdwp() {
+        if (canDebug) {
+            try {
+                StopJdwpInternal();
+            } catch (UnsatisfiedLinkError e) {
+                e.printStackTrace();
+            }
+        }
+    }
     public static void SetJdwpAllowed(boolean allowed) {
         if (canDebug) {
             try {
@@ -65,8 +77,25 @@ public class DebuggableToolNative {
             }
         }
     }
+    /**
+     * fork(2) the current process. The caller is responsible for making the runtime safe to fork
+     * (stopping the VM's daemon threads) and for fixing it up on both sides afterwards.
+     * @return child pid in the parent, 0 in the child, -1 if forking isn't available
+     */
+    public static int Fork() {
+        if (canDebug) {
+            try {
+                return ForkInternal();
+            } catch (UnsatisfiedLinkError e) {
+                e.printStackTrace();
+            }
+        }
+        return -1;
+    }
     private static native long getGRegistryStateInternal();
+    private static native int ForkInternal();
     private static native void StartJdwpInternal();
+    private static native void StopJdwpInternal();
     private static native void SetJdwpAllowedInternal(boolean allowed);
     private static native void ConfigureJdwpInternal();
     public static void StartDebugger() {
@@ -74,22 +103,43 @@ public class DebuggableToolNative {
             return;
         }
         if (IsDebuggerConnected()) {
-            System.out.println("debugger already connected");
+            System.err.println("debugger already connected");
             return;
         }
         // in the event that isDebuggerConnected fails: all of this machinery will have already been created
         // and an assert will catch that, killing the process. Make sure the current gRegistry is 0 (aka: nullptr)
         // otherwise bail out
         if (getGRegistryState() != 0) {
-            System.out.println("registry already created");
+            System.err.println("registry already created");
             return;
         }
         SetJdwpAllowed(true);
         ConfigureJdwp();
         StartJdwp();
     }
+    /**
+     * Tear down the JDWP state StartDebugger() set up, dropping any attached debugger. The
+     * debugger can be started again afterwards.
+     */
+    public static void StopDebugger() {
+        if (!canDebug) {
+            return;
+        }
+        if (getGRegistryState() == 0) {
+            System.err.println("debugger not started");
+            return;
+        }
+        StopJdwp();
+    }
     public static boolean IsDebuggerConnected() {
-        Class vmDebug = ReflectionUtil.getClassByName(ClassLoader.getSystemClassLoader(), "dalvik.system.VMDebug");
-        return ReflectionUtil.invokes().on(vmDebug).name("isDebuggerConnected").swallow().<Boolean>invoke();
+        if (isDebuggerConnected == null) {
+            Class vmDebug = ReflectionUtil.getClassByName(ClassLoader.getSystemClassLoader(), "dalvik.system.VMDebug");
+            try {
+                isDebuggerConnected = vmDebug.getDeclaredMethod("isDebuggerConnected");
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return ReflectionUtil.invokes().method(isDebuggerConnected).swallow().<Boolean>invoke();
     }
 }
@@ -5,6 +5,7 @@
 #include <jni.h>
 #include <string>
 #include <stdint.h>
+#include <unistd.h>
 #include <iostream>
 #include <debugger.h>
 #include <jdwp/jdwp.h>
@@ -29,6 +30,10 @@ void Java_name_kevinross_tool_debuggable_DebuggableToolNative_ConfigureJdwpInter
     art::Dbg::ConfigureJdwp(opts);
 }
 
+jint Java_name_kevinross_tool_debuggable_DebuggableToolNative_ForkInternal(JNIEnv *jni, jclass self) {
+    return fork();
+}
+
 void Java_name_kevinross_tool_debuggable_DebuggableToolNative_SetJdwpAllowedInternal(JNIEnv *jni,
                                                                              jclass self) {
     art::Dbg::SetJdwpAllowed(true);
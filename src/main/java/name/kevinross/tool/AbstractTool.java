@@ -4,11 +4,35 @@ import android.app.ActivityThread;
 import android.content.Context;
 import android.os.Debug;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
+import name.kevinross.tool.debuggable.DebuggableTool;
 import name.kevinross.tool.debuggable.DebuggableToolHelpers;
+import name.kevinross.tool.debuggable.LaunchOptions;
+import name.kevinross.tool.debuggable.ResourceUsage;
+import name.kevinross.tool.debuggable.SchedulingHints;
+import name.kevinross.tool.debuggable.SuUnavailableException;
+import name.kevinross.tool.debuggable.ToolOutput;
+import name.kevinross.tool.debuggable.ToolResult;
+import name.kevinross.tool.debuggable.ToolResultCache;
 
 /**
  * Abstract class that facilitates debugging of non-android-app java code. Extend this and
@@ -26,10 +50,49 @@ import name.kevinross.tool.debuggable.DebuggableToolHelpers;
  *
  *      new YourTool().setWaitForDebugger(true).runTool("hello", "world");
  *
+ * Inputs too large for the command line are passed as a payload instead of arguments and read
+ * tool-side with #getInput() or #getInputBuffer():
+ *
+ *      new YourTool().setInput(new File("/sdcard/packages.json")).runTool();
+ *
  */
 public abstract class AbstractTool {
+    // startup plus slack on top of timeout and grace before the caller kills a direct launch itself
+    private static final long TIMEOUT_BACKSTOP_MILLIS = 10000;
+    // weak keys: classes of a replaced ReloadableToolLoader version must stay collectable
+    private static final Map<Class<?>, OptionParser> argParsers = Collections.synchronizedMap(new WeakHashMap<Class<?>, OptionParser>());
+
     private boolean willWaitForDebugger = false;
+    private boolean willLaunchDirectly = false;
+    private String forkServerSocket = null;
+    private String debugControlSocket = null;
+    private LaunchOptions launchOptions = null;
+    private SchedulingHints schedulingHints = null;
+    private ToolScheduler launchQueue = null;
+    private ToolScheduler.Priority launchPriority = ToolScheduler.Priority.NORMAL;
+    private String launchCaller = null;
+    private long timeoutMillis = 0;
+    private long graceMillis = DebuggableTool.DEFAULT_GRACE_MILLIS;
+    private final CancellationToken cancellation = new CancellationToken();
+    private int outputBufferBytes = 0;
+    private String outputFlush = null;
+    private boolean outputAsync = false;
+    private long compressionThreshold = 0;
+    private String profileTracePath = null;
+    private int profileIntervalUs = DebuggableTool.DEFAULT_PROFILE_INTERVAL_US;
+    private int profileBufferBytes = DebuggableTool.DEFAULT_PROFILE_BUFFER_BYTES;
+    private String heapDumpOnExitPath = null;
+    private String heapDumpOnOomPath = null;
+    private String allocationSummaryPath = null;
+    private long allocationWindowMillis = 0;
+    private volatile Map<String, String> lastReports = Collections.emptyMap();
+    private volatile Integer lastExitCode = null;
+    private ToolResultCache resultCache = null;
+    private List<File> cacheInputs = Collections.emptyList();
     private String[] args = new String[]{};
+    private File inputFile = null;
+    private InputStream inputStream = null;
+    private ByteBuffer inputBuffer = null;
     private ActivityThread thisActivityThread = null;
     private Context thisContext = null;
     protected OptionSet parsedArgs = null;
@@ -57,8 +120,249 @@ public abstract class AbstractTool {
 
     }
 
-    private String getCommandLine(String... args) {
-        return DebuggableToolHelpers.getCommandLineForMainClass(this.getClass(), willWaitForDebugger, args);
+    private String getCommandLine(File input, String... args) {
+        String commandLine = DebuggableToolHelpers.getCommandLineForMainClass(this.getClass().getCanonicalName(), willWaitForDebugger, input, getLauncherOptions(), launchOptions, args);
+        return schedulingHints == null ? commandLine : schedulingHints.wrap(commandLine);
+    }
+
+    private List<String> getArgv(String... args) {
+        List<String> options = getLauncherOptions();
+        if (compressionThreshold > 0) {
+            // only the direct and fork server paths decode, the shell hands back lines
+            options.add("-z");
+            options.add(Long.toString(compressionThreshold));
+        }
+        List<String> argv = DebuggableToolHelpers.getArgvForMainClass(this.getClass().getCanonicalName(), willWaitForDebugger, inputFile, options, launchOptions, args);
+        return schedulingHints == null ? argv : schedulingHints.wrap(argv);
+    }
+
+    /**
+     * DebuggableTool options for the builder settings that don't have their own helper parameter
+     */
+    private List<String> getLauncherOptions() {
+        List<String> options = new ArrayList<>();
+        // every launch path here takes the report lines out of the output
+        options.add("-U");
+        if (debugControlSocket != null) {
+            options.add("-C");
+            options.add(debugControlSocket);
+        }
+        if (profileTracePath != null) {
+            options.add("-P");
+            options.add(profileTracePath);
+            options.add("-S");
+            options.add(Integer.toString(profileIntervalUs));
+            options.add("-B");
+            options.add(Integer.toString(profileBufferBytes));
+        }
+        if (heapDumpOnExitPath != null) {
+            options.add("-H");
+            options.add(heapDumpOnExitPath);
+        }
+        if (heapDumpOnOomPath != null) {
+            options.add("-O");
+            options.add(heapDumpOnOomPath);
+        }
+        if (timeoutMillis > 0) {
+            options.add("-T");
+            options.add(Long.toString(timeoutMillis));
+            options.add("-G");
+            options.add(Long.toString(graceMillis));
+        }
+        if (outputBufferBytes > 0) {
+            options.add("-b");
+            options.add(Integer.toString(outputBufferBytes));
+            options.add("-f");
+            options.add(outputFlush);
+            if (outputAsync) {
+                options.add("-a");
+            }
+        }
+        if (allocationSummaryPath != null) {
+            options.add("-A");
+            options.add(allocationSummaryPath);
+            options.add("-W");
+            options.add(Long.toString(allocationWindowMillis));
+        }
+        return options;
+    }
+
+    private static String getCodePath(Context ctx) {
+        if (ctx == null) {
+            return ActivityThread.currentActivityThread().getApplication().getPackageCodePath();
+        }
+        return ctx.getPackageCodePath();
+    }
+
+    /**
+     * Every runTool(*) and runService(*) overload ends up here
+     * @param service a #runService run, which doesn't queue for a permit
+     */
+    private List<String> launch(boolean su, int uid, Context ctx, boolean service, String... args) {
+        String cacheKey = null;
+        if (resultCache != null && inputStream == null && !isDiagnosing()) {
+            List<File> inputs = new ArrayList<>(cacheInputs);
+            inputs.add(inputFile);
+            cacheKey = ToolResultCache.keyFor(getClass().getName(), getCacheLaunch(su, uid), args, inputs.toArray(new File[inputs.size()]));
+            ToolResult cached = resultCache.get(cacheKey);
+            if (cached != null) {
+                lastReports = cached.getReports();
+                return new ArrayList<>(cached.getOutput());
+            }
+        }
+        ToolResult result = launchQueued(su, uid, ctx, service, args);
+        if (result == null) {
+            return null;
+        }
+        if (cacheKey != null) {
+            // this run's own exit code and reports, concurrent runs of this instance share the fields
+            resultCache.put(cacheKey, new ToolResult(new ArrayList<>(result.getOutput()), result.getExitCode(), 0, -1, 0, result.getReports()));
+        }
+        return result.getOutput();
+    }
+
+    /**
+     * Runs that exist for their side effects on the device (traces, heap dumps) or for someone to
+     * step through are never answered from the result cache
+     */
+    private boolean isDiagnosing() {
+        return willWaitForDebugger || debugControlSocket != null || profileTracePath != null
+                || heapDumpOnExitPath != null || heapDumpOnOomPath != null || allocationSummaryPath != null;
+    }
+
+    /**
+     * Everything besides tool, arguments and inputs that goes into a run, for the result cache key
+     */
+    private String getCacheLaunch(boolean su, int uid) {
+        List<String> launch = getLauncherOptions();
+        if (compressionThreshold > 0) {
+            launch.add("-z");
+            launch.add(Long.toString(compressionThreshold));
+        }
+        if (launchOptions != null) {
+            launch.addAll(launchOptions.toArguments());
+        }
+        return (su ? "su " : "sh ") + uid + " " + launch;
+    }
+
+    private ToolResult launchQueued(boolean su, int uid, Context ctx, boolean service, String... args) {
+        // a service would hold its permit for as long as it runs, starving every launch after it
+        if (launchQueue == null || service) {
+            return launchNow(su, uid, ctx, args);
+        }
+        ToolScheduler.Permit permit;
+        try {
+            permit = launchQueue.acquire(launchCaller, getClass().getName(), launchPriority);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        try {
+            return launchNow(su, uid, ctx, args);
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * @return the run, null if the shell couldn't be started; shell runs have exit code -1
+     */
+    private ToolResult launchNow(boolean su, int uid, Context ctx, String... args) {
+        String codePath = getCodePath(ctx);
+        String tool = getClass().getName();
+        ToolMetrics metrics = ToolMetrics.get();
+        // a stream can only be read once, later runs go without it
+        InputStream payload = inputStream;
+        inputStream = null;
+        if (forkServerSocket != null || (willLaunchDirectly && !su)) {
+            ToolResult result;
+            try {
+                // the payload stream, if any, is piped straight into the tool's stdin
+                if (forkServerSocket != null) {
+                    result = DebuggableToolHelpers.runCommandOnForkServer(forkServerSocket, getArgv(args), payload);
+                } else {
+                    // the tool's watchdog gets first go, this only catches a wedged runtime
+                    long killAfter = timeoutMillis > 0 ? timeoutMillis + graceMillis + TIMEOUT_BACKSTOP_MILLIS : 0;
+                    result = DebuggableToolHelpers.runCommandDirectForResult(codePath, getArgv(args), payload, killAfter);
+                }
+            } catch (RuntimeException e) {
+                metrics.recordLaunchError(tool);
+                throw e;
+            }
+            metrics.recordLaunch(tool, result.getElapsedNanos(), result.getFirstOutputNanos(), result.getExitCode(), result.getOutputBytes());
+            lastReports = result.getReports();
+            lastExitCode = result.getExitCode();
+            return result;
+        }
+        File spooled = null;
+        try {
+            File input = inputFile;
+            if (payload != null) {
+                // the shell path has no stdin to give the tool so the payload goes via a file
+                spooled = spoolInput(payload, ctx);
+                input = spooled;
+            }
+            long start = System.nanoTime();
+            List<String> output;
+            try {
+                output = DebuggableToolHelpers.runCommand(su, uid, codePath, getCommandLine(input, args));
+            } catch (SuUnavailableException e) {
+                metrics.recordSuDenied(tool);
+                throw e;
+            }
+            if (output == null) {
+                // libsuperuser couldn't run the shell at all
+                metrics.recordLaunchError(tool);
+                return null;
+            }
+            long bytes = 0;
+            for (String line : output) {
+                bytes += line.length() + 1;
+            }
+            // Shell.run neither streams nor reports the exit code
+            long elapsed = System.nanoTime() - start;
+            metrics.recordLaunch(tool, elapsed, -1, null, bytes);
+            Map<String, String> reports = DebuggableToolHelpers.extractReports(output);
+            lastReports = reports;
+            lastExitCode = null;
+            return new ToolResult(output, -1, elapsed, -1, bytes, reports);
+        } finally {
+            if (spooled != null) {
+                spooled.delete();
+            }
+        }
+    }
+
+    private Thread launchInBackground(final boolean su, final int uid, final Context ctx, final String... args) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                launch(su, uid, ctx, true, args);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private File spoolInput(InputStream payload, Context ctx) {
+        try {
+            File spooled = File.createTempFile("toolinput", null, ctx == null ? null : ctx.getCacheDir());
+            OutputStream out = new FileOutputStream(spooled);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = payload.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+            // su'd tools need to be able to read it
+            spooled.setReadable(true, false);
+            return spooled;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -67,11 +371,11 @@ public abstract class AbstractTool {
      * @return
      */
     public List<String> runTool(String... args) {
-        return DebuggableToolHelpers.runCommand(false, getCommandLine(args));
+        return launch(false, 0, null, false, args);
     }
 
     public Thread runService(String... args) {
-        return DebuggableToolHelpers.runCommandInBackground(false, getCommandLine(args));
+        return launchInBackground(false, 0, null, args);
     }
 
     /**
@@ -81,11 +385,11 @@ public abstract class AbstractTool {
      * @return
      */
     public List<String> runTool(Context ctx, String... args) {
-        return DebuggableToolHelpers.runCommand(false, ctx, getCommandLine(args));
+        return launch(false, 0, ctx, false, args);
     }
 
     public Thread runService(Context ctx, String... args) {
-        return DebuggableToolHelpers.runCommandInBackground(false, ctx, getCommandLine(args));
+        return launchInBackground(false, 0, ctx, args);
     }
 
     /**
@@ -95,11 +399,11 @@ public abstract class AbstractTool {
      * @return
      */
     public List<String> runTool(boolean su, String... args) {
-        return DebuggableToolHelpers.runCommand(su, getCommandLine(args));
+        return launch(su, 0, null, false, args);
     }
 
     public Thread runService(boolean su, String... args) {
-        return DebuggableToolHelpers.runCommandInBackground(su, getCommandLine(args));
+        return launchInBackground(su, 0, null, args);
     }
 
     /**
@@ -110,11 +414,11 @@ public abstract class AbstractTool {
      * @return
      */
     public List<String> runTool(boolean su, Context ctx, String... args) {
-        return DebuggableToolHelpers.runCommand(su, ctx, DebuggableToolHelpers.getCommandLineForMainClass(this.getClass(), willWaitForDebugger, args));
+        return launch(su, 0, ctx, false, args);
     }
 
     public Thread runService(boolean su, Context ctx, String... args) {
-        return DebuggableToolHelpers.runCommandInBackground(su, ctx, getCommandLine(args));
+        return launchInBackground(su, 0, ctx, args);
     }
 
     /**
@@ -124,11 +428,11 @@ public abstract class AbstractTool {
      * @return
      */
     public List<String> runTool(int uid, String... args) {
-        return DebuggableToolHelpers.runCommand(true, uid, DebuggableToolHelpers.getCommandLineForMainClass(this.getClass(), willWaitForDebugger, args));
+        return launch(true, uid, null, false, args);
     }
 
     public Thread runService(int uid, String... args) {
-        return DebuggableToolHelpers.runCommandInBackground(true, uid, getCommandLine(args));
+        return launchInBackground(true, uid, null, args);
     }
 
     /**
@@ -139,11 +443,11 @@ public abstract class AbstractTool {
      * @return
      */
     public List<String> runTool(int uid, Context ctx, String... args) {
-        return DebuggableToolHelpers.runCommand(true, uid, ctx, DebuggableToolHelpers.getCommandLineForMainClass(this.getClass(), willWaitForDebugger, args));
+        return launch(true, uid, ctx, false, args);
     }
 
     public Thread runService(int uid, Context ctx, String... args) {
-        return DebuggableToolHelpers.runCommandInBackground(true, uid, ctx, getCommandLine(args));
+        return launchInBackground(true, uid, ctx, args);
     }
 
     /**
@@ -155,13 +459,386 @@ public abstract class AbstractTool {
         willWaitForDebugger = willWait;
         return (I)this;
     }
+
+    /**
+     * Exec app_process directly instead of going through "sh" for non-root launches. Root
+     * launches always go through su.
+     * @param direct
+     * @return
+     */
+    public <I extends AbstractTool> I setDirectLaunch(boolean direct) {
+        willLaunchDirectly = direct;
+        return (I)this;
+    }
+
+    /**
+     * Run on a ToolForkServer listening on the given socket instead of starting app_process. The
+     * server's own uid decides whether the tool runs as root, su and uid arguments are ignored. On
+     * stock devices the server can't fork and starts app_process per run itself, which saves the su
+     * round trip of root tools and nothing else.
+     * @param socketName the server's socket name, null to launch normally
+     * @return
+     */
+    public <I extends AbstractTool> I setForkServer(String socketName) {
+        forkServerSocket = socketName;
+        return (I)this;
+    }
+
+    /**
+     * Runtime options (heap size, JIT, GC) for the app_process the tool runs in. Checked here, so a
+     * bad combination fails before anything is launched.
+     * @param options null for the runtime's defaults
+     * @return
+     */
+    public <I extends AbstractTool> I setLaunchOptions(LaunchOptions options) {
+        if (options != null) {
+            options.validate();
+        }
+        launchOptions = options;
+        return (I)this;
+    }
+
+    /**
+     * Nice value, CPU affinity and I/O priority for the launched process, eg a low priority on the
+     * little cores for bulk jobs that shouldn't hurt the UI. Not applied to fork server runs.
+     * @param hints null to launch with the caller's scheduling
+     * @return
+     */
+    public <I extends AbstractTool> I setSchedulingHints(SchedulingHints hints) {
+        schedulingHints = hints == null || hints.isEmpty() ? null : hints;
+        return (I)this;
+    }
+
+    /**
+     * Queue launches on a scheduler that limits how many run at once. #runService runs don't queue.
+     * @param scheduler eg ToolScheduler#getShared(), null to launch straight away
+     * @param priority lane to queue in
+     * @return
+     */
+    public <I extends AbstractTool> I setLaunchQueue(ToolScheduler scheduler, ToolScheduler.Priority priority) {
+        return setLaunchQueue(scheduler, priority, getClass().getName());
+    }
+
+    /**
+     * @see #setLaunchQueue(ToolScheduler, ToolScheduler.Priority)
+     * @param scheduler
+     * @param priority
+     * @param caller who is launching; callers in the same lane take turns
+     * @return
+     */
+    public <I extends AbstractTool> I setLaunchQueue(ToolScheduler scheduler, ToolScheduler.Priority priority, String caller) {
+        launchQueue = scheduler;
+        launchPriority = priority;
+        launchCaller = caller;
+        return (I)this;
+    }
+
+    /**
+     * Answer repeated runs with the same arguments and unchanged inputs from a cache instead of
+     * launching the tool again. Only for tools whose output depends on nothing but those. Runs fed
+     * from a stream (#setInput(InputStream)) are never cached; a payload file counts as an input.
+     * Shell and su launches have no exit code to tell a failure by, so they're only cached if the
+     * cache allows it (ToolResultCache#setShellRunMaxAge(long)). Launcher and VM settings are part of
+     * the key, and runs with profiling, heap dumps, allocation tracking or debugging always launch.
+     * @param cache null to always launch
+     * @param inputs files the tool's answer depends on
+     * @return
+     */
+    public <I extends AbstractTool> I setResultCache(ToolResultCache cache, File... inputs) {
+        resultCache = cache;
+        cacheInputs = Arrays.asList(inputs);
+        return (I)this;
+    }
+
+    /**
+     * Buffer the tool's stdout instead of writing every line to the pipe as it's printed, for tools
+     * that print a lot. Output is only seen by the caller when the buffer fills and at the end.
+     * @param bufferBytes eg ToolOutput#DEFAULT_BUFFER_BYTES, 0 for plain System.out
+     * @return
+     */
+    public <I extends AbstractTool> I setOutputBuffering(int bufferBytes) {
+        return setOutputBuffering(bufferBytes, ToolOutput.FlushPolicy.FULL, 0, false);
+    }
+
+    /**
+     * @see #setOutputBuffering(int)
+     * @param bufferBytes 0 for plain System.out
+     * @param policy when to flush besides a full buffer
+     * @param intervalMillis for ToolOutput.FlushPolicy#INTERVAL
+     * @param async write from a background thread so the tool doesn't wait on the pipe
+     * @return
+     */
+    public <I extends AbstractTool> I setOutputBuffering(int bufferBytes, ToolOutput.FlushPolicy policy, long intervalMillis, boolean async) {
+        if (bufferBytes < 0) {
+            throw new IllegalArgumentException("buffer size can't be negative");
+        }
+        if (policy == ToolOutput.FlushPolicy.INTERVAL && intervalMillis < 1) {
+            throw new IllegalArgumentException("flush interval must be positive, got " + intervalMillis);
+        }
+        outputBufferBytes = bufferBytes;
+        outputFlush = policy == ToolOutput.FlushPolicy.INTERVAL ? Long.toString(intervalMillis) : policy.name().toLowerCase();
+        outputAsync = async;
+        return (I)this;
+    }
+
+    /**
+     * Deflate the tool's output once it gets past the given size, for tools that print tens of MB.
+     * Only direct (#setDirectLaunch) and fork server (#setForkServer) runs are compressed, and
+     * output is buffered while it's on (#setOutputBuffering).
+     * @param thresholdBytes eg OutputCompression#DEFAULT_THRESHOLD_BYTES, 0 to never compress
+     * @return
+     */
+    public <I extends AbstractTool> I setOutputCompression(long thresholdBytes) {
+        if (thresholdBytes < 0) {
+            throw new IllegalArgumentException("threshold can't be negative");
+        }
+        compressionThreshold = thresholdBytes;
+        return (I)this;
+    }
+
+    /**
+     * Give up on the tool after the given time: its CancellationToken is cancelled, and if it's still
+     * running DebuggableTool#DEFAULT_GRACE_MILLIS later its process tree is killed (exit code
+     * DebuggableTool#EXIT_TIMEOUT).
+     * @param millis 0 for no timeout
+     * @return
+     */
+    public <I extends AbstractTool> I setTimeout(long millis) {
+        return setTimeout(millis, DebuggableTool.DEFAULT_GRACE_MILLIS);
+    }
+
+    /**
+     * @see #setTimeout(long)
+     * @param millis 0 for no timeout
+     * @param graceMillis how long a cancelled tool gets to wind down before it's killed
+     * @return
+     */
+    public <I extends AbstractTool> I setTimeout(long millis, long graceMillis) {
+        if (millis < 0 || graceMillis < 0) {
+            throw new IllegalArgumentException("timeouts can't be negative");
+        }
+        timeoutMillis = millis;
+        this.graceMillis = graceMillis;
+        return (I)this;
+    }
+
+    /**
+     * Run the tool under sampling method tracing, writing the trace to the given path on the
+     * device (".trace" is appended if missing). The path actually written is available from
+     * #getProfileTrace() once the run is done.
+     * @param tracePath where the trace goes, null to not profile
+     * @return
+     */
+    public <I extends AbstractTool> I setProfiling(String tracePath) {
+        return setProfiling(tracePath, DebuggableTool.DEFAULT_PROFILE_INTERVAL_US, DebuggableTool.DEFAULT_PROFILE_BUFFER_BYTES);
+    }
+
+    /**
+     * @see #setProfiling(String)
+     * @param tracePath where the trace goes, null to not profile
+     * @param intervalUs sampling interval in microseconds
+     * @param bufferBytes trace buffer size; sampling stops when it's full
+     * @return
+     */
+    public <I extends AbstractTool> I setProfiling(String tracePath, int intervalUs, int bufferBytes) {
+        profileTracePath = tracePath;
+        profileIntervalUs = intervalUs;
+        profileBufferBytes = bufferBytes;
+        return (I)this;
+    }
+
+    /**
+     * Write an hprof heap dump (on the device) when the run ends. The path is reported back under
+     * HeapDiagnostics#REPORT_HPROF.
+     * @param hprofPath null for no dump
+     * @return
+     */
+    public <I extends AbstractTool> I setHeapDumpOnExit(String hprofPath) {
+        heapDumpOnExitPath = hprofPath;
+        return (I)this;
+    }
+
+    /**
+     * Write an hprof heap dump (on the device) if the tool dies of an OutOfMemoryError
+     * @param hprofPath null for no dump
+     * @return
+     */
+    public <I extends AbstractTool> I setHeapDumpOnOutOfMemory(String hprofPath) {
+        heapDumpOnOomPath = hprofPath;
+        return (I)this;
+    }
+
+    /**
+     * Track allocations from the start of the run and write a per-class summary (on the device).
+     * The path is reported back under HeapDiagnostics#REPORT_ALLOCATIONS.
+     * @param summaryPath null to not track
+     * @param windowMillis how long to track, 0 for the whole run
+     * @return
+     */
+    public <I extends AbstractTool> I setAllocationTracking(String summaryPath, long windowMillis) {
+        allocationSummaryPath = summaryPath;
+        allocationWindowMillis = windowMillis;
+        return (I)this;
+    }
+
+    /**
+     * What the launcher reported about the last finished run, see DebuggableTool#REPORT_MARKER
+     * @return
+     */
+    public Map<String, String> getLastReports() {
+        return lastReports;
+    }
+
+    /**
+     * CPU, memory, context switch and I/O numbers of the last run
+     * @return null if nothing was reported, eg the tool called System.exit itself
+     */
+    public ResourceUsage getLastResourceUsage() {
+        String encoded = lastReports.get(ResourceUsage.REPORT_KEY);
+        return encoded == null ? null : ResourceUsage.decode(encoded);
+    }
+
+    /**
+     * Where the last profiled run wrote its method trace
+     * @return null if the last run wasn't profiled or didn't finish
+     */
+    public String getProfileTrace() {
+        return lastReports.get(DebuggableTool.REPORT_TRACE);
+    }
+
+    /**
+     * Have the tool listen for debugger start/stop commands on the given abstract socket, so JDWP
+     * can be turned on in a long-running tool only when needed. Send commands with
+     * DebuggerControl#send(String, String).
+     * @param socketName socket name, null for no control channel
+     * @return
+     */
+    public <I extends AbstractTool> I setDebugControl(String socketName) {
+        debugControlSocket = socketName;
+        return (I)this;
+    }
+
+    /**
+     * App-side: hand the tool a file as its input payload. Tool-side: the payload file given
+     * to DebuggableTool.
+     * @param input
+     * @return
+     */
+    public <I extends AbstractTool> I setInput(File input) {
+        inputFile = input;
+        inputBuffer = null;
+        return (I)this;
+    }
+
+    /**
+     * Stream a payload to the tool. Direct launches pipe it into the tool's stdin, shell launches
+     * spool it to a temp file first. The stream is consumed by the next run only; runs after that
+     * go without a payload (and can be cached again) unless it is set again.
+     * @param input
+     * @return
+     */
+    public <I extends AbstractTool> I setInput(InputStream input) {
+        inputStream = input;
+        return (I)this;
+    }
+
     public void setArgs(String[] args) {
         this.args = args;
-        this.parsedArgs = getArgParser().parse(args);
+        OptionParser parser = getCachedArgParser();
+        // OptionParser keeps its parse state in the instance
+        synchronized (parser) {
+            this.parsedArgs = parser.parse(args);
+        }
+    }
+
+    /**
+     * The parser for this tool class, built with #getArgParser() the first time it's needed and
+     * shared by every later instance of the class
+     * @return
+     */
+    OptionParser getCachedArgParser() {
+        OptionParser parser = argParsers.get(getClass());
+        if (parser == null) {
+            OptionParser created = getArgParser();
+            synchronized (argParsers) {
+                parser = argParsers.get(getClass());
+                if (parser == null) {
+                    argParsers.put(getClass(), created);
+                    parser = created;
+                }
+            }
+        }
+        return parser;
     }
     protected String[] getArgs() {
         return args;
     }
+
+    /**
+     * Tool-side: the input payload as a stream, either the payload file or stdin
+     * @return
+     */
+    protected InputStream getInput() {
+        if (inputFile == null) {
+            return System.in;
+        }
+        try {
+            return new FileInputStream(inputFile);
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Tool-side: the whole input payload. A payload file is memory-mapped read-only, stdin is
+     * read to the end into memory.
+     * @return
+     */
+    protected ByteBuffer getInputBuffer() {
+        if (inputBuffer != null) {
+            return inputBuffer.duplicate();
+        }
+        try {
+            if (inputFile != null) {
+                RandomAccessFile file = new RandomAccessFile(inputFile, "r");
+                try {
+                    inputBuffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                } finally {
+                    // the mapping outlives the channel
+                    file.close();
+                }
+            } else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = System.in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+                inputBuffer = ByteBuffer.wrap(bytes.toByteArray());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return inputBuffer.duplicate();
+    }
+
+    /**
+     * Tool-side: cancelled when the run times out (#setTimeout), the caller goes away or asks for it
+     * to stop ("cancel" on the control socket). Long-running tools should check it and stop early.
+     * @return
+     */
+    public CancellationToken getCancellationToken() {
+        return cancellation;
+    }
+
+    /**
+     * Tool-side: whether the caller has given up on this run
+     * @return
+     */
+    protected boolean isCancelled() {
+        return cancellation.isCancelled();
+    }
+
     public void setContext(Context ctx) {
         thisContext = ctx;
     }
@@ -179,7 +856,9 @@ public abstract class AbstractTool {
     protected abstract void run(OptionSet parser);
 
     /**
-     * Implementing this to allow for validating parameters
+     * Implementing this to allow for validating parameters. It's called once per tool class and
+     * the parser is reused for every run of that class in the process, so it must not depend on
+     * instance state.
      * @return
      */
     protected OptionParser getArgParser() {
@@ -0,0 +1,90 @@
+package name.kevinross.tool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Tells a running tool that nobody wants its result anymore: the run timed out, the caller went
+ * away or asked for it to stop. Long-running tools check it between units of work and bail out,
+ * releasing what they hold, instead of burning CPU until they're killed:
+ *
+ *      for (File f : files) {
+ *          getCancellationToken().throwIfCancelled();
+ *          scan(f);
+ *      }
+ *
+ * Listeners are for work that blocks and can't poll, eg closing a socket the tool is reading from.
+ * Cancellation is one-way, the first reason sticks.
+ */
+public final class CancellationToken {
+    private volatile String reason = null;
+    private final List<Runnable> listeners = new ArrayList<>();
+
+    /**
+     * Cancel, running the listeners on this thread. Later calls do nothing.
+     * @param reason why, eg "timeout"
+     * @return whether this call cancelled the token
+     */
+    public boolean cancel(String reason) {
+        List<Runnable> toRun;
+        synchronized (listeners) {
+            if (this.reason != null) {
+                return false;
+            }
+            this.reason = reason == null ? "cancelled" : reason;
+            toRun = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : toRun) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                // one broken listener doesn't keep the rest from running
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return reason != null;
+    }
+
+    /**
+     * @return why the token was cancelled, null if it wasn't
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * @throws CancellationException the token was cancelled
+     */
+    public void throwIfCancelled() {
+        String why = reason;
+        if (why != null) {
+            throw new CancellationException(why);
+        }
+    }
+
+    /**
+     * Run something on cancellation, straight away if that already happened
+     * @param listener runs on the cancelling thread, keep it short
+     */
+    public void addListener(Runnable listener) {
+        synchronized (listeners) {
+            if (reason == null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    public void removeListener(Runnable listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package name.kevinross.tool;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A fixed set of fields of one class, resolved and made accessible once, for reading or writing
+ * them on many objects without going through the invoker chain each time.
+ *
+ *      static final FieldLayout ELEMENT = FieldLayout.of(elementClass, "dexFile", "path");
+ *      Object[] values = null;
+ *      for (Object element : elements) {
+ *          values = ELEMENT.snapshot(element, values);
+ *          ...
+ *      }
+ *
+ * Fields are looked up through the class hierarchy like invokes().name(f).nosy() does. Static
+ * fields can be part of a layout, the object is ignored for them.
+ */
+public final class FieldLayout {
+    private final Class<?> clazz;
+    private final Field[] fields;
+
+    private FieldLayout(Class<?> clazz, Field[] fields) {
+        this.clazz = clazz;
+        this.fields = fields;
+        AccessController.doPrivileged(new PrivilegedAction<Object>() {
+            @Override
+            public Object run() {
+                for (Field f : FieldLayout.this.fields) {
+                    if (!f.isAccessible()) {
+                        f.setAccessible(true);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Resolve the named fields of a class
+     * @param cls class to start the search in
+     * @param names field names, in the order values are snapshotted/restored
+     * @return the layout
+     * @throws NoSuchFieldException one of the fields isn't in the class hierarchy
+     */
+    public static FieldLayout of(Class<?> cls, String... names) throws NoSuchFieldException {
+        Field[] fields = new Field[names.length];
+        for (int i = 0; i < names.length; i++) {
+            fields[i] = ReflectionUtil.Invoker.findField(cls, names[i]);
+        }
+        return new FieldLayout(cls, fields);
+    }
+
+    /**
+     * Resolve every instance field of a class and its superclasses, the class's own first
+     * @param cls
+     * @return the layout
+     */
+    public static FieldLayout allOf(Class<?> cls) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(f.getModifiers())) {
+                    fields.add(f);
+                }
+            }
+        }
+        return new FieldLayout(cls, fields.toArray(new Field[fields.size()]));
+    }
+
+    public Class<?> getLayoutClass() {
+        return clazz;
+    }
+
+    /**
+     * Number of fields in the layout
+     * @return
+     */
+    public int size() {
+        return fields.length;
+    }
+
+    public Field getField(int index) {
+        return fields[index];
+    }
+
+    /**
+     * Position of a field in the layout
+     * @param name field name
+     * @return index, -1 if the layout doesn't have it
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read every field of the layout from an object
+     * @param obj object to read from
+     * @param into array to fill, reused if it's big enough
+     * @return into, or a new array if into was null or too small
+     */
+    public Object[] snapshot(Object obj, Object[] into) {
+        if (into == null || into.length < fields.length) {
+            into = new Object[fields.length];
+        }
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                into[i] = fields[i].get(obj);
+            }
+        } catch (IllegalAccessException e) {
+            // made accessible when the layout was built
+            throw new IllegalStateException(e);
+        }
+        return into;
+    }
+
+    /**
+     * Write every field of the layout back to an object. Final instance fields are written too.
+     * @param obj object to write to
+     * @param values values in layout order, eg from #snapshot(Object, Object[])
+     */
+    public void restore(Object obj, Object[] values) {
+        if (values.length < fields.length) {
+            throw new IllegalArgumentException("expected " + fields.length + " values, got " + values.length);
+        }
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].set(obj, values[i]);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Read one field of the layout
+     * @param obj object to read from
+     * @param index position in the layout
+     * @param <T> type of the field's value
+     * @return the value
+     */
+    public <T> T get(Object obj, int index) {
+        try {
+            // unchecked: the caller names the field's type, as with invokes().get()
+            @SuppressWarnings("unchecked")
+            T value = (T) fields[index].get(obj);
+            return value;
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write one field of the layout
+     * @param obj object to write to
+     * @param index position in the layout
+     * @param value the value
+     */
+    public void set(Object obj, int index, Object value) {
+        try {
+            fields[index].set(obj, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            names[i] = fields[i].getName();
+        }
+        return clazz.getName() + Arrays.toString(names);
+    }
+}
@@ -23,6 +23,7 @@ public interface IInvoker {
             InvocationTargetException;
     IInvoker.PrivateInterface nosy();
     IInvoker.SwallowInterface swallow();
+    IInvoker.ProbeInterface probe();
     interface PrivateInterface extends IInvoker {
         <T> T getNewInstance() throws NoSuchMethodException, InvocationTargetException, InstantiationException;
         <T> T get() throws NoSuchFieldException, InvocationTargetException;
@@ -35,4 +36,16 @@ public interface IInvoker {
         void set();
         <T> T invoke();
     }
+    interface ProbeInterface extends IInvoker {
+        <T> T getNewInstance();
+        <T> T getNewInstance(T fallback);
+        <T> T get();
+        <T> T get(T fallback);
+        void set();
+        <T> T invoke();
+        <T> T invoke(T fallback);
+        boolean hasField();
+        boolean hasMethod();
+        boolean hasConstructor();
+    }
 }
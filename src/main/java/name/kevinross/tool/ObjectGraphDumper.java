@@ -0,0 +1,328 @@
+package name.kevinross.tool;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Writes out everything reachable from an object, one line per field or array element, indented by
+ * depth:
+ *
+ *      #1 android.app.ActivityThread
+ *        mInitialApplication -> #2 com.example.App
+ *          mBase -> #3 android.app.ContextImpl
+ *            mMainThread -> #1 (seen)
+ *        mNumVisibleActivities = 0
+ *
+ * The walk uses an explicit stack so deep graphs don't overflow the thread's stack, and objects are
+ * tracked by identity so each one is expanded once however many times it's referenced (cycles
+ * included). Output goes to the writer as the walk goes instead of being built up in memory.
+ *
+ * Every object's instance fields are dumped, superclass ones included; the FieldLayout of each class
+ * is built the first time the class is met and reused for the rest of the dumper's life.
+ */
+public class ObjectGraphDumper {
+    private static final String INDENT = "  ";
+    // value of a line that's only a label
+    private static final Object NOTHING = new Object();
+
+    private final Map<Class<?>, FieldLayout> layouts = new HashMap<>();
+    private int maxDepth = 16;
+    private int maxObjects = 100000;
+    private long maxChars = 16 * 1024 * 1024;
+    private int maxArrayElements = 256;
+    private int maxStringLength = 1024;
+
+    /**
+     * Objects deeper than this are named but not expanded
+     * @param maxDepth
+     * @return
+     */
+    public ObjectGraphDumper setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Stop after expanding this many objects
+     * @param maxObjects
+     * @return
+     */
+    public ObjectGraphDumper setMaxObjects(int maxObjects) {
+        this.maxObjects = maxObjects;
+        return this;
+    }
+
+    /**
+     * Stop after writing this many characters
+     * @param maxChars
+     * @return
+     */
+    public ObjectGraphDumper setMaxChars(long maxChars) {
+        this.maxChars = maxChars;
+        return this;
+    }
+
+    /**
+     * Elements of an array beyond this are skipped
+     * @param maxArrayElements
+     * @return
+     */
+    public ObjectGraphDumper setMaxArrayElements(int maxArrayElements) {
+        this.maxArrayElements = maxArrayElements;
+        return this;
+    }
+
+    /**
+     * Strings longer than this are cut short
+     * @param maxStringLength
+     * @return
+     */
+    public ObjectGraphDumper setMaxStringLength(int maxStringLength) {
+        this.maxStringLength = maxStringLength;
+        return this;
+    }
+
+    /**
+     * Dump as UTF-8 text to a stream, eg System.out in a tool
+     * @param root
+     * @param out
+     * @return number of objects expanded
+     * @throws IOException
+     */
+    public int dump(Object root, OutputStream out) throws IOException {
+        return dump(root, new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8"))));
+    }
+
+    /**
+     * Dump the graph reachable from root. The writer is flushed, not closed.
+     * @param root
+     * @param out
+     * @return number of objects expanded
+     * @throws IOException
+     */
+    public int dump(Object root, Writer out) throws IOException {
+        Output output = new Output(out);
+        IdentityHashMap<Object, Integer> seen = new IdentityHashMap<>();
+        Deque<Item> stack = new ArrayDeque<>();
+        stack.push(new Item(null, root, 0));
+        try {
+            while (!stack.isEmpty()) {
+                Item item = stack.pop();
+                indent(output, item.depth);
+                if (item.label != null) {
+                    output.write(item.label);
+                }
+                Object value = item.value;
+                if (value == NOTHING) {
+                    output.newLine();
+                    continue;
+                }
+                if (isLeaf(value)) {
+                    output.write(item.label == null ? "" : " = ");
+                    writeLeaf(output, value);
+                    output.newLine();
+                    continue;
+                }
+                if (item.label != null) {
+                    output.write(" -> ");
+                }
+                Integer id = seen.get(value);
+                if (id != null) {
+                    output.write("#" + id + " (seen)");
+                    output.newLine();
+                    continue;
+                }
+                if (seen.size() >= maxObjects) {
+                    output.write("<object limit reached>");
+                    output.newLine();
+                    break;
+                }
+                id = seen.size() + 1;
+                seen.put(value, id);
+                Class<?> cls = value.getClass();
+                output.write("#" + id + " ");
+                if (cls.isArray()) {
+                    int length = Array.getLength(value);
+                    output.write(cls.getComponentType().getName() + "[" + length + "]");
+                    if (cls.getComponentType().isPrimitive()) {
+                        output.write(" ");
+                        writePrimitiveArray(output, value, length);
+                        output.newLine();
+                        continue;
+                    }
+                    output.newLine();
+                    if (item.depth >= maxDepth) {
+                        writeElided(output, item.depth + 1);
+                        continue;
+                    }
+                    int shown = Math.min(length, maxArrayElements);
+                    if (shown < length) {
+                        stack.push(new Item("<" + (length - shown) + " more>", NOTHING, item.depth + 1));
+                    }
+                    for (int i = shown - 1; i >= 0; i--) {
+                        stack.push(new Item("[" + i + "]", Array.get(value, i), item.depth + 1));
+                    }
+                } else {
+                    output.write(cls.getName());
+                    output.newLine();
+                    if (item.depth >= maxDepth) {
+                        writeElided(output, item.depth + 1);
+                        continue;
+                    }
+                    FieldLayout layout = getLayout(cls);
+                    Object[] values = layout.snapshot(value, null);
+                    for (int i = layout.size() - 1; i >= 0; i--) {
+                        stack.push(new Item(layout.getField(i).getName(), values[i], item.depth + 1));
+                    }
+                }
+            }
+        } catch (CharLimitReached e) {
+            out.write("\n<output limit reached>\n");
+        }
+        out.flush();
+        return seen.size();
+    }
+
+    private FieldLayout getLayout(Class<?> cls) {
+        FieldLayout layout = layouts.get(cls);
+        if (layout == null) {
+            layout = FieldLayout.allOf(cls);
+            layouts.put(cls, layout);
+        }
+        return layout;
+    }
+
+    /**
+     * Values written inline instead of getting an id and being expanded
+     */
+    private static boolean isLeaf(Object value) {
+        return value == null
+                || value instanceof String
+                || value instanceof Number && value.getClass().getName().startsWith("java.lang.")
+                || value instanceof Boolean
+                || value instanceof Character
+                || value instanceof Enum
+                || value instanceof Class;
+    }
+
+    private void writeLeaf(Output output, Object value) throws IOException {
+        if (value instanceof String) {
+            writeString(output, (String) value);
+        } else if (value instanceof Character) {
+            output.write("'" + value + "'");
+        } else if (value instanceof Enum) {
+            output.write(((Enum<?>) value).getDeclaringClass().getName() + "." + ((Enum<?>) value).name());
+        } else if (value instanceof Class) {
+            output.write("class " + ((Class<?>) value).getName());
+        } else {
+            output.write(String.valueOf(value));
+        }
+    }
+
+    private void writeString(Output output, String value) throws IOException {
+        StringBuilder sb = new StringBuilder(Math.min(value.length(), maxStringLength) + 2);
+        sb.append('"');
+        int length = Math.min(value.length(), maxStringLength);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default: sb.append(c);
+            }
+        }
+        sb.append('"');
+        if (length < value.length()) {
+            sb.append("...(").append(value.length()).append(" chars)");
+        }
+        output.write(sb.toString());
+    }
+
+    private void writePrimitiveArray(Output output, Object array, int length) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        int shown = Math.min(length, maxArrayElements);
+        for (int i = 0; i < shown; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(Array.get(array, i));
+        }
+        if (shown < length) {
+            sb.append(", <").append(length - shown).append(" more>");
+        }
+        sb.append(']');
+        output.write(sb.toString());
+    }
+
+    private static void writeElided(Output output, int depth) throws IOException {
+        indent(output, depth);
+        output.write("...");
+        output.newLine();
+    }
+
+    private static void indent(Output output, int depth) throws IOException {
+        for (int i = 0; i < depth; i++) {
+            output.write(INDENT);
+        }
+    }
+
+    private static class Item {
+        final String label;
+        final Object value;
+        final int depth;
+
+        Item(String label, Object value, int depth) {
+            this.label = label;
+            this.value = value;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Counts what's written so the char limit can be enforced
+     */
+    private class Output {
+        private final Writer out;
+        private long written = 0;
+
+        Output(Writer out) {
+            this.out = out;
+        }
+
+        void write(String s) throws IOException {
+            out.write(s);
+            written += s.length();
+            if (written > maxChars) {
+                throw new CharLimitReached();
+            }
+        }
+
+        void newLine() throws IOException {
+            write("\n");
+        }
+    }
+
+    private static class CharLimitReached extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            // only used to unwind out of the walk
+            return this;
+        }
+    }
+}
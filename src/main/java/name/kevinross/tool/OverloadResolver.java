@@ -0,0 +1,328 @@
+package name.kevinross.tool;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the method or constructor to call from the runtime types of the arguments, for invokers
+ * given using(params) without of(types).
+ *
+ * Resolution follows the first two phases of the JLS: candidates the arguments fit by subtyping alone
+ * (a null argument fits any reference type) are tried first, and only if there are none those they
+ * fit with unboxing and primitive widening. The most specific candidate of the phase wins; a tie is
+ * reported as ambiguous. Varargs aren't expanded.
+ *
+ * Decisions are cached per (class, name, argument types) so a repeated call shape costs a map
+ * lookup. The chosen member is held strongly, which keeps its class and loader alive; argument types
+ * are held weakly. ReloadableToolLoader drops a replaced version's decisions with
+ * #evict(ClassLoader). Each class keeps at most #MAX_SHAPES_PER_CLASS decisions.
+ */
+final class OverloadResolver {
+    private static final int MAX_SHAPES_PER_CLASS = 64;
+    // class -> (name, argument types) -> chosen member
+    private static final Map<Class<?>, Map<Key, Member>> cache = new HashMap<>();
+    private static final Map<Class<?>, Class<?>> unboxed = new HashMap<>();
+    private static final Map<Class<?>, Class<?>[]> widenings = new HashMap<>();
+
+    static {
+        unboxed.put(Boolean.class, boolean.class);
+        unboxed.put(Byte.class, byte.class);
+        unboxed.put(Short.class, short.class);
+        unboxed.put(Character.class, char.class);
+        unboxed.put(Integer.class, int.class);
+        unboxed.put(Long.class, long.class);
+        unboxed.put(Float.class, float.class);
+        unboxed.put(Double.class, double.class);
+
+        widenings.put(byte.class, new Class<?>[]{short.class, int.class, long.class, float.class, double.class});
+        widenings.put(short.class, new Class<?>[]{int.class, long.class, float.class, double.class});
+        widenings.put(char.class, new Class<?>[]{int.class, long.class, float.class, double.class});
+        widenings.put(int.class, new Class<?>[]{long.class, float.class, double.class});
+        widenings.put(long.class, new Class<?>[]{float.class, double.class});
+        widenings.put(float.class, new Class<?>[]{double.class});
+    }
+
+    private OverloadResolver() {
+        // static utility
+    }
+
+    /**
+     * Find the most specific method called name in the class hierarchy (excluding Object, like
+     * Invoker#findMethod) that accepts the given arguments
+     * @param clazz class to start in
+     * @param name method name
+     * @param params arguments
+     * @return the method
+     * @throws NoSuchMethodException nothing applicable, or more than one equally specific match
+     */
+    static Method method(Class<?> clazz, String name, Object[] params) throws NoSuchMethodException {
+        Class<?>[] shape = ReflectionUtil.paramsToTypes(params);
+        Key key = new Key(name, shape);
+        Member cached = lookup(clazz, key);
+        if (cached != null) {
+            return (Method) cached;
+        }
+        List<Member> candidates = new ArrayList<>();
+        List<Class<?>[]> signatures = new ArrayList<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Method m : c.getDeclaredMethods()) {
+                if (!m.getName().equals(name) || m.isBridge() || m.isSynthetic()) {
+                    continue;
+                }
+                addIfNotOverridden(candidates, signatures, m, m.getParameterTypes());
+            }
+        }
+        Method found = (Method) pick(candidates, signatures, shape, clazz.getName() + "." + name);
+        store(clazz, key, found);
+        return found;
+    }
+
+    /**
+     * Find the most specific constructor of the class that accepts the given arguments
+     * @param clazz class to construct
+     * @param params arguments
+     * @return the constructor
+     * @throws NoSuchMethodException nothing applicable, or more than one equally specific match
+     */
+    static Constructor<?> constructor(Class<?> clazz, Object[] params) throws NoSuchMethodException {
+        Class<?>[] shape = ReflectionUtil.paramsToTypes(params);
+        Key key = new Key(null, shape);
+        Member cached = lookup(clazz, key);
+        if (cached != null) {
+            return (Constructor<?>) cached;
+        }
+        List<Member> candidates = new ArrayList<>();
+        List<Class<?>[]> signatures = new ArrayList<>();
+        for (Constructor<?> ctor : clazz.getDeclaredConstructors()) {
+            if (ctor.isSynthetic()) {
+                continue;
+            }
+            candidates.add(ctor);
+            signatures.add(ctor.getParameterTypes());
+        }
+        Constructor<?> found = (Constructor<?>) pick(candidates, signatures, shape, clazz.getName() + ".<init>");
+        store(clazz, key, found);
+        return found;
+    }
+
+    /**
+     * Drop the decisions for classes defined by a loader that's going away
+     * @param loader
+     */
+    static void evict(ClassLoader loader) {
+        synchronized (cache) {
+            for (Iterator<Class<?>> classes = cache.keySet().iterator(); classes.hasNext(); ) {
+                if (classes.next().getClassLoader() == loader) {
+                    classes.remove();
+                }
+            }
+        }
+    }
+
+    private static Member lookup(Class<?> clazz, Key key) {
+        synchronized (cache) {
+            Map<Key, Member> decisions = cache.get(clazz);
+            return decisions == null ? null : decisions.get(key);
+        }
+    }
+
+    private static void store(Class<?> clazz, Key key, Member found) {
+        synchronized (cache) {
+            Map<Key, Member> decisions = cache.get(clazz);
+            if (decisions == null) {
+                decisions = new HashMap<>();
+                cache.put(clazz, decisions);
+            } else if (decisions.size() >= MAX_SHAPES_PER_CLASS) {
+                // also sheds keys whose argument types were collected
+                decisions.clear();
+            }
+            decisions.put(key, found);
+        }
+    }
+
+    /**
+     * Subclasses are walked first so an override hides the method it overrides
+     */
+    private static void addIfNotOverridden(List<Member> candidates, List<Class<?>[]> signatures, Member m, Class<?>[] types) {
+        for (Class<?>[] seen : signatures) {
+            if (Arrays.equals(seen, types)) {
+                return;
+            }
+        }
+        candidates.add(m);
+        signatures.add(types);
+    }
+
+    private static Member pick(List<Member> candidates, List<Class<?>[]> signatures, Class<?>[] shape, String what) throws NoSuchMethodException {
+        List<Integer> applicable = applicable(signatures, shape, false);
+        if (applicable.isEmpty()) {
+            applicable = applicable(signatures, shape, true);
+        }
+        if (applicable.isEmpty()) {
+            throw new NoSuchMethodException(what + " applicable to " + Arrays.toString(shape));
+        }
+        Integer best = null;
+        for (Integer candidate : applicable) {
+            boolean mostSpecific = true;
+            for (Integer other : applicable) {
+                if (other.equals(candidate)) {
+                    continue;
+                }
+                if (!isMoreSpecific(signatures.get(candidate), signatures.get(other))) {
+                    mostSpecific = false;
+                    break;
+                }
+            }
+            if (mostSpecific) {
+                if (best != null) {
+                    throw new NoSuchMethodException("ambiguous " + what + " for " + Arrays.toString(shape));
+                }
+                best = candidate;
+            }
+        }
+        if (best == null) {
+            throw new NoSuchMethodException("ambiguous " + what + " for " + Arrays.toString(shape));
+        }
+        return candidates.get(best);
+    }
+
+    /**
+     * Indexes of the signatures applicable to shape
+     * @param unboxing false for the JLS' strict phase (subtyping only), true for the loose one
+     */
+    private static List<Integer> applicable(List<Class<?>[]> signatures, Class<?>[] shape, boolean unboxing) {
+        List<Integer> applicable = new ArrayList<>();
+        for (int i = 0; i < signatures.size(); i++) {
+            if (isApplicable(signatures.get(i), shape, unboxing)) {
+                applicable.add(i);
+            }
+        }
+        return applicable;
+    }
+
+    private static boolean isApplicable(Class<?>[] types, Class<?>[] shape, boolean unboxing) {
+        int count = shape == null ? 0 : shape.length;
+        if (types.length != count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (!accepts(types[i], shape[i], unboxing)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Can a value of runtime type arg (null for a null value) be passed as type param. Arguments
+     * arrive boxed, so a primitive parameter always takes unboxing.
+     */
+    private static boolean accepts(Class<?> param, Class<?> arg, boolean unboxing) {
+        if (arg == null) {
+            return !param.isPrimitive();
+        }
+        if (param.isPrimitive()) {
+            if (!unboxing) {
+                return false;
+            }
+            Class<?> primitive = unboxed.get(arg);
+            return primitive != null && (primitive == param || widens(primitive, param));
+        }
+        return param.isAssignableFrom(arg);
+    }
+
+    /**
+     * Is every parameter of a a subtype of the corresponding one of b. A primitive and a reference
+     * type are unrelated, as in the JLS.
+     */
+    private static boolean isMoreSpecific(Class<?>[] a, Class<?>[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                continue;
+            }
+            if (a[i].isPrimitive() != b[i].isPrimitive()) {
+                return false;
+            }
+            if (a[i].isPrimitive()) {
+                if (!widens(a[i], b[i])) {
+                    return false;
+                }
+            } else if (!b[i].isAssignableFrom(a[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean widens(Class<?> from, Class<?> to) {
+        Class<?>[] targets = widenings.get(from);
+        if (targets == null) {
+            return false;
+        }
+        for (Class<?> target : targets) {
+            if (target == to) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method name (null for constructors) and argument types, the types held weakly
+     */
+    private static class Key {
+        private final String name;
+        private final WeakReference<?>[] shape;
+        private final int hash;
+
+        Key(String name, Class<?>[] shape) {
+            this.name = name;
+            int count = shape == null ? 0 : shape.length;
+            this.shape = new WeakReference<?>[count];
+            int hash = name == null ? 0 : name.hashCode();
+            for (int i = 0; i < count; i++) {
+                this.shape[i] = shape[i] == null ? null : new WeakReference<>(shape[i]);
+                hash = hash * 31 + (shape[i] == null ? 0 : shape[i].hashCode());
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (!(name == null ? other.name == null : name.equals(other.name)) || shape.length != other.shape.length) {
+                return false;
+            }
+            for (int i = 0; i < shape.length; i++) {
+                if (shape[i] == null || other.shape[i] == null) {
+                    if (shape[i] != other.shape[i]) {
+                        return false;
+                    }
+                    continue;
+                }
+                Object type = shape[i].get();
+                // a collected type matches nothing, not even itself
+                if (type == null || type != other.shape[i].get()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -4,6 +4,8 @@ package name.kevinross.tool;
  * sourced from https://gist.github.com/josefbetancourt/3ffcb3044e558fc1b3e8
  */
 
+import java.lang.ref.WeakReference;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -11,7 +13,13 @@ import java.lang.reflect.Method;
 import java.security.AccessController;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * Reflection Invoker using Fluent Builder.
@@ -28,44 +36,135 @@ import java.util.List;
 public final class ReflectionUtil {
 
     private static final ReflectionUtil instance = new ReflectionUtil();
+    // cached miss; not the ClassNotFoundException, whose backtrace keeps the classes on the stack
+    // of the failed lookup (and so their loaders) alive
+    private static final Object MISSING = new Object();
+    // loader -> class name -> WeakReference<Class> or MISSING
+    private static final Map<ClassLoader, Map<String, Object>> classesByLoader = new WeakHashMap<>();
+    // enclosing class -> simple name -> inner class; names not in the map aren't inner classes
+    private static final Map<Class<?>, Map<String, WeakReference<Class<?>>>> innerClasses = new WeakHashMap<>();
 
     private ReflectionUtil() {
         // it's a singleton utility class.
     }
 
     /**
-     * Get a class given a fully-qualified class name
+     * Get a class given a fully-qualified class name. Lookups are cached per loader, misses
+     * included, see #forgetMissingClasses(ClassLoader).
      *
      * @param classLoader the loader to find the class in
      * @param name fully qualified class name
      * @return the found class
-     * @throws ClassNotFoundException
+     * @throws RuntimeException the class isn't there, caused by a ClassNotFoundException
      */
     public static <T> Class<T> getClassByName(ClassLoader classLoader, String name) {
+        Class<?> found = lookupClass(classLoader, name);
+        if (found == null) {
+            throw new RuntimeException("couldn't get class", new ClassNotFoundException(name));
+        }
+        return (Class<T>)found;
+    }
+
+    /**
+     * Like #getClassByName(ClassLoader, String) but returns null when the class isn't there
+     *
+     * @param classLoader the loader to find the class in
+     * @param name fully qualified class name
+     * @return null|Class
+     */
+    public static <T> Class<T> findClassByName(ClassLoader classLoader, String name) {
+        Class<?> found = lookupClass(classLoader, name);
+        if (found == null) {
+            return null;
+        }
+        return (Class<T>)found;
+    }
+
+    /**
+     * Drop the cached misses of a loader, for when it can load more classes than before (eg a dex
+     * was injected into it)
+     * @param classLoader
+     */
+    public static void forgetMissingClasses(ClassLoader classLoader) {
+        Map<String, Object> entries = classesByLoader.get(classLoader);
+        if (entries == null) {
+            return;
+        }
+        synchronized (entries) {
+            Iterator<Object> it = entries.values().iterator();
+            while (it.hasNext()) {
+                if (it.next() == MISSING) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the class, null if the loader doesn't have it
+     */
+    private static Class<?> lookupClass(ClassLoader classLoader, String name) {
+        Map<String, Object> entries;
+        synchronized (classesByLoader) {
+            entries = classesByLoader.get(classLoader);
+            if (entries == null) {
+                entries = new HashMap<>();
+                classesByLoader.put(classLoader, entries);
+            }
+        }
+        synchronized (entries) {
+            Object cached = entries.get(name);
+            if (cached == MISSING) {
+                return null;
+            }
+            if (cached != null) {
+                Class<?> cls = (Class<?>) ((WeakReference<?>) cached).get();
+                if (cls != null) {
+                    return cls;
+                }
+            }
+        }
+        Class<?> found;
         try {
-            return (Class<T>)classLoader.loadClass(name);
+            found = classLoader.loadClass(name);
         } catch (ClassNotFoundException ex) {
-            throw new RuntimeException("couldn't get class");
+            found = null;
+        }
+        synchronized (entries) {
+            // classes hold their loader, so a strong reference here would keep the key alive
+            entries.put(name, found != null ? new WeakReference<Class<?>>(found) : MISSING);
         }
+        return found;
     }
 
     /**
-     * Get an inner class of a given class by name (excluding "EnclosingClass$"
+     * Get an inner class of a given class by name (excluding "EnclosingClass$". The declared
+     * classes of each enclosing class are indexed on first use.
      * @param cls enclosing class
      * @param name inner class name
      * @return null|Class
      */
     public static Class getInnerClass(Class cls, String name) {
-        for (Class c : cls.getDeclaredClasses()) {
-            if (c.getSimpleName().equals(name)) {
-                return c;
+        Map<String, WeakReference<Class<?>>> inner;
+        synchronized (innerClasses) {
+            inner = innerClasses.get(cls);
+            if (inner == null) {
+                inner = new HashMap<>();
+                for (Class<?> c : cls.getDeclaredClasses()) {
+                    if (!inner.containsKey(c.getSimpleName())) {
+                        inner.put(c.getSimpleName(), new WeakReference<Class<?>>(c));
+                    }
+                }
+                innerClasses.put(cls, inner);
             }
         }
-        return null;
+        WeakReference<Class<?>> ref = inner.get(name);
+        return ref == null ? null : ref.get();
     }
 
     /**
-     * Return an array of types corresponding to the array of objects passed in
+     * Return an array of the runtime types of the objects passed in. A null object has no type, its
+     * slot in the array is null.
      * @param args
      * @return
      */
@@ -75,7 +174,7 @@ public final class ReflectionUtil {
         }
         List<Class> params = new ArrayList<>();
         for (Object o : args) {
-            params.add(o.getClass());
+            params.add(o == null ? null : o.getClass());
         }
         return params.toArray(new Class[params.size()]);
     }
@@ -247,17 +346,7 @@ public final class ReflectionUtil {
         public <T> T invoke() throws NoSuchMethodException, SecurityException,
                 IllegalAccessException, IllegalArgumentException,
                 InvocationTargetException {
-
-            boolean paramsButNoTypes = (method == null)
-                    && ((params != null) && (classes == null));
-
-            if (paramsButNoTypes) {
-                throw new IllegalStateException(String.format(
-                        "params:%s,classes:%s", params, classes));
-            }
-
             return (T)getMethod().invoke(object, params);
-
         }
 
 
@@ -277,6 +366,15 @@ public final class ReflectionUtil {
             return new InvokerNoChecked(this);
         }
 
+        /**
+         * Extend the invoker to return null (or a fallback) instead of throwing when the member
+         * isn't there or the call fails, for probing optional/hidden APIs
+         * @return
+         */
+        public IInvoker.ProbeInterface probe() {
+            return new InvokerProbe(this);
+        }
+
         // accessor methods for subclasses
         protected String getName() {
             if (name == null) {
@@ -312,6 +410,9 @@ public final class ReflectionUtil {
 
         protected Constructor getConstructor() throws NoSuchMethodException {
             if (constructor == null) {
+                if (isUntyped()) {
+                    return OverloadResolver.constructor(getClazz(), getParams());
+                }
                 return findConstructor(getClazz(), getClasses());
             }
             return constructor;
@@ -319,11 +420,22 @@ public final class ReflectionUtil {
 
         protected Method getMethod() throws NoSuchMethodException {
             if (method == null && name != null) {
+                if (isUntyped()) {
+                    return OverloadResolver.method(getClazz(), name, getParams());
+                }
                 return findMethod(getClazz(), name, getClasses());
             }
             return method;
         }
 
+        /**
+         * using() without of(): the overload is picked from the runtime types of the params
+         * @return
+         */
+        protected boolean isUntyped() {
+            return getParams() != null && getClasses() == null;
+        }
+
         protected Field getField() throws NoSuchFieldException {
             if (field == null && name != null) {
                 return findField(getClazz(), name);
@@ -465,7 +577,9 @@ public final class ReflectionUtil {
          */
         public <T> T getNewInstance() throws NoSuchMethodException {
             try {
-                final Constructor ctor = getClazz().getDeclaredConstructor(getClasses());
+                final Constructor ctor = isUntyped()
+                        ? OverloadResolver.constructor(getClazz(), getParams())
+                        : getClazz().getDeclaredConstructor(getClasses());
                 //final Object[] paramsF = getParams();
                 return (T)AccessController.doPrivileged(new PrivilegedExceptionAction<Object>() {
                     Object result;
@@ -646,4 +760,347 @@ public final class ReflectionUtil {
         }
     }
 
+    /**
+     * An extension of Invoker that reports failures as a null/fallback result instead of an
+     * exception. Members are made accessible like nosy() does. A lookup that finds nothing is
+     * remembered, so probing for the same missing member again doesn't search (and build exceptions)
+     * again; failures of the call itself aren't remembered. Misses are kept per class, weakly like
+     * innerClasses, and at most #MAX_MISSES_PER_CLASS of them.
+     */
+    static class InvokerProbe extends Invoker implements IInvoker.ProbeInterface {
+        static final int MAX_MISSES_PER_CLASS = 64;
+        // class probed -> what wasn't found in it
+        private static final Map<Class<?>, Set<ProbeKey>> misses = new WeakHashMap<>();
+        private Invoker invoker;
+        private InvokerProbe(Invoker parent) {
+            super(parent);
+            invoker = parent;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public <T> T getNewInstance() {
+            return getNewInstance(null);
+        }
+
+        public <T> T getNewInstance(T fallback) {
+            Constructor ctor = findProbedConstructor();
+            if (ctor == null) {
+                return fallback;
+            }
+            try {
+                return (T)ctor.newInstance(getParams());
+            } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+                return fallback;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public <T> T get() {
+            return get(null);
+        }
+
+        public <T> T get(T fallback) {
+            Field f = findProbedField();
+            if (f == null) {
+                return fallback;
+            }
+            try {
+                return (T)f.get(getObject());
+            } catch (IllegalAccessException | IllegalArgumentException e) {
+                return fallback;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void set() {
+            Field f = findProbedField();
+            if (f == null) {
+                return;
+            }
+            try {
+                f.set(getObject(), getParams()[0]);
+            } catch (IllegalAccessException | IllegalArgumentException e) {
+                // nothing to report to
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public <T> T invoke() {
+            return invoke(null);
+        }
+
+        public <T> T invoke(T fallback) {
+            Method m = findProbedMethod();
+            if (m == null) {
+                return fallback;
+            }
+            try {
+                return (T)m.invoke(getObject(), getParams());
+            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+                return fallback;
+            }
+        }
+
+        public boolean hasField() {
+            return findProbedField() != null;
+        }
+
+        public boolean hasMethod() {
+            return findProbedMethod() != null;
+        }
+
+        public boolean hasConstructor() {
+            return findProbedConstructor() != null;
+        }
+
+        private Field findProbedField() {
+            ProbeKey key = newKey('f');
+            if (key == null || isMiss(key)) {
+                return null;
+            }
+            try {
+                Field f = getField();
+                if (f != null && makeAccessible(f)) {
+                    return f;
+                }
+            } catch (NoSuchFieldException | SecurityException e) {
+                // fall through to record the miss
+            }
+            addMiss(key);
+            return null;
+        }
+
+        private Method findProbedMethod() {
+            ProbeKey key = newKey('m');
+            if (key == null || isMiss(key)) {
+                return null;
+            }
+            try {
+                Method m = getMethod();
+                if (m != null && makeAccessible(m)) {
+                    return m;
+                }
+            } catch (NoSuchMethodException | SecurityException e) {
+                // fall through to record the miss
+            }
+            addMiss(key);
+            return null;
+        }
+
+        private Constructor findProbedConstructor() {
+            ProbeKey key = newKey('c');
+            if (key == null || isMiss(key)) {
+                return null;
+            }
+            try {
+                Constructor ctor = getConstructor();
+                if (ctor != null && makeAccessible(ctor)) {
+                    return ctor;
+                }
+            } catch (NoSuchMethodException | SecurityException e) {
+                // fall through to record the miss
+            }
+            addMiss(key);
+            return null;
+        }
+
+        /**
+         * @return key of the lookup, null if there's nothing to look in or for
+         */
+        private ProbeKey newKey(char kind) {
+            Class<?> cls = getClazz();
+            if (cls == null) {
+                return null;
+            }
+            String name = null;
+            if (kind != 'c') {
+                try {
+                    name = getName();
+                } catch (IllegalStateException e) {
+                    return null;
+                }
+            }
+            Class<?>[] types = getClasses();
+            if (types == null && kind != 'f') {
+                types = paramsToTypes(getParams());
+            }
+            return new ProbeKey(kind, cls, name, kind == 'f' ? null : types);
+        }
+
+        private static boolean isMiss(ProbeKey key) {
+            synchronized (misses) {
+                Set<ProbeKey> missing = misses.get(key.clazz);
+                return missing != null && missing.contains(key);
+            }
+        }
+
+        /**
+         * Misses remembered for a class
+         */
+        static int getMissCount(Class<?> cls) {
+            synchronized (misses) {
+                Set<ProbeKey> missing = misses.get(cls);
+                return missing == null ? 0 : missing.size();
+            }
+        }
+
+        private static void addMiss(ProbeKey key) {
+            synchronized (misses) {
+                Set<ProbeKey> missing = misses.get(key.clazz);
+                if (missing == null) {
+                    missing = new HashSet<>();
+                    misses.put(key.clazz, missing);
+                } else if (missing.size() >= MAX_MISSES_PER_CLASS) {
+                    // also sheds keys whose parameter types were collected
+                    missing.clear();
+                }
+                missing.add(key.detach());
+            }
+        }
+
+        private static boolean makeAccessible(final AccessibleObject member) {
+            try {
+                return AccessController.doPrivileged(new PrivilegedExceptionAction<Boolean>() {
+                    @Override
+                    public Boolean run() {
+                        if (!member.isAccessible()) {
+                            member.setAccessible(true);
+                        }
+                        return true;
+                    }
+                });
+            } catch (Exception ex) {
+                return false;
+            }
+        }
+
+        @Override
+        protected String getName() {
+            return invoker.getName();
+        }
+
+        @Override
+        protected Object getObject() {
+            return invoker.getObject();
+        }
+
+        @Override
+        protected Class<? extends Object> getClazz() {
+            return invoker.getClazz();
+        }
+
+        @Override
+        protected Class<?>[] getClasses() {
+            return invoker.getClasses();
+        }
+
+        @Override
+        protected Object[] getParams() {
+            return invoker.getParams();
+        }
+
+        @Override
+        protected Constructor getConstructor() throws NoSuchMethodException {
+            return invoker.getConstructor();
+        }
+
+        @Override
+        protected Method getMethod() throws NoSuchMethodException {
+            return invoker.getMethod();
+        }
+
+        @Override
+        protected Field getField() throws NoSuchFieldException {
+            return invoker.getField();
+        }
+    }
+
+    /**
+     * What a probe looked for. The stored copies (#detach()) leave out the class they're filed
+     * under and hold the parameter types weakly, so remembering a miss keeps no class loader alive.
+     */
+    private static class ProbeKey {
+        private final char kind;
+        private final Class<?> clazz;
+        private final String name;
+        private final WeakReference<?>[] types;
+        private final int hash;
+
+        ProbeKey(char kind, Class<?> clazz, String name, Class<?>[] types) {
+            this.kind = kind;
+            this.clazz = clazz;
+            this.name = name;
+            int hash = kind * 31 + (name == null ? 0 : name.hashCode());
+            if (types == null) {
+                this.types = null;
+            } else {
+                this.types = new WeakReference<?>[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    this.types[i] = types[i] == null ? null : new WeakReference<>(types[i]);
+                    hash = hash * 31 + (types[i] == null ? 0 : types[i].hashCode());
+                }
+            }
+            this.hash = hash;
+        }
+
+        private ProbeKey(ProbeKey key) {
+            kind = key.kind;
+            clazz = null;
+            name = key.name;
+            types = key.types;
+            hash = key.hash;
+        }
+
+        /**
+         * @return a copy without the class, for storing under it
+         */
+        ProbeKey detach() {
+            return new ProbeKey(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ProbeKey)) {
+                return false;
+            }
+            ProbeKey other = (ProbeKey) o;
+            if (kind != other.kind || !(name == null ? other.name == null : name.equals(other.name))) {
+                return false;
+            }
+            if (types == null || other.types == null) {
+                return types == other.types;
+            }
+            if (types.length != other.types.length) {
+                return false;
+            }
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == null || other.types[i] == null) {
+                    if (types[i] != other.types[i]) {
+                        return false;
+                    }
+                    continue;
+                }
+                Object type = types[i].get();
+                // a collected type matches nothing, not even itself
+                if (type == null || type != other.types[i].get()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
 } // end class ReflectionUtil
\ No newline at end of file
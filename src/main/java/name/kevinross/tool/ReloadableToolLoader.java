@@ -0,0 +1,282 @@
+package name.kevinross.tool;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dalvik.system.DexClassLoader;
+
+/**
+ * Class loader layer for running tool code that can be swapped out inside a long-running process
+ * (a #runService tool hosting other tools, for example) without restarting it.
+ *
+ * Every #reload puts a fresh loader for the new dex in front of new invocations. Invocations already
+ * running keep the version they started with; once the last of them is done the old loader is
+ * dropped so its classes and dex can be collected. Classes under the reloadable prefix are always
+ * taken from the current dex, everything else (AbstractTool, framework, libraries) from the app's
+ * loader so instances stay compatible with the host.
+ *
+ *      ReloadableToolLoader tools = new ReloadableToolLoader(getClass().getClassLoader(), "com.example.tools.", cacheDir);
+ *      tools.reload("/data/local/tmp/tools-v2.dex");
+ *      tools.run("com.example.tools.Scan", this, "--fast");
+ */
+public class ReloadableToolLoader {
+    private final ClassLoader parent;
+    private final File optimizedDir;
+    private final List<Generation> retired = new ArrayList<>();
+    private volatile Generation current = null;
+    private volatile long lastReloadNanos = -1;
+
+    /**
+     * @param appLoader loader of the host, used for everything outside the prefix
+     * @param reloadablePrefix class name prefix of the reloadable tool code, eg "com.example.tools."
+     * @param optimizedDir where DexClassLoader may write optimized dex files
+     */
+    public ReloadableToolLoader(ClassLoader appLoader, String reloadablePrefix, File optimizedDir) {
+        this.parent = new PrefixHidingClassLoader(appLoader, reloadablePrefix);
+        this.optimizedDir = optimizedDir;
+    }
+
+    /**
+     * Load a new version of the tool code from a dex/apk/jar and use it for all new invocations
+     * @param dexPath
+     * @return nanoseconds taken to load and swap in the new version
+     */
+    public long reload(String dexPath) {
+        long start = System.nanoTime();
+        swap(new DexClassLoader(dexPath, optimizedDir.getAbsolutePath(), null, parent));
+        lastReloadNanos = System.nanoTime() - start;
+        return lastReloadNanos;
+    }
+
+    /**
+     * Load a new version of the tool code from memory (API 26+) and use it for all new invocations
+     * @param dex dex file contents
+     * @return nanoseconds taken to load and swap in the new version
+     */
+    public long reload(ByteBuffer... dex) {
+        long start = System.nanoTime();
+        ClassLoader loader;
+        Class<?> inMemory = ReflectionUtil.getClassByName(ClassLoader.getSystemClassLoader(), "dalvik.system.InMemoryDexClassLoader");
+        if (dex.length == 1) {
+            loader = ReflectionUtil.invokes().on(inMemory).of(ByteBuffer.class, ClassLoader.class).using(dex[0], parent).swallow().getNewInstance();
+        } else {
+            loader = ReflectionUtil.invokes().on(inMemory).of(ByteBuffer[].class, ClassLoader.class).using(dex, parent).swallow().getNewInstance();
+        }
+        swap(loader);
+        lastReloadNanos = System.nanoTime() - start;
+        return lastReloadNanos;
+    }
+
+    /**
+     * Time the last reload took, -1 if there hasn't been one
+     * @return
+     */
+    public long getLastReloadNanos() {
+        return lastReloadNanos;
+    }
+
+    private void swap(ClassLoader loader) {
+        Generation previous;
+        synchronized (this) {
+            previous = current;
+            current = new Generation(this, loader);
+            if (previous != null) {
+                retired.add(previous);
+            }
+        }
+        if (previous != null) {
+            previous.retire();
+        }
+    }
+
+    /**
+     * Pin the current version for one invocation. Close the lease when the invocation is done.
+     * @return
+     */
+    public Lease acquire() {
+        while (true) {
+            Generation generation = current;
+            if (generation == null) {
+                throw new IllegalStateException("nothing loaded yet");
+            }
+            if (generation.enter()) {
+                return new Lease(generation);
+            }
+            // retired between reading and entering, go again with the new one
+        }
+    }
+
+    /**
+     * Run a tool from the current version to completion, with the host's context and activity
+     * thread
+     * @param className tool class under the reloadable prefix
+     * @param host the tool hosting this loader, may be null
+     * @param args tool arguments
+     */
+    public void run(String className, AbstractTool host, String... args) throws ReflectiveOperationException {
+        Lease lease = acquire();
+        try {
+            AbstractTool tool = lease.newTool(className);
+            if (host != null) {
+                tool.setContext(host.getContext());
+                tool.setActivityThread(host.getActivityThread());
+            }
+            tool.setArgs(args);
+            tool.start();
+        } finally {
+            lease.close();
+        }
+    }
+
+    /**
+     * Wait for invocations on replaced versions to finish
+     * @param timeoutMillis
+     * @return whether all replaced versions have been released
+     * @throws InterruptedException
+     */
+    public boolean awaitRetired(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<Generation> waiting;
+        synchronized (this) {
+            waiting = new ArrayList<>(retired);
+        }
+        for (Generation generation : waiting) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0 || !generation.awaitDrained(left)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number of replaced versions still pinned by running invocations
+     * @return
+     */
+    public synchronized int getRetiredCount() {
+        return retired.size();
+    }
+
+    private synchronized void forget(Generation generation) {
+        retired.remove(generation);
+    }
+
+    /**
+     * An invocation's hold on one version of the tool code
+     */
+    public static class Lease {
+        private Generation generation;
+
+        private Lease(Generation generation) {
+            this.generation = generation;
+        }
+
+        public ClassLoader getClassLoader() {
+            return generation.loader;
+        }
+
+        /**
+         * Instantiate a tool from this version
+         * @param className
+         * @return
+         */
+        public AbstractTool newTool(String className) throws ReflectiveOperationException {
+            return ToolIndex.get(className, generation.loader).newInstance();
+        }
+
+        public void close() {
+            if (generation != null) {
+                generation.exit();
+                generation = null;
+            }
+        }
+    }
+
+    private static class Generation {
+        private final ReloadableToolLoader owner;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile boolean isRetired = false;
+        private ClassLoader loader;
+
+        Generation(ReloadableToolLoader owner, ClassLoader loader) {
+            this.owner = owner;
+            this.loader = loader;
+        }
+
+        boolean enter() {
+            inFlight.incrementAndGet();
+            if (isRetired) {
+                exit();
+                return false;
+            }
+            return true;
+        }
+
+        void exit() {
+            if (inFlight.decrementAndGet() == 0 && isRetired) {
+                drained();
+            }
+        }
+
+        void retire() {
+            isRetired = true;
+            if (inFlight.get() == 0) {
+                drained();
+            }
+        }
+
+        private void drained() {
+            synchronized (this) {
+                if (loader == null) {
+                    // retire() and the last exit() both got here
+                    return;
+                }
+                // the last references this side holds; the rest go with the tools that used it
+                ToolIndex.evict(loader);
+                OverloadResolver.evict(loader);
+                loader = null;
+                notifyAll();
+            }
+            // not under this generation's lock, so the owner's and this one never nest
+            owner.forget(this);
+        }
+
+        synchronized boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (loader != null) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Delegates to the app loader except for the reloadable classes, which the child loader then
+     * finds in its own dex instead of getting the app's copy
+     */
+    private static class PrefixHidingClassLoader extends ClassLoader {
+        private final ClassLoader delegate;
+        private final String prefix;
+
+        PrefixHidingClassLoader(ClassLoader delegate, String prefix) {
+            super(null);
+            this.delegate = delegate;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.startsWith(prefix)) {
+                throw new ClassNotFoundException(name);
+            }
+            return delegate.loadClass(name);
+        }
+    }
+}
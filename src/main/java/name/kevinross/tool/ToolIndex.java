@@ -0,0 +1,262 @@
+package name.kevinross.tool;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import dalvik.system.DexFile;
+import joptsimple.OptionParser;
+
+/**
+ * Index of AbstractTool implementations. A class is validated once (is it a tool, does it have a
+ * usable default constructor) and the result, including the resolved constructor, is kept so
+ * later launches in the same process go straight to instantiation. The index is filled on first
+ * use of a class or up front with #scan(String, String, ClassLoader). Entries are kept per
+ * (loader, class name), so each version of a class loaded by a ReloadableToolLoader gets its own.
+ *
+ * Unlike checking getSuperclass(), any subclass of AbstractTool is accepted, however deep.
+ */
+public final class ToolIndex {
+    // (defining or requesting loader, class name) -> entry
+    private static final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    private ToolIndex() {
+        // static utility
+    }
+
+    /**
+     * Get the entry for a tool class loaded by ToolIndex' own loader, validating and indexing it
+     * if this is the first lookup
+     * @param className fully-qualified class name
+     * @return the entry
+     * @throws ClassNotFoundException the class isn't there
+     * @throws InvalidToolException the class isn't a usable tool
+     */
+    public static Entry get(String className) throws ClassNotFoundException, InvalidToolException {
+        return get(className, ToolIndex.class.getClassLoader());
+    }
+
+    /**
+     * @see #get(String)
+     * @param className fully-qualified class name
+     * @param loader loader to resolve the name with, eg a ReloadableToolLoader version's
+     * @return the entry of the class that loader resolves the name to
+     * @throws ClassNotFoundException the class isn't there
+     * @throws InvalidToolException the class isn't a usable tool
+     */
+    public static Entry get(String className, ClassLoader loader) throws ClassNotFoundException, InvalidToolException {
+        Key key = new Key(loader, className);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        entry = get(Class.forName(className, true, loader));
+        // the loader may have delegated to the one that defined it, remember the answer for both
+        entries.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * @see #get(String)
+     * @param cls tool class
+     * @return the entry
+     * @throws InvalidToolException the class isn't a usable tool
+     */
+    public static Entry get(Class<?> cls) throws InvalidToolException {
+        Key key = new Key(cls.getClassLoader(), cls.getName());
+        Entry entry = entries.get(key);
+        if (entry != null && entry.toolClass == cls) {
+            return entry;
+        }
+        entry = validate(cls);
+        entries.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Drop the entries of every tool defined by the given loader, so a replaced loader and its
+     * classes can be collected
+     * @param loader
+     */
+    public static void evict(ClassLoader loader) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> indexed = it.next();
+            if (indexed.getKey().loader == loader || indexed.getValue().toolClass.getClassLoader() == loader) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Index every tool in a dex whose class name starts with the given prefix. Classes are loaded
+     * without being initialized; ones that don't validate are skipped.
+     * @param codePath path to the apk/dex
+     * @param prefix class name prefix, eg "com.example.tools."
+     * @param loader loader the classes belong to
+     * @return the entries found
+     * @throws IOException the dex couldn't be opened
+     */
+    public static List<Entry> scan(String codePath, String prefix, ClassLoader loader) throws IOException {
+        List<Entry> found = new ArrayList<>();
+        DexFile dex = new DexFile(codePath);
+        try {
+            Enumeration<String> names = dex.entries();
+            while (names.hasMoreElements()) {
+                String name = names.nextElement();
+                if (!name.startsWith(prefix)) {
+                    continue;
+                }
+                try {
+                    Class<?> cls = Class.forName(name, false, loader);
+                    if (AbstractTool.class.isAssignableFrom(cls) && !Modifier.isAbstract(cls.getModifiers())) {
+                        found.add(get(cls));
+                    }
+                } catch (ClassNotFoundException | InvalidToolException | LinkageError e) {
+                    // not something we can run
+                }
+            }
+        } finally {
+            dex.close();
+        }
+        return found;
+    }
+
+    private static Entry validate(Class<?> cls) throws InvalidToolException {
+        if (!AbstractTool.class.isAssignableFrom(cls) || Modifier.isAbstract(cls.getModifiers())) {
+            throw new InvalidToolException(InvalidToolException.Reason.NOT_A_TOOL, cls);
+        }
+        Constructor<? extends AbstractTool> ctor;
+        try {
+            ctor = cls.asSubclass(AbstractTool.class).getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            throw new InvalidToolException(InvalidToolException.Reason.NO_DEFAULT_CTOR, cls);
+        }
+        if (Modifier.isPrivate(ctor.getModifiers())) {
+            throw new InvalidToolException(InvalidToolException.Reason.CTOR_NOT_ACCESSIBLE, cls);
+        }
+        // checked once here instead of on every newInstance
+        ctor.setAccessible(true);
+        return new Entry(ctor);
+    }
+
+    /**
+     * A validated tool class
+     */
+    public static class Entry {
+        private final Class<? extends AbstractTool> toolClass;
+        private final Constructor<? extends AbstractTool> constructor;
+        private volatile String appName;
+        private volatile OptionParser argParser;
+
+        private Entry(Constructor<? extends AbstractTool> constructor) {
+            this.toolClass = constructor.getDeclaringClass();
+            this.constructor = constructor;
+        }
+
+        public Class<? extends AbstractTool> getToolClass() {
+            return toolClass;
+        }
+
+        public Constructor<? extends AbstractTool> getConstructor() {
+            return constructor;
+        }
+
+        /**
+         * Create a new instance of the tool. The first instance created also fills in the app name
+         * and argument parser metadata.
+         * @return
+         * @throws InstantiationException
+         * @throws InvocationTargetException the constructor threw
+         */
+        public AbstractTool newInstance() throws InstantiationException, InvocationTargetException {
+            AbstractTool tool;
+            try {
+                tool = constructor.newInstance();
+            } catch (IllegalAccessException e) {
+                // setAccessible(true) was done when indexing
+                throw new IllegalStateException(e);
+            }
+            if (appName == null) {
+                appName = tool.getAppName();
+            }
+            if (argParser == null) {
+                argParser = tool.getCachedArgParser();
+            }
+            return tool;
+        }
+
+        /**
+         * The tool's app name, null until an instance has been created
+         * @return
+         */
+        public String getAppName() {
+            return appName;
+        }
+
+        /**
+         * The tool's argument parser, shared with every instance of the class. Null until an
+         * instance has been created. Synchronize on it while parsing.
+         * @return
+         */
+        public OptionParser getArgParser() {
+            return argParser;
+        }
+    }
+
+    private static class Key {
+        private final ClassLoader loader;
+        private final String name;
+
+        Key(ClassLoader loader, String name) {
+            this.loader = loader;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return loader == other.loader && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(loader) * 31 + name.hashCode();
+        }
+    }
+
+    /**
+     * The class exists but can't be run as a tool
+     */
+    public static class InvalidToolException extends ReflectiveOperationException {
+        private static final long serialVersionUID = 1L;
+
+        public enum Reason {
+            NOT_A_TOOL,
+            NO_DEFAULT_CTOR,
+            CTOR_NOT_ACCESSIBLE
+        }
+
+        private final Reason reason;
+
+        InvalidToolException(Reason reason, Class<?> cls) {
+            super(reason + ": " + cls.getName());
+            this.reason = reason;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+    }
+}
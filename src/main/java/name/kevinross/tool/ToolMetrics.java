@@ -0,0 +1,408 @@
+package name.kevinross.tool;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import name.kevinross.tool.debuggable.DebuggableTool;
+
+/**
+ * Process-wide registry of tool launch metrics, keyed by tool class name. Recording is lock-free
+ * so it can sit on every launch; reading is done through #snapshot() which copies the counters
+ * out, or #export(Writer) which renders that snapshot as text.
+ *
+ *      ToolMetrics.get().snapshot().get(MyTool.class.getName()).getLaunchLatency().getPercentile(0.99);
+ *
+ * AbstractTool records its own launches. Code driving DebuggableToolHelpers directly can call the
+ * record* methods itself.
+ */
+public final class ToolMetrics {
+    private static final ToolMetrics instance = new ToolMetrics();
+
+    private final ConcurrentMap<String, ToolStats> stats = new ConcurrentHashMap<>();
+
+    private ToolMetrics() {
+        // it's a singleton
+    }
+
+    public static ToolMetrics get() {
+        return instance;
+    }
+
+    private ToolStats statsFor(String tool) {
+        ToolStats s = stats.get(tool);
+        if (s == null) {
+            ToolStats created = new ToolStats();
+            s = stats.putIfAbsent(tool, created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Record a finished launch
+     * @param tool tool class name
+     * @param latencyNanos time from launch to exit
+     * @param firstOutputNanos time from launch to the first line of output, negative if unknown
+     * @param exitCode exit code of app_process, null if the launch path doesn't report it
+     * @param outputBytes bytes the tool wrote
+     */
+    public void recordLaunch(String tool, long latencyNanos, long firstOutputNanos, Integer exitCode, long outputBytes) {
+        ToolStats s = statsFor(tool);
+        s.launches.incrementAndGet();
+        s.launchLatency.record(latencyNanos);
+        if (firstOutputNanos >= 0) {
+            s.firstOutput.record(firstOutputNanos);
+        }
+        if (exitCode != null) {
+            if (exitCode != 0) {
+                s.failures.incrementAndGet();
+            }
+            counterFor(s.exitCodes, exitCode).incrementAndGet();
+        }
+        s.outputBytes.addAndGet(outputBytes);
+    }
+
+    /**
+     * Record a launch that never started because su was unavailable or denied
+     * @param tool tool class name
+     */
+    public void recordSuDenied(String tool) {
+        statsFor(tool).suDenied.incrementAndGet();
+    }
+
+    /**
+     * Record a launch that failed before the tool produced a result (exec failure, shell died)
+     * @param tool tool class name
+     */
+    public void recordLaunchError(String tool) {
+        ToolStats s = statsFor(tool);
+        s.launches.incrementAndGet();
+        s.launchErrors.incrementAndGet();
+    }
+
+    private static AtomicLong counterFor(ConcurrentMap<Integer, AtomicLong> counters, int key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Forget everything recorded so far
+     */
+    public void reset() {
+        stats.clear();
+    }
+
+    /**
+     * Copy the current counters out. Values of a single tool may be skewed by launches finishing
+     * while the copy is taken but never by more than those launches.
+     * @return tool class name -> stats, sorted by name
+     */
+    public SortedMap<String, Snapshot> snapshot() {
+        SortedMap<String, Snapshot> out = new TreeMap<>();
+        for (Map.Entry<String, ToolStats> e : stats.entrySet()) {
+            out.put(e.getKey(), e.getValue().snapshot());
+        }
+        return out;
+    }
+
+    /**
+     * Render a snapshot as "tool.metric value" lines
+     * @param out
+     * @throws IOException
+     */
+    public void export(Writer out) throws IOException {
+        for (Map.Entry<String, Snapshot> e : snapshot().entrySet()) {
+            String tool = e.getKey();
+            Snapshot s = e.getValue();
+            line(out, tool, "launches", s.getLaunches());
+            line(out, tool, "launch_errors", s.getLaunchErrors());
+            line(out, tool, "failures", s.getFailures());
+            line(out, tool, "su_denied", s.getSuDenied());
+            line(out, tool, "output_bytes", s.getOutputBytes());
+            for (Map.Entry<Integer, Long> code : s.getExitCodes().entrySet()) {
+                line(out, tool, "exit." + exitCodeName(code.getKey()), code.getValue());
+            }
+            histogram(out, tool, "launch_latency_ns", s.getLaunchLatency());
+            histogram(out, tool, "first_output_ns", s.getFirstOutput());
+        }
+        out.flush();
+    }
+
+    public String export() {
+        StringWriter out = new StringWriter();
+        try {
+            export(out);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
+        }
+        return out.toString();
+    }
+
+    private static String exitCodeName(int code) {
+        switch (code) {
+            case 0: return "ok";
+            case DebuggableTool.EXIT_USAGE: return "usage";
+            case DebuggableTool.EXIT_CLASS_NOT_FOUND: return "class_not_found";
+            case DebuggableTool.EXIT_BAD_IMPLEMENTATION: return "bad_implementation";
+            case DebuggableTool.EXIT_BAD_CTOR: return "bad_ctor";
+            case DebuggableTool.EXIT_CTOR_VISIBILITY: return "ctor_visibility";
+            case DebuggableTool.EXIT_UNKNOWN: return "unknown";
+            case DebuggableTool.EXIT_TIMEOUT: return "timeout";
+            case DebuggableTool.EXIT_CANCELLED: return "cancelled";
+            default: return Integer.toString(code);
+        }
+    }
+
+    private static void line(Writer out, String tool, String metric, long value) throws IOException {
+        out.write(tool + "." + metric + " " + value + "\n");
+    }
+
+    private static void histogram(Writer out, String tool, String metric, HistogramSnapshot h) throws IOException {
+        line(out, tool, metric + ".count", h.getCount());
+        if (h.getCount() == 0) {
+            return;
+        }
+        line(out, tool, metric + ".min", h.getMin());
+        line(out, tool, metric + ".mean", h.getMean());
+        line(out, tool, metric + ".p50", h.getPercentile(0.50));
+        line(out, tool, metric + ".p90", h.getPercentile(0.90));
+        line(out, tool, metric + ".p99", h.getPercentile(0.99));
+        line(out, tool, metric + ".max", h.getMax());
+    }
+
+    private static class ToolStats {
+        final AtomicLong launches = new AtomicLong();
+        final AtomicLong launchErrors = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong suDenied = new AtomicLong();
+        final AtomicLong outputBytes = new AtomicLong();
+        final ConcurrentMap<Integer, AtomicLong> exitCodes = new ConcurrentHashMap<>();
+        final Histogram launchLatency = new Histogram();
+        final Histogram firstOutput = new Histogram();
+
+        Snapshot snapshot() {
+            SortedMap<Integer, Long> codes = new TreeMap<>();
+            for (Map.Entry<Integer, AtomicLong> e : exitCodes.entrySet()) {
+                codes.put(e.getKey(), e.getValue().get());
+            }
+            return new Snapshot(launches.get(), launchErrors.get(), failures.get(), suDenied.get(),
+                    outputBytes.get(), Collections.unmodifiableSortedMap(codes),
+                    launchLatency.snapshot(), firstOutput.snapshot());
+        }
+    }
+
+    /**
+     * Point-in-time copy of one tool's counters
+     */
+    public static class Snapshot {
+        private final long launches;
+        private final long launchErrors;
+        private final long failures;
+        private final long suDenied;
+        private final long outputBytes;
+        private final SortedMap<Integer, Long> exitCodes;
+        private final HistogramSnapshot launchLatency;
+        private final HistogramSnapshot firstOutput;
+
+        Snapshot(long launches, long launchErrors, long failures, long suDenied, long outputBytes,
+                 SortedMap<Integer, Long> exitCodes, HistogramSnapshot launchLatency, HistogramSnapshot firstOutput) {
+            this.launches = launches;
+            this.launchErrors = launchErrors;
+            this.failures = failures;
+            this.suDenied = suDenied;
+            this.outputBytes = outputBytes;
+            this.exitCodes = exitCodes;
+            this.launchLatency = launchLatency;
+            this.firstOutput = firstOutput;
+        }
+
+        public long getLaunches() {
+            return launches;
+        }
+
+        /**
+         * Launches that never produced a result (exec failed, shell died)
+         * @return
+         */
+        public long getLaunchErrors() {
+            return launchErrors;
+        }
+
+        /**
+         * Launches that exited non-zero, including DebuggableTool's own fatal exits
+         * @return
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getSuDenied() {
+            return suDenied;
+        }
+
+        public long getOutputBytes() {
+            return outputBytes;
+        }
+
+        /**
+         * Exit code -> count, see DebuggableTool#EXIT_* for the launcher's own codes
+         * @return
+         */
+        public SortedMap<Integer, Long> getExitCodes() {
+            return exitCodes;
+        }
+
+        public HistogramSnapshot getLaunchLatency() {
+            return launchLatency;
+        }
+
+        public HistogramSnapshot getFirstOutput() {
+            return firstOutput;
+        }
+    }
+
+    /**
+     * HDR-style log-linear histogram of non-negative longs: values below SUB_BUCKETS are exact and
+     * each power of two above is split into SUB_BUCKETS/2 linear buckets, so every recorded value
+     * is kept to within 2/SUB_BUCKETS of its real value regardless of magnitude, in a fixed amount
+     * of memory.
+     */
+    static class Histogram {
+        static final int SUB_BUCKET_BITS = 5;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // values below SUB_BUCKETS get exact buckets, each power of two above gets SUB_BUCKETS/2
+        static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * (SUB_BUCKETS / 2);
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(indexOf(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long seen;
+            while (value < (seen = min.get()) && !min.compareAndSet(seen, value)) {
+                // retry
+            }
+            while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+                // retry
+            }
+        }
+
+        static int indexOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int shift = magnitude - (SUB_BUCKET_BITS - 1);
+            int sub = (int) (value >>> shift) - SUB_BUCKETS / 2;
+            return SUB_BUCKETS + (magnitude - SUB_BUCKET_BITS) * (SUB_BUCKETS / 2) + sub;
+        }
+
+        /**
+         * Highest value that lands in the given bucket
+         */
+        static long highestValueAt(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int rel = index - SUB_BUCKETS;
+            int magnitude = rel / (SUB_BUCKETS / 2) + SUB_BUCKET_BITS;
+            int sub = rel % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+            int shift = magnitude - (SUB_BUCKET_BITS - 1);
+            long highest = ((long) (sub + 1) << shift) - 1;
+            // the top bucket runs past Long.MAX_VALUE
+            return highest < 0 ? Long.MAX_VALUE : highest;
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+            }
+            return new HistogramSnapshot(copy, count.get(), sum.get(), min.get(), max.get());
+        }
+    }
+
+    /**
+     * Point-in-time copy of a histogram
+     */
+    public static class HistogramSnapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long min;
+        private final long max;
+
+        HistogramSnapshot(long[] counts, long count, long sum, long min, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMin() {
+            return count == 0 ? 0 : min;
+        }
+
+        public long getMax() {
+            return count == 0 ? 0 : max;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * Value at the given quantile, accurate to the histogram's bucket resolution
+         * @param quantile 0.0 - 1.0
+         * @return
+         */
+        public long getPercentile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(Histogram.highestValueAt(i), getMax());
+                }
+            }
+            return getMax();
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package name.kevinross.tool;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+/**
+ * Admission control for tool launches, so a burst of requests doesn't fork dozens of app_process
+ * (and su) processes at once. A launch takes a permit before it starts and gives it back when the
+ * process is done; permits are limited globally and per tool class.
+ *
+ * Waiting launches queue in priority lanes. A free permit goes to the highest lane that has a
+ * launch it can run (one whose tool class is under its own limit), and within a lane callers take
+ * turns, one launch each, so a single caller queueing a hundred launches doesn't hold up the
+ * others.
+ *
+ *      ToolScheduler.getShared().setClassLimit(MyTool.class.getName(), 1);
+ *      new MyTool().setLaunchQueue(ToolScheduler.getShared(), ToolScheduler.Priority.LOW).runTool();
+ *
+ * Code driving DebuggableToolHelpers directly can wrap its calls with #call(String, String,
+ * Priority, Callable). Services (AbstractTool#runService) don't take a permit: they'd hold it for as
+ * long as they run, and a few of them would block every launch after them.
+ */
+public class ToolScheduler {
+    public enum Priority {
+        /**
+         * Launches the user is waiting on
+         */
+        HIGH,
+        NORMAL,
+        /**
+         * Bulk and background work, runs when nothing else wants the permits
+         */
+        LOW
+    }
+
+    private static final ToolScheduler shared = new ToolScheduler(Runtime.getRuntime().availableProcessors());
+
+    // lane -> caller -> that caller's launches in arrival order; callers rotate to the back once served
+    private final List<LinkedHashMap<String, ArrayDeque<Ticket>>> lanes = new ArrayList<>();
+    private final Map<String, Integer> classLimits = new HashMap<>();
+    private final Map<String, Integer> runningByTool = new HashMap<>();
+    private final Map<String, Integer> queuedByTool = new HashMap<>();
+    private final ToolMetrics.Histogram waitTime = new ToolMetrics.Histogram();
+    private int globalLimit;
+    private int defaultClassLimit = Integer.MAX_VALUE;
+    private int running = 0;
+    private int queued = 0;
+    private int maxQueued = 0;
+    private long granted = 0;
+
+    /**
+     * @param globalLimit launches allowed to run at once
+     */
+    public ToolScheduler(int globalLimit) {
+        for (int i = 0; i < Priority.values().length; i++) {
+            lanes.add(new LinkedHashMap<String, ArrayDeque<Ticket>>());
+        }
+        setGlobalLimit(globalLimit);
+    }
+
+    /**
+     * Process-wide scheduler, limited to one launch per CPU until configured otherwise
+     * @return
+     */
+    public static ToolScheduler getShared() {
+        return shared;
+    }
+
+    public synchronized ToolScheduler setGlobalLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1, got " + limit);
+        }
+        globalLimit = limit;
+        dispatch();
+        return this;
+    }
+
+    /**
+     * Limit for tool classes without one of their own
+     * @param limit
+     * @return
+     */
+    public synchronized ToolScheduler setDefaultClassLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1, got " + limit);
+        }
+        defaultClassLimit = limit;
+        dispatch();
+        return this;
+    }
+
+    /**
+     * @param tool tool class name
+     * @param limit launches of that tool allowed to run at once, 0 for the default class limit
+     * @return
+     */
+    public synchronized ToolScheduler setClassLimit(String tool, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit can't be negative, got " + limit);
+        }
+        if (limit == 0) {
+            classLimits.remove(tool);
+        } else {
+            classLimits.put(tool, limit);
+        }
+        dispatch();
+        return this;
+    }
+
+    /**
+     * Wait for a permit
+     * @param caller who is asking, launches of different callers in the same lane take turns
+     * @param tool tool class name
+     * @param priority lane to wait in
+     * @return the permit, give it back with Permit#release()
+     * @throws InterruptedException interrupted while queued, nothing is held then
+     */
+    public Permit acquire(String caller, String tool, Priority priority) throws InterruptedException {
+        Ticket ticket = new Ticket(caller, tool, priority);
+        synchronized (this) {
+            ArrayDeque<Ticket> queue = lanes.get(priority.ordinal()).get(caller);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                lanes.get(priority.ordinal()).put(caller, queue);
+            }
+            queue.add(ticket);
+            queued++;
+            increment(queuedByTool, tool, 1);
+            maxQueued = Math.max(maxQueued, queued);
+            dispatch();
+            try {
+                while (!ticket.granted) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                if (ticket.granted) {
+                    finish(ticket);
+                } else {
+                    dequeue(ticket);
+                }
+                throw e;
+            }
+        }
+        long waited = System.nanoTime() - ticket.enqueued;
+        waitTime.record(waited);
+        return new Permit(ticket, waited);
+    }
+
+    /**
+     * Run something under a permit
+     * @param caller
+     * @param tool tool class name
+     * @param priority
+     * @param launch eg a DebuggableToolHelpers#runCommandDirectForResult call
+     * @return what launch returned
+     * @throws Exception what launch threw, or InterruptedException while queued
+     */
+    public <T> T call(String caller, String tool, Priority priority, Callable<T> launch) throws Exception {
+        Permit permit = acquire(caller, tool, priority);
+        try {
+            return launch.call();
+        } finally {
+            permit.release();
+        }
+    }
+
+    private synchronized void finish(Ticket ticket) {
+        running--;
+        increment(runningByTool, ticket.tool, -1);
+        dispatch();
+    }
+
+    private void dequeue(Ticket ticket) {
+        LinkedHashMap<String, ArrayDeque<Ticket>> lane = lanes.get(ticket.priority.ordinal());
+        ArrayDeque<Ticket> queue = lane.get(ticket.caller);
+        if (queue != null && queue.remove(ticket)) {
+            if (queue.isEmpty()) {
+                lane.remove(ticket.caller);
+            }
+            queued--;
+            increment(queuedByTool, ticket.tool, -1);
+        }
+        // the launch may have been holding up others of lower lanes behind a class limit
+        dispatch();
+    }
+
+    /**
+     * Hand out as many permits as the limits allow. Called with the lock held.
+     */
+    private void dispatch() {
+        boolean any = false;
+        while (running < globalLimit) {
+            Ticket next = null;
+            for (LinkedHashMap<String, ArrayDeque<Ticket>> lane : lanes) {
+                next = takeNext(lane);
+                if (next != null) {
+                    break;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            next.granted = true;
+            running++;
+            granted++;
+            queued--;
+            increment(queuedByTool, next.tool, -1);
+            increment(runningByTool, next.tool, 1);
+            any = true;
+        }
+        if (any) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * First launch in the lane whose tool is under its limit, taking callers in turn
+     */
+    private Ticket takeNext(LinkedHashMap<String, ArrayDeque<Ticket>> lane) {
+        for (Map.Entry<String, ArrayDeque<Ticket>> entry : lane.entrySet()) {
+            ArrayDeque<Ticket> queue = entry.getValue();
+            for (Iterator<Ticket> it = queue.iterator(); it.hasNext(); ) {
+                Ticket ticket = it.next();
+                if (get(runningByTool, ticket.tool) < getClassLimit(ticket.tool)) {
+                    it.remove();
+                    String caller = entry.getKey();
+                    lane.remove(caller);
+                    if (!queue.isEmpty()) {
+                        // to the back of the line
+                        lane.put(caller, queue);
+                    }
+                    return ticket;
+                }
+            }
+        }
+        return null;
+    }
+
+    private int getClassLimit(String tool) {
+        Integer limit = classLimits.get(tool);
+        return limit == null ? defaultClassLimit : limit;
+    }
+
+    private static int get(Map<String, Integer> counts, String tool) {
+        Integer count = counts.get(tool);
+        return count == null ? 0 : count;
+    }
+
+    private static void increment(Map<String, Integer> counts, String tool, int by) {
+        int count = get(counts, tool) + by;
+        if (count == 0) {
+            counts.remove(tool);
+        } else {
+            counts.put(tool, count);
+        }
+    }
+
+    /**
+     * Launches waiting for a permit
+     * @return
+     */
+    public synchronized int getQueueDepth() {
+        return queued;
+    }
+
+    public synchronized int getQueueDepth(Priority priority) {
+        int depth = 0;
+        for (ArrayDeque<Ticket> queue : lanes.get(priority.ordinal()).values()) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Launches holding a permit
+     * @return
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * Copy the current state out
+     * @return
+     */
+    public synchronized Snapshot snapshot() {
+        SortedMap<Priority, Integer> byLane = new TreeMap<>();
+        for (Priority priority : Priority.values()) {
+            byLane.put(priority, getQueueDepth(priority));
+        }
+        return new Snapshot(running, queued, maxQueued, granted,
+                Collections.unmodifiableSortedMap(byLane),
+                Collections.unmodifiableSortedMap(new TreeMap<>(runningByTool)),
+                Collections.unmodifiableSortedMap(new TreeMap<>(queuedByTool)),
+                waitTime.snapshot());
+    }
+
+    /**
+     * Render a snapshot as "scheduler.metric value" lines, the same format as ToolMetrics#export
+     * @param out
+     * @throws IOException
+     */
+    public void export(Writer out) throws IOException {
+        Snapshot s = snapshot();
+        line(out, "running", s.getRunning());
+        line(out, "queued", s.getQueued());
+        line(out, "queued_max", s.getMaxQueued());
+        line(out, "granted", s.getGranted());
+        for (Map.Entry<Priority, Integer> e : s.getQueuedByPriority().entrySet()) {
+            line(out, "queued." + e.getKey().name().toLowerCase(), e.getValue());
+        }
+        for (Map.Entry<String, Integer> e : s.getRunningByTool().entrySet()) {
+            line(out, "running." + e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, Integer> e : s.getQueuedByTool().entrySet()) {
+            line(out, "queued." + e.getKey(), e.getValue());
+        }
+        ToolMetrics.HistogramSnapshot wait = s.getWaitTime();
+        line(out, "wait_ns.count", wait.getCount());
+        if (wait.getCount() > 0) {
+            line(out, "wait_ns.p50", wait.getPercentile(0.50));
+            line(out, "wait_ns.p99", wait.getPercentile(0.99));
+            line(out, "wait_ns.max", wait.getMax());
+        }
+        out.flush();
+    }
+
+    public String export() {
+        StringWriter out = new StringWriter();
+        try {
+            export(out);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
+        }
+        return out.toString();
+    }
+
+    private static void line(Writer out, String metric, long value) throws IOException {
+        out.write("scheduler." + metric + " " + value + "\n");
+    }
+
+    private static class Ticket {
+        final String caller;
+        final String tool;
+        final Priority priority;
+        final long enqueued = System.nanoTime();
+        boolean granted = false;
+
+        Ticket(String caller, String tool, Priority priority) {
+            this.caller = caller;
+            this.tool = tool;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Permission to run one launch
+     */
+    public class Permit {
+        private final Ticket ticket;
+        private final long waitNanos;
+        private boolean released = false;
+
+        private Permit(Ticket ticket, long waitNanos) {
+            this.ticket = ticket;
+            this.waitNanos = waitNanos;
+        }
+
+        /**
+         * Give the permit back, letting the next launch start. Only the first call counts.
+         */
+        public void release() {
+            synchronized (ToolScheduler.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                finish(ticket);
+            }
+        }
+
+        /**
+         * How long the launch was queued
+         * @return
+         */
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+    }
+
+    /**
+     * Point-in-time copy of the scheduler's state
+     */
+    public static class Snapshot {
+        private final int running;
+        private final int queued;
+        private final int maxQueued;
+        private final long granted;
+        private final SortedMap<Priority, Integer> queuedByPriority;
+        private final SortedMap<String, Integer> runningByTool;
+        private final SortedMap<String, Integer> queuedByTool;
+        private final ToolMetrics.HistogramSnapshot waitTime;
+
+        Snapshot(int running, int queued, int maxQueued, long granted, SortedMap<Priority, Integer> queuedByPriority,
+                 SortedMap<String, Integer> runningByTool, SortedMap<String, Integer> queuedByTool,
+                 ToolMetrics.HistogramSnapshot waitTime) {
+            this.running = running;
+            this.queued = queued;
+            this.maxQueued = maxQueued;
+            this.granted = granted;
+            this.queuedByPriority = queuedByPriority;
+            this.runningByTool = runningByTool;
+            this.queuedByTool = queuedByTool;
+            this.waitTime = waitTime;
+        }
+
+        public int getRunning() {
+            return running;
+        }
+
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * Deepest the queue has been
+         * @return
+         */
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+
+        /**
+         * Permits handed out so far
+         * @return
+         */
+        public long getGranted() {
+            return granted;
+        }
+
+        public SortedMap<Priority, Integer> getQueuedByPriority() {
+            return queuedByPriority;
+        }
+
+        public SortedMap<String, Integer> getRunningByTool() {
+            return runningByTool;
+        }
+
+        public SortedMap<String, Integer> getQueuedByTool() {
+            return queuedByTool;
+        }
+
+        /**
+         * Time launches spent queued
+         * @return
+         */
+        public ToolMetrics.HistogramSnapshot getWaitTime() {
+            return waitTime;
+        }
+    }
+}
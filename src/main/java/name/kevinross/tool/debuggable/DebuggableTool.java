@@ -9,6 +9,11 @@ import android.os.Looper;
 import android.os.Process;
 import android.os.UserHandle;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -16,8 +21,10 @@ import java.util.List;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import name.kevinross.tool.AbstractTool;
+import name.kevinross.tool.CancellationToken;
 import name.kevinross.tool.R;
 import name.kevinross.tool.ReflectionUtil;
+import name.kevinross.tool.ToolIndex;
 import name.kevinross.tool.nativehelpers.NativeToolHelpers;
 
 /**
@@ -35,7 +42,54 @@ import name.kevinross.tool.nativehelpers.NativeToolHelpers;
  *
  */
 public class DebuggableTool {
+    // exit codes for the fatal paths so callers can tell them apart from each other and from the tool's
+    public static final int EXIT_USAGE = 1;
+    public static final int EXIT_CLASS_NOT_FOUND = 2;
+    public static final int EXIT_BAD_IMPLEMENTATION = 3;
+    public static final int EXIT_BAD_CTOR = 4;
+    public static final int EXIT_CTOR_VISIBILITY = 5;
+    public static final int EXIT_UNKNOWN = 6;
+    // the watchdog killed a tool that didn't stop after being cancelled
+    public static final int EXIT_TIMEOUT = 7;
+    public static final int EXIT_CANCELLED = 8;
+
+    /**
+     * Prefixes lines the launcher reports back to the caller ("key value"), they're taken out of
+     * the tool's output by DebuggableToolHelpers and end up in ToolResult#getReports()
+     */
+    public static final String REPORT_MARKER = "\u0000report ";
+    /**
+     * Report key: where the method trace of a profiled run (-P) was written
+     */
+    public static final String REPORT_TRACE = "trace";
+
+    // sampling defaults for -P, those of the framework's method tracing
+    public static final int DEFAULT_PROFILE_INTERVAL_US = 1000;
+    public static final int DEFAULT_PROFILE_BUFFER_BYTES = 8 * 1024 * 1024;
+
+    // how long a cancelled tool gets to wind down before it's killed (-G)
+    public static final long DEFAULT_GRACE_MILLIS = 5000;
+
+    private static final OptionParser parser = new OptionParser("DFI:C:P:S:B:H:O:A:W:T:G:b:f:az:U");
+
     private static Context ourContext = null;
+    // the in-process fork server stand-in runs tools on its own threads, nothing may be killed then
+    private static volatile boolean sharedProcess = false;
+    private static ExitHandler exitHandler = new ExitHandler() {
+        @Override
+        public void exit(int code) {
+            System.exit(code);
+        }
+    };
+
+    /**
+     * Where the launcher's exits go. The fork server swaps this out to report exit codes over its
+     * socket before the process goes away. Implementations must not return.
+     */
+    interface ExitHandler {
+        void exit(int code);
+    }
+
     /**
      * Call the main method for a class, does sanity checks to make sure it can be loaded
      *
@@ -46,7 +100,18 @@ public class DebuggableTool {
      * @param args
      */
     public static void main(String[] args) {
-        // set up runtime
+        ActivityThread activityThread = bootstrap();
+        if (activityThread == null) {
+            return;
+        }
+        launch(activityThread, args);
+    }
+
+    /**
+     * Set up the runtime: looper, system ActivityThread and the context of the containing package
+     * @return the activity thread, null if the package context couldn't be created
+     */
+    static ActivityThread bootstrap() {
         Looper.prepare();
         ActivityThread activityThread = ActivityThread.systemMain();
         Context mSystemContext = activityThread.getSystemContext();
@@ -55,17 +120,28 @@ public class DebuggableTool {
             ourContext = mSystemContext.createPackageContext(NativeToolHelpers.getCurrentProcessPackageName(), Context.CONTEXT_IGNORE_SECURITY);
         } catch (PackageManager.NameNotFoundException e) {
             e.printStackTrace();
-            return;
+            return null;
         }
         if (ourContext == null) {
             System.out.println("context is null");
-            return;
+            return null;
         }
+        return activityThread;
+    }
+
+    /**
+     * Validate, instantiate and run the tool named in args in an already bootstrapped runtime
+     * @param activityThread from #bootstrap(), may be null when running outside of android
+     * @param args launcher options, "--", tool class and tool arguments
+     */
+    static void launch(ActivityThread activityThread, String[] args) {
         if (args.length == 0) {
             usage();
         }
-        OptionParser parser = new OptionParser("DF");
-        OptionSet opts = parser.parse(args);
+        OptionSet opts;
+        synchronized (parser) {
+            opts = parser.parse(args);
+        }
         List<?> other = opts.nonOptionArguments();
         if (other.size() == 0) {
             usage();
@@ -83,31 +159,37 @@ public class DebuggableTool {
             DebugMyself();
         }
 
-        Class mainClass = null;
+        ToolIndex.Entry mainClass = null;
         try {
-            mainClass = Class.forName(classPath);
+            mainClass = ToolIndex.get(classPath);
         } catch (ClassNotFoundException e) {
-            fatal(String.format(ourContext.getString(R.string.error_class_not_found), classPath));
-        }
-
-        if (!mainClass.getSuperclass().equals(AbstractTool.class)) {
-            fatal(R.string.error_bad_implementation);
+            fatal(String.format(getString(R.string.error_class_not_found), classPath), EXIT_CLASS_NOT_FOUND);
+        } catch (ToolIndex.InvalidToolException e) {
+            switch (e.getReason()) {
+                case NO_DEFAULT_CTOR:
+                    fatal(R.string.error_bad_ctor, EXIT_BAD_CTOR);
+                    break;
+                case CTOR_NOT_ACCESSIBLE:
+                    fatal(R.string.error_ctor_visibility, EXIT_CTOR_VISIBILITY);
+                    break;
+                default:
+                    fatal(R.string.error_bad_implementation, EXIT_BAD_IMPLEMENTATION);
+            }
         }
 
         AbstractTool tool = null;
         try {
-            tool = ReflectionUtil.invokes().on(mainClass.asSubclass(AbstractTool.class)).getNewInstance();
-        } catch (NoSuchMethodException e) {
-            fatal(R.string.error_bad_ctor);
-        } catch (IllegalAccessException e) {
-            fatal(R.string.error_ctor_visibility);
+            tool = mainClass.newInstance();
         } catch (ReflectiveOperationException e) {
             e.printStackTrace();
-            fatal(R.string.error_unknown);
+            fatal(R.string.error_unknown, EXIT_UNKNOWN);
         }
         if (theirargs.size() > 0) {
             tool.setArgs(theirargs.toArray(new String[theirargs.size()]));
         }
+        if (opts.has("I")) {
+            tool.setInput(new File(opts.valueOf("I").toString()));
+        }
         setProcessName(tool.getAppName());
         tool.setActivityThread(activityThread);
         tool.setContext(ourContext);
@@ -115,18 +197,161 @@ public class DebuggableTool {
             tool.setWaitForDebugger(true);
             DebuggableToolNative.StartDebugger();
         }
-        tool.start();
+        if (opts.has("C")) {
+            startDebugControl(opts.valueOf("C").toString(), willDebug || opts.has("F"), tool.getCancellationToken());
+        }
+        if ((opts.has("b") || opts.has("z")) && !sharedProcess) {
+            installOutput(opts);
+        }
+        Thread watchdog = null;
+        if (!sharedProcess) {
+            // no timeout while someone is stepping through the tool
+            long timeout = opts.has("T") && !willDebug ? Long.parseLong(opts.valueOf("T").toString()) : 0;
+            long grace = opts.has("G") ? Long.parseLong(opts.valueOf("G").toString()) : DEFAULT_GRACE_MILLIS;
+            watchdog = Watchdog.start(tool.getCancellationToken(), timeout, grace);
+        }
+        if (opts.has("H")) {
+            HeapDiagnostics.dumpHeapOnExit(opts.valueOf("H").toString());
+        }
+        if (opts.has("O")) {
+            HeapDiagnostics.dumpHeapOnOutOfMemory(opts.valueOf("O").toString());
+        }
+        String allocationSummary = opts.has("A") ? opts.valueOf("A").toString() : null;
+        if (allocationSummary != null) {
+            long window = opts.has("W") ? Long.parseLong(opts.valueOf("W").toString()) : 0;
+            if (window > 0) {
+                HeapDiagnostics.trackAllocationsFor(window, allocationSummary);
+                allocationSummary = null;
+            } else {
+                HeapDiagnostics.startAllocationTracking();
+            }
+        }
+        try {
+            if (opts.has("P")) {
+                int interval = opts.has("S") ? Integer.parseInt(opts.valueOf("S").toString()) : DEFAULT_PROFILE_INTERVAL_US;
+                int buffer = opts.has("B") ? Integer.parseInt(opts.valueOf("B").toString()) : DEFAULT_PROFILE_BUFFER_BYTES;
+                startProfiled(tool, opts.valueOf("P").toString(), interval, buffer);
+            } else {
+                tool.start();
+            }
+        } finally {
+            if (watchdog != null) {
+                watchdog.interrupt();
+            }
+            if (allocationSummary != null) {
+                // tracked for the whole run
+                HeapDiagnostics.writeAllocationSummary(HeapDiagnostics.stopAllocationTracking(), allocationSummary);
+            }
+            HeapDiagnostics.runExitDump();
+            // only for callers that take report lines out of the output (-U), it's junk to anyone else
+            if (opts.has("U") && !sharedProcess) {
+                report(ResourceUsage.REPORT_KEY, ResourceUsage.readSelf().encode());
+            }
+            ToolOutput.flushInstalled();
+        }
+    }
+
+    /**
+     * Buffered stdout for -b, compressed above a threshold for -z. Compression needs the buffer,
+     * deflating line by line would undo it.
+     */
+    private static void installOutput(OptionSet opts) {
+        int bufferBytes = opts.has("b") ? Integer.parseInt(opts.valueOf("b").toString()) : ToolOutput.DEFAULT_BUFFER_BYTES;
+        String flush = opts.has("f") ? opts.valueOf("f").toString() : "full";
+        ToolOutput.FlushPolicy policy = ToolOutput.parsePolicy(flush);
+        long interval = policy == ToolOutput.FlushPolicy.INTERVAL ? Long.parseLong(flush) : 0;
+        if (opts.has("z")) {
+            OutputStream encoder = new OutputCompression.Encoder(new FileOutputStream(FileDescriptor.out), Long.parseLong(opts.valueOf("z").toString()));
+            if (policy == ToolOutput.FlushPolicy.LINE) {
+                policy = ToolOutput.FlushPolicy.FULL;
+            }
+            ToolOutput.install(encoder, bufferBytes, policy, interval, opts.has("a"));
+            // stderr shares the pipe, it has to go through the same stream or it breaks the deflate one
+            System.setErr(System.out);
+        } else {
+            ToolOutput.install(bufferBytes, policy, interval, opts.has("a"));
+        }
+    }
+
+    /**
+     * Run the tool under sampling method tracing. The trace is only complete if the tool returns
+     * from #start(), a tool that exits the process itself leaves a truncated one.
+     */
+    private static void startProfiled(AbstractTool tool, String tracePath, int intervalUs, int bufferBytes) {
+        // Debug puts relative paths in the app's external files dir and adds the extension itself
+        String path = new File(tracePath).getAbsolutePath();
+        if (!path.endsWith(".trace")) {
+            path += ".trace";
+        }
+        Debug.startMethodTracingSampling(path, bufferBytes, intervalUs);
+        try {
+            tool.start();
+        } finally {
+            Debug.stopMethodTracing();
+            report(REPORT_TRACE, path);
+        }
+    }
+
+    /**
+     * Tell the caller something out of band, on stdout
+     * @param key
+     * @param value single line
+     */
+    static void report(String key, String value) {
+        System.out.println(REPORT_MARKER + key + " " + value);
+        System.out.flush();
+    }
+
+    /**
+     * Listen for DebuggerControl commands; the launching app's uid may connect
+     */
+    private static void startDebugControl(String socketName, boolean alreadyStarted, CancellationToken cancellation) {
+        // when -D/-F started it already "stop" takes it down
+        DebuggerControl control = new DebuggerControl(DebuggerControl.nativeBackend(), alreadyStarted);
+        control.setCancellationToken(cancellation);
+        int allowedUid = ourContext == null ? 0 : ourContext.getApplicationInfo().uid;
+        try {
+            control.serveInBackground(socketName, allowedUid);
+        } catch (IOException e) {
+            // the tool still runs, just without the control channel
+            e.printStackTrace();
+        }
+    }
+
+    static ExitHandler getExitHandler() {
+        return exitHandler;
+    }
+
+    static void setExitHandler(ExitHandler handler) {
+        exitHandler = handler;
+    }
+
+    static void setSharedProcess(boolean shared) {
+        sharedProcess = shared;
+    }
+
+    static void exit(int code) {
+        // buffered output (-b) goes out before the process does
+        ToolOutput.flushInstalled();
+        exitHandler.exit(code);
     }
 
     private static void usage() {
-        fatal(ourContext.getString(R.string.tool_usage));
+        fatal(getString(R.string.tool_usage), EXIT_USAGE);
     }
-    private static void fatal(String reason) {
+    private static void fatal(String reason, int exitCode) {
         System.err.println(reason);
-        System.exit(1);
+        exit(exitCode);
+    }
+    private static void fatal(int reasoncode, int exitCode) {
+        fatal(getString(reasoncode), exitCode);
     }
-    private static void fatal(int reasoncode) {
-        fatal(ourContext.getString(reasoncode));
+    private static String getString(int id) {
+        if (ourContext == null) {
+            // bootstrapped without android resources (the fork server's JVM stand-in)
+            return "DebuggableTool error " + id;
+        }
+        return ourContext.getString(id);
     }
 
     private static void DebugMyself() {
@@ -2,11 +2,25 @@ package name.kevinross.tool.debuggable;
 
 import android.app.ActivityThread;
 import android.content.Context;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import dalvik.system.DexFile;
 import eu.chainfire.libsuperuser.Shell;
@@ -22,6 +36,8 @@ import joptsimple.OptionSet;
  * would also need to make sure the passed class has a psv main method app_process could execute.
  */
 public class DebuggableToolHelpers {
+    private static final OptionParser parser = new OptionParser("t:p:c:d");
+
     /**
      * Get a string suitable to run the given tool on the command line, given appropriate CLASSPATH has been set
      * @param clazz main class implementing AbstractTool
@@ -40,14 +56,76 @@ public class DebuggableToolHelpers {
      * @return command line usable from the shell or chainfire su API
      */
     public static String getCommandLineForMainClass(String clazz, boolean waitForDebug, String... args) {
+        return getCommandLineForMainClass(clazz, waitForDebug, (File) null, args);
+    }
+
+    /**
+     * @see #getCommandLineForMainClass(String, boolean, String...)
+     * @param clazz main class implementing AbstractTool
+     * @param waitForDebug wait for the debugger
+     * @param input payload file the tool reads via AbstractTool#getInput(), may be null
+     * @param args arguments for the tool
+     * @return command line usable from the shell or chainfire su API
+     */
+    public static String getCommandLineForMainClass(Class clazz, boolean waitForDebug, File input, String... args) {
+        return getCommandLineForMainClass(clazz.getCanonicalName(), waitForDebug, input, args);
+    }
+
+    /**
+     * @see #getCommandLineForMainClass(String, boolean, String...)
+     * @param clazz main class implementing AbstractTool
+     * @param waitForDebug wait for the debugger
+     * @param input payload file the tool reads via AbstractTool#getInput(), may be null
+     * @param args arguments for the tool
+     * @return command line usable from the shell or chainfire su API
+     */
+    public static String getCommandLineForMainClass(String clazz, boolean waitForDebug, File input, String... args) {
+        return getCommandLineForMainClass(clazz, waitForDebug, input, Collections.<String>emptyList(), args);
+    }
+
+    /**
+     * @see #getCommandLineForMainClass(String, boolean, String...)
+     * @param clazz main class implementing AbstractTool
+     * @param waitForDebug wait for the debugger
+     * @param input payload file the tool reads via AbstractTool#getInput(), may be null
+     * @param options further DebuggableTool options, eg ["-C", "socket"]
+     * @param args arguments for the tool
+     * @return command line usable from the shell or chainfire su API
+     */
+    public static String getCommandLineForMainClass(String clazz, boolean waitForDebug, File input, List<String> options, String... args) {
+        return getCommandLineForMainClass(clazz, waitForDebug, input, options, null, args);
+    }
+
+    /**
+     * @see #getCommandLineForMainClass(String, boolean, String...)
+     * @param clazz main class implementing AbstractTool
+     * @param waitForDebug wait for the debugger
+     * @param input payload file the tool reads via AbstractTool#getInput(), may be null
+     * @param options further DebuggableTool options, eg ["-C", "socket"]
+     * @param vmOptions runtime options for app_process, may be null
+     * @param args arguments for the tool
+     * @return command line usable from the shell or chainfire su API
+     */
+    public static String getCommandLineForMainClass(String clazz, boolean waitForDebug, File input, List<String> options, LaunchOptions vmOptions, String... args) {
         StringBuilder cmdLine = new StringBuilder();
         cmdLine.append("app_process ");
+        if (vmOptions != null) {
+            for (String o : vmOptions.toArguments()) {
+                cmdLine.append(String.format("'%s' ", o));
+            }
+        }
         cmdLine.append("/ ");
         cmdLine.append(DebuggableTool.class.getName());
         cmdLine.append(" ");
         if (waitForDebug) {
             cmdLine.append("-D ");
         }
+        if (input != null) {
+            cmdLine.append(String.format("-I '%s' ", input.getAbsolutePath()));
+        }
+        for (String o : options) {
+            cmdLine.append(String.format("'%s' ", o));
+        }
         cmdLine.append("-- ");
         cmdLine.append(clazz);
         for (String a : args) {
@@ -56,6 +134,99 @@ public class DebuggableToolHelpers {
         return cmdLine.toString();
     }
 
+    /**
+     * Get the argument vector to run the given tool directly (without an intermediate shell),
+     * given appropriate CLASSPATH has been set in the environment
+     * @param clazz main class implementing AbstractTool
+     * @param waitForDebug wait for the debugger
+     * @param args arguments for the tool
+     * @return argv usable with ProcessBuilder {@see #runCommandDirect}
+     */
+    public static List<String> getArgvForMainClass(Class clazz, boolean waitForDebug, String... args) {
+        return getArgvForMainClass(clazz.getCanonicalName(), waitForDebug, args);
+    }
+
+    /**
+     * @see #getArgvForMainClass(Class, boolean, String...)
+     * @param clazz main class implementing AbstractTool
+     * @param waitForDebug wait for the debugger
+     * @param args arguments for the tool
+     * @return argv usable with ProcessBuilder
+     */
+    public static List<String> getArgvForMainClass(String clazz, boolean waitForDebug, String... args) {
+        return getArgvForMainClass(clazz, waitForDebug, (File) null, args);
+    }
+
+    /**
+     * @see #getArgvForMainClass(Class, boolean, String...)
+     * @param clazz main class implementing AbstractTool
+     * @param waitForDebug wait for the debugger
+     * @param input payload file the tool reads via AbstractTool#getInput(), may be null
+     * @param args arguments for the tool
+     * @return argv usable with ProcessBuilder
+     */
+    public static List<String> getArgvForMainClass(Class clazz, boolean waitForDebug, File input, String... args) {
+        return getArgvForMainClass(clazz.getCanonicalName(), waitForDebug, input, args);
+    }
+
+    /**
+     * @see #getArgvForMainClass(Class, boolean, String...)
+     * @param clazz main class implementing AbstractTool
+     * @param waitForDebug wait for the debugger
+     * @param input payload file the tool reads via AbstractTool#getInput(), may be null
+     * @param args arguments for the tool
+     * @return argv usable with ProcessBuilder
+     */
+    public static List<String> getArgvForMainClass(String clazz, boolean waitForDebug, File input, String... args) {
+        return getArgvForMainClass(clazz, waitForDebug, input, Collections.<String>emptyList(), args);
+    }
+
+    /**
+     * @see #getArgvForMainClass(Class, boolean, String...)
+     * @param clazz main class implementing AbstractTool
+     * @param waitForDebug wait for the debugger
+     * @param input payload file the tool reads via AbstractTool#getInput(), may be null
+     * @param options further DebuggableTool options, eg ["-C", "socket"]
+     * @param args arguments for the tool
+     * @return argv usable with ProcessBuilder
+     */
+    public static List<String> getArgvForMainClass(String clazz, boolean waitForDebug, File input, List<String> options, String... args) {
+        return getArgvForMainClass(clazz, waitForDebug, input, options, null, args);
+    }
+
+    /**
+     * @see #getArgvForMainClass(Class, boolean, String...)
+     * @param clazz main class implementing AbstractTool
+     * @param waitForDebug wait for the debugger
+     * @param input payload file the tool reads via AbstractTool#getInput(), may be null
+     * @param options further DebuggableTool options, eg ["-C", "socket"]
+     * @param vmOptions runtime options for app_process, may be null
+     * @param args arguments for the tool
+     * @return argv usable with ProcessBuilder
+     */
+    public static List<String> getArgvForMainClass(String clazz, boolean waitForDebug, File input, List<String> options, LaunchOptions vmOptions, String... args) {
+        List<String> argv = new ArrayList<>();
+        argv.add("app_process");
+        if (vmOptions != null) {
+            argv.addAll(vmOptions.toArguments());
+        }
+        argv.add("/");
+        argv.add(DebuggableTool.class.getName());
+        if (waitForDebug) {
+            argv.add("-D");
+        }
+        if (input != null) {
+            argv.add("-I");
+            argv.add(input.getAbsolutePath());
+        }
+        argv.addAll(options);
+        argv.add("--");
+        argv.add(clazz);
+        // no quoting needed: each argument is handed to exec as-is
+        argv.addAll(Arrays.asList(args));
+        return argv;
+    }
+
     /**
      * Return a shell script suitable to call the given class in the given dex. If args is empty,
      * args will be $@ and parameters passed to the script will be given to the class
@@ -196,7 +367,7 @@ public class DebuggableToolHelpers {
         String shell = "sh";
         if (su) {
             if (!Shell.SU.available()) {
-                throw new RuntimeException("su not available!");
+                throw new SuUnavailableException();
             }
             shell = "su";
         }
@@ -218,7 +389,7 @@ public class DebuggableToolHelpers {
         String shell = "sh";
         if (su) {
             if (!Shell.SU.available()) {
-                throw new RuntimeException("su not available!");
+                throw new SuUnavailableException();
             }
             shell = "su";
         }
@@ -240,6 +411,395 @@ public class DebuggableToolHelpers {
         return thread;
     }
 
+    /**
+     * Get a ProcessBuilder that execs app_process directly with the given argv and the CLASSPATH
+     * pointing at the given dex. stderr is merged into stdout to match the shell path.
+     * @param codePath path to dex file
+     * @param argv argument vector {@see #getArgvForMainClass}
+     * @return configured, unstarted builder
+     */
+    public static ProcessBuilder getProcessBuilder(String codePath, List<String> argv) {
+        ProcessBuilder builder = new ProcessBuilder(argv);
+        builder.environment().put("CLASSPATH", codePath);
+        builder.redirectErrorStream(true);
+        return builder;
+    }
+
+    /**
+     * Run a tool without an intermediate shell. Only usable for non-root launches: su needs a
+     * shell to run the command in.
+     * @param codePath path to dex file
+     * @param argv argument vector {@see #getArgvForMainClass}
+     * @return command output
+     */
+    public static List<String> runCommandDirect(String codePath, List<String> argv) {
+        return runCommandDirectForResult(codePath, argv).getOutput();
+    }
+
+    public static List<String> runCommandDirect(Context ctx, List<String> argv) {
+        return runCommandDirect(ctx.getPackageCodePath(), argv);
+    }
+
+    public static List<String> runCommandDirect(List<String> argv) {
+        return runCommandDirect(ActivityThread.currentActivityThread().getApplication().getPackageCodePath(), argv);
+    }
+
+    public static Thread runCommandDirectInBackground(final String codePath, final List<String> argv) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runCommandDirectForResult(codePath, argv);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    public static Thread runCommandDirectInBackground(Context ctx, List<String> argv) {
+        return runCommandDirectInBackground(ctx.getPackageCodePath(), argv);
+    }
+
+    public static Thread runCommandDirectInBackground(List<String> argv) {
+        return runCommandDirectInBackground(ActivityThread.currentActivityThread().getApplication().getPackageCodePath(), argv);
+    }
+
+    /**
+     * Run a tool without an intermediate shell and collect its output lines, exit code and the
+     * wall-clock time from exec to exit
+     * @param codePath path to dex file
+     * @param argv argument vector {@see #getArgvForMainClass}
+     * @return output, exit code and timing
+     */
+    public static ToolResult runCommandDirectForResult(String codePath, List<String> argv) {
+        return runCommandDirectForResult(codePath, argv, null);
+    }
+
+    /**
+     * Run a tool without an intermediate shell, streaming a payload into its stdin. The tool reads
+     * it with AbstractTool#getInput() or AbstractTool#getInputBuffer(), so its size is bounded by
+     * memory instead of ARG_MAX.
+     * @param codePath path to dex file
+     * @param argv argument vector {@see #getArgvForMainClass}
+     * @param stdin payload for the tool, may be null; it is read to the end but not closed
+     * @return output, exit code and timing
+     */
+    public static ToolResult runCommandDirectForResult(String codePath, List<String> argv, InputStream stdin) {
+        return runCommandDirectForResult(codePath, argv, stdin, 0);
+    }
+
+    /**
+     * @see #runCommandDirectForResult(String, List, InputStream)
+     * @param codePath path to dex file
+     * @param argv argument vector {@see #getArgvForMainClass}
+     * @param stdin payload for the tool, may be null; it is read to the end but not closed
+     * @param killAfterMillis kill the tool and everything it started if it's still running after
+     *                        this long, 0 to wait for as long as it takes. A backstop for the
+     *                        tool's own watchdog (DebuggableTool -T), so leave that time to act.
+     * @return output, exit code (the signal's exit status if it was killed) and timing
+     */
+    public static ToolResult runCommandDirectForResult(String codePath, List<String> argv, InputStream stdin, long killAfterMillis) {
+        long start = System.nanoTime();
+        long firstOutput = -1;
+        Process process = startProcess(codePath, argv, stdin);
+        Thread killer = killAfterMillis > 0 ? killAfter(process, killAfterMillis) : null;
+        List<String> lines = new ArrayList<>();
+        Map<String, String> reports = new HashMap<>();
+        CountingInputStream counted = new CountingInputStream(process.getInputStream());
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(OutputCompression.decode(counted)));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (firstOutput < 0) {
+                    firstOutput = System.nanoTime() - start;
+                }
+                addLine(line, lines, reports);
+            }
+            reader.close();
+        } catch (IOException e) {
+            process.destroy();
+            throw new RuntimeException(e);
+        } finally {
+            if (killer != null) {
+                killer.interrupt();
+            }
+        }
+        return new ToolResult(lines, waitFor(process), System.nanoTime() - start, firstOutput, counted.count, reports);
+    }
+
+    private static Thread killAfter(final Process process, final long millis) {
+        Thread killer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    // finished in time
+                    return;
+                }
+                ProcessTree.killTree(process);
+            }
+        }, "DebuggableToolHelpers-timeout");
+        killer.setDaemon(true);
+        killer.start();
+        return killer;
+    }
+
+    /**
+     * Run a tool without an intermediate shell, copying its output as the tool wrote it
+     * (decompressed, see OutputCompression) to the given sink (a FileOutputStream to redirect to a
+     * file, for example). The sink is not closed.
+     * @param codePath path to dex file
+     * @param argv argument vector {@see #getArgvForMainClass}
+     * @param sink where the tool's stdout and stderr go
+     * @return exit code and timing, with no output lines
+     */
+    public static ToolResult runCommandDirect(String codePath, List<String> argv, OutputStream sink) {
+        return runCommandDirect(codePath, argv, null, sink);
+    }
+
+    /**
+     * @see #runCommandDirect(String, List, OutputStream)
+     * @param codePath path to dex file
+     * @param argv argument vector {@see #getArgvForMainClass}
+     * @param stdin payload for the tool, may be null; it is read to the end but not closed
+     * @param sink where the tool's stdout and stderr go
+     * @return exit code and timing, with no output lines
+     */
+    public static ToolResult runCommandDirect(String codePath, List<String> argv, InputStream stdin, OutputStream sink) {
+        long start = System.nanoTime();
+        long firstOutput = -1;
+        long total = 0;
+        Process process = startProcess(codePath, argv, stdin);
+        try {
+            InputStream in = OutputCompression.decode(process.getInputStream());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (firstOutput < 0) {
+                    firstOutput = System.nanoTime() - start;
+                }
+                total += read;
+                sink.write(buffer, 0, read);
+            }
+            in.close();
+            sink.flush();
+        } catch (IOException e) {
+            process.destroy();
+            throw new RuntimeException(e);
+        }
+        return new ToolResult(new ArrayList<String>(), waitFor(process), System.nanoTime() - start, firstOutput, total);
+    }
+
+    /**
+     * Run a tool on a running ToolForkServer: the server forks a child off its template if it can,
+     * otherwise starts app_process itself (see ToolForkServer for what either saves). The server
+     * runs as whoever started it, so root tools need a server started as root.
+     * @param socketName the server's socket name (its -s option)
+     * @param argv argument vector {@see #getArgvForMainClass}
+     * @param stdin payload for the tool, may be null; it is read to the end but not closed
+     * @return output, exit code (-1 if the child died without reporting one) and timing
+     */
+    public static ToolResult runCommandOnForkServer(String socketName, List<String> argv, InputStream stdin) {
+        // the server already is app_process running DebuggableTool, it only wants what follows
+        int launcher = argv.indexOf(DebuggableTool.class.getName());
+        List<String> request = argv.subList(launcher + 1, argv.size());
+        long start = System.nanoTime();
+        LocalSocket socket = new LocalSocket();
+        try {
+            socket.connect(new LocalSocketAddress(socketName));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(request.size());
+            for (String arg : request) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            final LocalSocket connection = socket;
+            Closeable endOfInput = new Closeable() {
+                @Override
+                public void close() throws IOException {
+                    // closing the stream would close the socket, the output is still to come
+                    connection.shutdownOutput();
+                }
+            };
+            if (stdin == null) {
+                closeQuietly(endOfInput);
+            } else {
+                feed(stdin, out, endOfInput);
+            }
+            return readForkServerResponse(socket.getInputStream(), start);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * Collect a ToolForkServer response: output and report lines up to the EXIT_MARKER line
+     * @param in the connection
+     * @param start System#nanoTime() the request was sent at
+     * @return output, exit code (-1 if the response ended without one) and timing
+     * @throws IOException
+     */
+    static ToolResult readForkServerResponse(InputStream in, long start) throws IOException {
+        long firstOutput = -1;
+        int exitCode = -1;
+        List<String> lines = new ArrayList<>();
+        Map<String, String> reports = new HashMap<>();
+        CountingInputStream counted = new CountingInputStream(in);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(OutputCompression.decode(counted)));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (firstOutput < 0) {
+                firstOutput = System.nanoTime() - start;
+            }
+            int marker = line.indexOf(ToolForkServer.EXIT_MARKER);
+            if (marker >= 0) {
+                if (marker > 0) {
+                    addLine(line.substring(0, marker), lines, reports);
+                }
+                exitCode = Integer.parseInt(line.substring(marker + ToolForkServer.EXIT_MARKER.length()).trim());
+                break;
+            }
+            addLine(line, lines, reports);
+        }
+        return new ToolResult(lines, exitCode, System.nanoTime() - start, firstOutput, counted.count, reports);
+    }
+
+    /**
+     * Take the launcher's report lines out of a tool's output
+     * @param output output lines, report lines are removed from it
+     * @return reported key -> value
+     */
+    public static Map<String, String> extractReports(List<String> output) {
+        Map<String, String> reports = new HashMap<>();
+        List<String> lines = new ArrayList<>(output.size());
+        for (String line : output) {
+            addLine(line, lines, reports);
+        }
+        output.clear();
+        output.addAll(lines);
+        return reports;
+    }
+
+    /**
+     * Add a line of tool output, or record it if it's a report line. A report can follow output
+     * the tool didn't end with a newline.
+     */
+    private static void addLine(String line, List<String> lines, Map<String, String> reports) {
+        int marker = line.indexOf(DebuggableTool.REPORT_MARKER);
+        if (marker < 0) {
+            lines.add(line);
+            return;
+        }
+        if (marker > 0) {
+            lines.add(line.substring(0, marker));
+        }
+        String report = line.substring(marker + DebuggableTool.REPORT_MARKER.length());
+        int space = report.indexOf(' ');
+        if (space < 0) {
+            reports.put(report, "");
+        } else {
+            reports.put(report.substring(0, space), report.substring(space + 1));
+        }
+    }
+
+    private static Process startProcess(String codePath, List<String> argv, InputStream stdin) {
+        Process process;
+        try {
+            process = getProcessBuilder(codePath, argv).start();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (stdin == null) {
+            closeQuietly(process.getOutputStream());
+        } else {
+            feed(stdin, process.getOutputStream());
+        }
+        return process;
+    }
+
+    /**
+     * Copy the payload into the tool on its own thread so a tool writing output before it has
+     * read all of its input can't deadlock against us
+     */
+    private static void feed(InputStream from, OutputStream to) {
+        feed(from, to, to);
+    }
+
+    /**
+     * @see #feed(InputStream, OutputStream)
+     * @param end closed once the payload is through, to signal the end of the tool's input
+     */
+    private static void feed(final InputStream from, final OutputStream to, final Closeable end) {
+        Thread feeder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = from.read(buffer)) != -1) {
+                        to.write(buffer, 0, read);
+                    }
+                } catch (IOException e) {
+                    // the tool exited without reading everything, nothing to do about it
+                } finally {
+                    closeQuietly(end);
+                }
+            }
+        }, "DebuggableToolHelpers-stdin");
+        feeder.setDaemon(true);
+        feeder.start();
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    private static int waitFor(Process process) {
+        try {
+            return process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Get a command-line for a class or a script for a given dex+class, including debug flag and
      * arguments to pass to the code.
@@ -255,8 +815,10 @@ public class DebuggableToolHelpers {
      * @param args
      */
     public static void main(String[] args) {
-        OptionParser parser = new OptionParser("t:p:c:d");
-        OptionSet opts = parser.parse(args);
+        OptionSet opts;
+        synchronized (parser) {
+            opts = parser.parse(args);
+        }
         // <type> [type==script?<dexpath>] <toolclass> <debug> <args...>
         String type = null, dex = null, toolclass = null;
         boolean debug = false;
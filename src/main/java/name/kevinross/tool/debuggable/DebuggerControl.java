@@ -0,0 +1,289 @@
+package name.kevinross.tool.debuggable;
+
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import name.kevinross.tool.CancellationToken;
+
+/**
+ * Start and stop JDWP in a running tool on request, so long-running tools (#runService) carry no
+ * debugger cost until someone actually wants to attach. The same channel triggers heap dumps and
+ * allocation tracking (HeapDiagnostics).
+ *
+ * A tool launched with AbstractTool#setDebugControl(String) (DebuggableTool -C <socket>) listens on
+ * that abstract local socket. Each line sent is a command, each gets one line back:
+ *
+ *      start   start JDWP; attach with the IDE/adb as for -D         -> "ok started"
+ *      stop    stop JDWP, detaching the debugger if there is one      -> "ok stopped"
+ *      status                                                         -> "ok running attached" etc
+ *      hprof <path>        write a heap dump                          -> "ok <absolute path>"
+ *      alloc-start         start allocation tracking                  -> "ok"
+ *      alloc-stop <path>   stop it, write the per-class summary       -> "ok <absolute path>"
+ *      cancel              cancel the tool's CancellationToken        -> "ok cancelling"
+ *
+ * Anything that goes wrong is answered with a line starting with "error". App-side, #send(String,
+ * String) does the round trip. Only root and the allowed uid may connect.
+ *
+ * The JDWP calls go through a Backend so the command handling can be exercised on a plain JVM with
+ * #stubBackend().
+ */
+public class DebuggerControl {
+    /**
+     * What the commands act on
+     */
+    public interface Backend {
+        /**
+         * @return whether JDWP is running afterwards
+         */
+        boolean start();
+        void stop();
+        boolean isAttached();
+    }
+
+    private final Backend backend;
+    private boolean running = false;
+    private CancellationToken cancellation = null;
+
+    public DebuggerControl(Backend backend) {
+        this(backend, false);
+    }
+
+    /**
+     * @param backend
+     * @param running whether JDWP was already started by other means (eg DebuggableTool -D)
+     */
+    public DebuggerControl(Backend backend, boolean running) {
+        this.backend = backend;
+        this.running = running;
+    }
+
+    /**
+     * Backend for the current process, through DebuggableToolNative (does nothing in release builds)
+     * @return
+     */
+    public static Backend nativeBackend() {
+        return new Backend() {
+            @Override
+            public boolean start() {
+                DebuggableToolNative.StartDebugger();
+                long registry = DebuggableToolNative.getGRegistryState();
+                return registry != 0 && registry != -1;
+            }
+
+            @Override
+            public void stop() {
+                DebuggableToolNative.StopDebugger();
+            }
+
+            @Override
+            public boolean isAttached() {
+                return DebuggableToolNative.IsDebuggerConnected();
+            }
+        };
+    }
+
+    /**
+     * Backend that only keeps track of what it was asked to do
+     * @return
+     */
+    public static StubBackend stubBackend() {
+        return new StubBackend();
+    }
+
+    public static class StubBackend implements Backend {
+        private int starts = 0;
+        private int stops = 0;
+        private boolean attached = false;
+
+        @Override
+        public synchronized boolean start() {
+            starts++;
+            return true;
+        }
+
+        @Override
+        public synchronized void stop() {
+            stops++;
+            attached = false;
+        }
+
+        @Override
+        public synchronized boolean isAttached() {
+            return attached;
+        }
+
+        public synchronized void setAttached(boolean attached) {
+            this.attached = attached;
+        }
+
+        public synchronized int getStarts() {
+            return starts;
+        }
+
+        public synchronized int getStops() {
+            return stops;
+        }
+    }
+
+    /**
+     * Run one command
+     * @param command one of the commands above
+     * @return the reply line
+     */
+    public synchronized String handle(String command) {
+        String[] words = command.trim().split("\\s+", 2);
+        String argument = words.length > 1 ? words[1] : null;
+        switch (words[0]) {
+            case "start":
+                if (running) {
+                    return "ok already running";
+                }
+                running = backend.start();
+                return running ? "ok started" : "error couldn't start jdwp";
+            case "stop":
+                if (!running) {
+                    return "ok not running";
+                }
+                backend.stop();
+                running = false;
+                return "ok stopped";
+            case "status":
+                if (!running) {
+                    return "ok stopped";
+                }
+                return backend.isAttached() ? "ok running attached" : "ok running";
+            case "hprof":
+                if (argument == null) {
+                    return "error hprof needs a path";
+                }
+                try {
+                    return "ok " + HeapDiagnostics.dumpHeap(argument);
+                } catch (IOException e) {
+                    return "error " + e.getMessage();
+                }
+            case "alloc-start":
+                return HeapDiagnostics.startAllocationTracking() ? "ok" : "ok counts only, no allocation records";
+            case "alloc-stop":
+                if (argument == null) {
+                    return "error alloc-stop needs a path";
+                }
+                HeapDiagnostics.AllocationSummary summary = HeapDiagnostics.stopAllocationTracking();
+                if (summary == null) {
+                    return "error allocation tracking not started";
+                }
+                String path = HeapDiagnostics.writeAllocationSummary(summary, argument);
+                return path == null ? "error couldn't write " + argument : "ok " + path;
+            case "cancel":
+                if (cancellation == null) {
+                    return "error nothing to cancel";
+                }
+                return cancellation.cancel("cancelled by caller") ? "ok cancelling" : "ok already cancelled";
+            default:
+                return "error unknown command " + command.trim();
+        }
+    }
+
+    /**
+     * What "cancel" cancels
+     * @param token the running tool's, null if there's nothing to cancel
+     */
+    public synchronized void setCancellationToken(CancellationToken token) {
+        cancellation = token;
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Accept connections and run their commands until the socket fails. Connections are handled
+     * one at a time.
+     * @param server listening socket
+     * @param allowedUid uid allowed to connect besides root
+     */
+    public void serve(LocalServerSocket server, int allowedUid) {
+        Charset utf8 = Charset.forName("UTF-8");
+        while (true) {
+            LocalSocket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            try {
+                Credentials peer = socket.getPeerCredentials();
+                if (peer.getUid() != allowedUid && peer.getUid() != 0) {
+                    System.err.println("DebuggerControl: rejecting uid " + peer.getUid());
+                    continue;
+                }
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), utf8));
+                OutputStream out = socket.getOutputStream();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    out.write((handle(line) + "\n").getBytes(utf8));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // already gone
+                }
+            }
+        }
+    }
+
+    /**
+     * Listen on an abstract socket on a daemon thread
+     * @param socketName
+     * @param allowedUid uid allowed to connect besides root
+     * @return the listening thread
+     * @throws IOException the socket couldn't be created (eg the name is taken)
+     */
+    public Thread serveInBackground(String socketName, final int allowedUid) throws IOException {
+        final LocalServerSocket server = new LocalServerSocket(socketName);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve(server, allowedUid);
+            }
+        }, "DebuggerControl");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * App-side: send one command to a tool's control socket
+     * @param socketName the name given to AbstractTool#setDebugControl(String)
+     * @param command one of the commands in the class description, eg "start" or "hprof /sdcard/tool.hprof"
+     * @return the tool's reply line, starting with "ok" or "error"
+     * @throws IOException the tool isn't listening
+     */
+    public static String send(String socketName, String command) throws IOException {
+        Charset utf8 = Charset.forName("UTF-8");
+        LocalSocket socket = new LocalSocket();
+        try {
+            socket.connect(new LocalSocketAddress(socketName));
+            OutputStream out = socket.getOutputStream();
+            out.write((command + "\n").getBytes(utf8));
+            out.flush();
+            socket.shutdownOutput();
+            String reply = new BufferedReader(new InputStreamReader(socket.getInputStream(), utf8)).readLine();
+            return reply == null ? "error no reply" : reply;
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package name.kevinross.tool.debuggable;
+
+import android.os.Debug;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import name.kevinross.tool.IInvoker;
+import name.kevinross.tool.ReflectionUtil;
+
+/**
+ * Heap dumps and allocation tracking for tool processes, which run without a debugger or DDMS
+ * connection to do either from the outside.
+ *
+ * Heap dumps are hprof files written with Debug#dumpHprofData, on demand, when the run ends or when
+ * the process runs out of memory. DebuggableTool wires these up from -H and -O.
+ *
+ * Allocation tracking counts every allocation between #startAllocationTracking() and
+ * #stopAllocationTracking() (Debug's global counters) and breaks the most recent ones down by class
+ * from the runtime's allocation records, the same data DDMS' allocation tracker shows. The records
+ * are a ring buffer (64k entries by default, dalvik.vm.allocTrackerMax), so the per-class numbers
+ * cover the tail of a busy window while the totals cover all of it.
+ */
+public class HeapDiagnostics {
+    /**
+     * Report key: where a heap dump was written
+     */
+    public static final String REPORT_HPROF = "hprof";
+    /**
+     * Report key: where an allocation summary was written
+     */
+    public static final String REPORT_ALLOCATIONS = "allocations";
+
+    private static final AtomicReference<String> exitDumpPath = new AtomicReference<>();
+    private static boolean tracking = false;
+
+    private HeapDiagnostics() {
+        // static utility
+    }
+
+    /**
+     * Write an hprof heap dump
+     * @param path file to write, made absolute
+     * @return the path written
+     * @throws IOException
+     */
+    public static String dumpHeap(String path) throws IOException {
+        String absolute = new File(path).getAbsolutePath();
+        Debug.dumpHprofData(absolute);
+        return absolute;
+    }
+
+    /**
+     * Dump the heap when the run finishes, whether the tool returns from #start() (call
+     * #runExitDump()) or exits the process itself (shutdown hook). Only the first of the two dumps.
+     * @param path file to write
+     */
+    public static void dumpHeapOnExit(String path) {
+        if (exitDumpPath.getAndSet(path) != null) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runExitDump();
+            }
+        }, "HeapDiagnostics-exit"));
+    }
+
+    /**
+     * Write the exit dump set up with #dumpHeapOnExit(String), if it hasn't been written yet
+     */
+    public static void runExitDump() {
+        String path = exitDumpPath.getAndSet(null);
+        if (path == null) {
+            return;
+        }
+        try {
+            DebuggableTool.report(REPORT_HPROF, dumpHeap(path));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Dump the heap if a thread dies of an OutOfMemoryError, then let the previous default handler
+     * deal with the error as it would have
+     * @param path file to write
+     */
+    public static void dumpHeapOnOutOfMemory(final String path) {
+        final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                if (isOutOfMemory(e)) {
+                    try {
+                        DebuggableTool.report(REPORT_HPROF, dumpHeap(path));
+                    } catch (Throwable dumpFailed) {
+                        // best effort with the heap in this state
+                        dumpFailed.printStackTrace();
+                    }
+                }
+                if (previous != null) {
+                    previous.uncaughtException(t, e);
+                } else {
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+            }
+        });
+    }
+
+    private static boolean isOutOfMemory(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OutOfMemoryError) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Start counting allocations and recording them per class. Any earlier records are dropped.
+     * @return false if the runtime has no allocation records to offer (counts are still kept)
+     */
+    public static synchronized boolean startAllocationTracking() {
+        Debug.resetGlobalAllocCount();
+        Debug.resetGlobalAllocSize();
+        Debug.startAllocCounting();
+        tracking = true;
+        // toggling drops whatever was recorded before
+        setRecentAllocations(false);
+        return setRecentAllocations(true);
+    }
+
+    /**
+     * Stop tracking and summarize what was allocated since #startAllocationTracking()
+     * @return the summary, null if tracking wasn't started
+     */
+    public static synchronized AllocationSummary stopAllocationTracking() {
+        if (!tracking) {
+            return null;
+        }
+        tracking = false;
+        Debug.stopAllocCounting();
+        long count = Debug.getGlobalAllocCount();
+        long bytes = Debug.getGlobalAllocSize();
+        Class<?> ddm = getDdmVmInternal();
+        byte[] records = ddm == null ? null : ReflectionUtil.invokes().on(ddm).name("getRecentAllocations").probe().<byte[]>invoke();
+        setRecentAllocations(false);
+        AllocationSummary summary = records == null ? new AllocationSummary() : parseRecentAllocations(records);
+        summary.totalCount = count;
+        summary.totalBytes = bytes;
+        return summary;
+    }
+
+    /**
+     * Track allocations for a while on a daemon thread, then write the summary and report where it
+     * went
+     * @param windowMillis how long to track
+     * @param summaryPath file to write the summary to
+     * @return the tracking thread
+     */
+    public static Thread trackAllocationsFor(final long windowMillis, final String summaryPath) {
+        startAllocationTracking();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(windowMillis);
+                } catch (InterruptedException e) {
+                    // cut short, summarize what there is
+                }
+                writeAllocationSummary(stopAllocationTracking(), summaryPath);
+            }
+        }, "HeapDiagnostics-alloc");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Write a summary to a file and report where it went
+     * @param summary may be null (tracking wasn't on), nothing is written then
+     * @param path
+     * @return the absolute path written, null if nothing was
+     */
+    public static String writeAllocationSummary(AllocationSummary summary, String path) {
+        if (summary == null) {
+            return null;
+        }
+        String absolute = new File(path).getAbsolutePath();
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(absolute), Charset.forName("UTF-8"));
+            try {
+                summary.writeTo(out);
+            } finally {
+                out.close();
+            }
+            DebuggableTool.report(REPORT_ALLOCATIONS, absolute);
+            return absolute;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static Class<?> getDdmVmInternal() {
+        return ReflectionUtil.findClassByName(ClassLoader.getSystemClassLoader(), "org.apache.harmony.dalvik.ddmc.DdmVmInternal");
+    }
+
+    private static boolean setRecentAllocations(boolean enabled) {
+        Class<?> ddm = getDdmVmInternal();
+        if (ddm == null) {
+            return false;
+        }
+        // the toggle was renamed in later releases
+        for (String name : new String[]{"setRecentAllocationsTrackingEnabled", "enableRecentAllocations"}) {
+            IInvoker.ProbeInterface toggle = ReflectionUtil.invokes().on(ddm).name(name).of(boolean.class).using(enabled).probe();
+            if (toggle.hasMethod()) {
+                toggle.invoke();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tally allocation records by class. The records are a DDMS "REAL" chunk: a header, one entry
+     * per allocation (size, thread, class index, stack) and string tables, big-endian throughout.
+     * A short or corrupt chunk isn't an error: entries are tallied up to the first one that doesn't
+     * fit, and class indexes without a readable name are counted under "?".
+     * @param chunk what DdmVmInternal#getRecentAllocations() returned
+     * @return the summary, without totals
+     */
+    public static AllocationSummary parseRecentAllocations(byte[] chunk) {
+        AllocationSummary summary = new AllocationSummary();
+        if (chunk.length < 15) {
+            return summary;
+        }
+        ByteBuffer data = ByteBuffer.wrap(chunk);
+        int headerLength = data.get(0) & 0xff;
+        int entryHeaderLength = data.get(1) & 0xff;
+        int stackFrameLength = data.get(2) & 0xff;
+        int entries = data.getShort(3) & 0xffff;
+        int stringsOffset = data.getInt(5);
+        int classNameCount = data.getShort(9) & 0xffff;
+        if (headerLength < 15 || entryHeaderLength < 9) {
+            return summary;
+        }
+
+        String[] classNames = readStrings(data, stringsOffset, classNameCount);
+        // entries end where the string tables start, or with the chunk if the offset is off
+        int end = stringsOffset >= headerLength && stringsOffset <= chunk.length ? stringsOffset : chunk.length;
+        Map<String, ClassAllocations> byName = new HashMap<>();
+        int position = headerLength;
+        int recorded = 0;
+        for (; recorded < entries && position <= end - entryHeaderLength; recorded++) {
+            int size = data.getInt(position);
+            int classIndex = data.getShort(position + 6) & 0xffff;
+            int depth = data.get(position + 8) & 0xff;
+            position += entryHeaderLength + depth * stackFrameLength;
+            String name = classIndex < classNames.length && classNames[classIndex] != null ? classNames[classIndex] : "?";
+            ClassAllocations allocations = byName.get(name);
+            if (allocations == null) {
+                allocations = new ClassAllocations(name);
+                byName.put(name, allocations);
+            }
+            allocations.count++;
+            allocations.bytes += size;
+        }
+        summary.recordCount = recorded;
+        summary.byClass.addAll(byName.values());
+        Collections.sort(summary.byClass, new Comparator<ClassAllocations>() {
+            @Override
+            public int compare(ClassAllocations a, ClassAllocations b) {
+                return a.bytes == b.bytes ? a.name.compareTo(b.name) : (a.bytes > b.bytes ? -1 : 1);
+            }
+        });
+        return summary;
+    }
+
+    /**
+     * A string table of length-prefixed UTF-16 strings. Names past the end of the chunk stay null.
+     */
+    private static String[] readStrings(ByteBuffer data, int offset, int count) {
+        String[] strings = new String[count];
+        if (offset < 0 || offset > data.limit()) {
+            return strings;
+        }
+        data.position(offset);
+        for (int i = 0; i < count && data.remaining() >= 4; i++) {
+            int length = data.getInt();
+            if (length < 0 || length > data.remaining() / 2) {
+                break;
+            }
+            char[] chars = new char[length];
+            for (int c = 0; c < length; c++) {
+                chars[c] = data.getChar();
+            }
+            strings[i] = descriptorToName(new String(chars));
+        }
+        return strings;
+    }
+
+    /**
+     * "Ljava/lang/String;" -> "java.lang.String"; arrays and primitives are left alone
+     */
+    private static String descriptorToName(String descriptor) {
+        if (descriptor.startsWith("L") && descriptor.endsWith(";")) {
+            return descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
+        }
+        return descriptor;
+    }
+
+    /**
+     * What was allocated during a tracking window
+     */
+    public static class AllocationSummary {
+        private long totalCount = -1;
+        private long totalBytes = -1;
+        private int recordCount = 0;
+        private final List<ClassAllocations> byClass = new ArrayList<>();
+
+        /**
+         * Allocations in the whole window, -1 if unknown
+         * @return
+         */
+        public long getTotalCount() {
+            return totalCount;
+        }
+
+        /**
+         * Bytes allocated in the whole window, -1 if unknown
+         * @return
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * Allocations the per-class numbers are based on
+         * @return
+         */
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * Per-class tallies of the recorded allocations, most bytes first
+         * @return
+         */
+        public List<ClassAllocations> getByClass() {
+            return byClass;
+        }
+
+        /**
+         * Write as text: a totals line, then "bytes count class" per class
+         * @param out
+         * @throws IOException
+         */
+        public void writeTo(Writer out) throws IOException {
+            out.write("total " + totalBytes + " " + totalCount + " (" + recordCount + " recorded)\n");
+            for (ClassAllocations allocations : byClass) {
+                out.write(allocations.bytes + " " + allocations.count + " " + allocations.name + "\n");
+            }
+            out.flush();
+        }
+    }
+
+    public static class ClassAllocations {
+        private final String name;
+        private long count = 0;
+        private long bytes = 0;
+
+        ClassAllocations(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package name.kevinross.tool.debuggable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runtime options for the app_process a tool runs in: heap sizing, execution mode, dex2oat compiler
+ * filter and garbage collector. Each setter rejects a bad value before storing it, so a failed call
+ * leaves the options as they were; how the options fit together (eg the initial heap against the
+ * max heap) is only checked by validate() and toArguments(), so they can be set in any order. They
+ * render as the VM arguments that app_process takes before its "/" argument:
+ *
+ *      new YourTool().setLaunchOptions(new LaunchOptions().setMaxHeap(512 * LaunchOptions.MB).setExecutionMode(LaunchOptions.ExecutionMode.INTERPRET)).runTool();
+ *
+ * gives "app_process -Xmx512m -Xint / name.kevinross.tool.debuggable.DebuggableTool ...".
+ *
+ * Unset options are left to the runtime's defaults (the dalvik.vm.* properties). AndroidRuntime adds
+ * the options it derives from those properties (-Xms, -Xmx, -XX:HeapGrowthLimit and friends) after
+ * the ones given to app_process, so on a runtime where the last occurrence of an option wins the
+ * device's values take over; check Runtime.maxMemory() in the tool before relying on a heap size.
+ * Runs on a ToolForkServer share the server's runtime and ignore these.
+ */
+public class LaunchOptions {
+    public static final long KB = 1024;
+    public static final long MB = 1024 * KB;
+
+    /**
+     * How tool code is executed
+     */
+    public enum ExecutionMode {
+        /**
+         * Whatever the runtime is configured for
+         */
+        DEFAULT(null),
+        /**
+         * Interpret only (-Xint), for the smallest footprint or predictable stepping while debugging
+         */
+        INTERPRET("-Xint"),
+        /**
+         * Force the JIT on
+         */
+        JIT("-Xusejit:true"),
+        /**
+         * Force the JIT off, running precompiled code and interpreting the rest
+         */
+        NO_JIT("-Xusejit:false");
+
+        private final String argument;
+
+        ExecutionMode(String argument) {
+            this.argument = argument;
+        }
+    }
+
+    // filters of the releases this library targets, old and new names
+    private static final Set<String> compilerFilters = new HashSet<>(Arrays.asList(
+            "verify-none", "interpret-only", "verify-at-runtime", "balanced", "time",
+            "assume-verified", "extract", "verify", "quicken",
+            "space-profile", "space", "speed-profile", "speed", "everything-profile", "everything"));
+    private static final Set<String> collectors = new HashSet<>(Arrays.asList(
+            "MS", "CMS", "SS", "GSS", "CC", "CMC"));
+
+    private long initialHeap = 0;
+    private long maxHeap = 0;
+    private long heapGrowthLimit = 0;
+    private ExecutionMode executionMode = ExecutionMode.DEFAULT;
+    private String compilerFilter = null;
+    private String foregroundGc = null;
+    private String backgroundGc = null;
+    private final List<String> extra = new ArrayList<>();
+
+    /**
+     * Starting heap size (-Xms)
+     * @param bytes a multiple of 1KB, 0 for the default
+     * @return
+     */
+    public LaunchOptions setInitialHeap(long bytes) {
+        checkSize("initial heap", bytes);
+        initialHeap = bytes;
+        return this;
+    }
+
+    /**
+     * Heap limit (-Xmx), what the tool can grow to before OutOfMemoryError
+     * @param bytes a multiple of 1KB, 0 for the default
+     * @return
+     */
+    public LaunchOptions setMaxHeap(long bytes) {
+        checkSize("max heap", bytes);
+        maxHeap = bytes;
+        return this;
+    }
+
+    /**
+     * Soft heap limit (-XX:HeapGrowthLimit), the dalvik.vm.heapgrowthlimit of regular apps
+     * @param bytes a multiple of 1KB, 0 for the default
+     * @return
+     */
+    public LaunchOptions setHeapGrowthLimit(long bytes) {
+        checkSize("heap growth limit", bytes);
+        heapGrowthLimit = bytes;
+        return this;
+    }
+
+    public LaunchOptions setExecutionMode(ExecutionMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("execution mode can't be null, use DEFAULT");
+        }
+        executionMode = mode;
+        return this;
+    }
+
+    /**
+     * Compiler filter for code the runtime compiles with dex2oat (-Xcompiler-option
+     * --compiler-filter=...), eg "speed" or "quicken"
+     * @param filter null for the default
+     * @return
+     */
+    public LaunchOptions setCompilerFilter(String filter) {
+        if (filter != null && !compilerFilters.contains(filter)) {
+            throw new IllegalArgumentException("unknown compiler filter " + filter);
+        }
+        compilerFilter = filter;
+        return this;
+    }
+
+    /**
+     * Collector used while the tool runs (-Xgc), eg "CMS" or "CC"
+     * @param collector null for the default
+     * @return
+     */
+    public LaunchOptions setGc(String collector) {
+        checkCollector(collector);
+        foregroundGc = collector;
+        return this;
+    }
+
+    /**
+     * Collector used for background compaction (-XX:BackgroundGC)
+     * @param collector null for the default
+     * @return
+     */
+    public LaunchOptions setBackgroundGc(String collector) {
+        checkCollector(collector);
+        backgroundGc = collector;
+        return this;
+    }
+
+    /**
+     * Any other runtime option, passed through as-is
+     * @param option must start with -X
+     * @return
+     */
+    public LaunchOptions addOption(String option) {
+        if (option == null || !option.startsWith("-X") || option.contains(" ")) {
+            throw new IllegalArgumentException("not a runtime option: " + option);
+        }
+        extra.add(option);
+        return this;
+    }
+
+    /**
+     * Check the options against each other, done by toArguments() for every launch
+     * @return this
+     * @throws IllegalArgumentException they don't fit together
+     */
+    public LaunchOptions validate() {
+        if (maxHeap > 0 && initialHeap > maxHeap) {
+            throw new IllegalArgumentException("initial heap " + initialHeap + " above max heap " + maxHeap);
+        }
+        if (maxHeap > 0 && heapGrowthLimit > maxHeap) {
+            throw new IllegalArgumentException("heap growth limit " + heapGrowthLimit + " above max heap " + maxHeap);
+        }
+        if (executionMode == ExecutionMode.INTERPRET && compilerFilter != null) {
+            throw new IllegalArgumentException("compiler filter has no effect with -Xint");
+        }
+        return this;
+    }
+
+    /**
+     * The app_process VM arguments for these options, in a stable order
+     * @return
+     */
+    public List<String> toArguments() {
+        validate();
+        List<String> arguments = new ArrayList<>();
+        if (initialHeap > 0) {
+            arguments.add("-Xms" + formatSize(initialHeap));
+        }
+        if (maxHeap > 0) {
+            arguments.add("-Xmx" + formatSize(maxHeap));
+        }
+        if (heapGrowthLimit > 0) {
+            arguments.add("-XX:HeapGrowthLimit=" + formatSize(heapGrowthLimit));
+        }
+        if (executionMode.argument != null) {
+            arguments.add(executionMode.argument);
+        }
+        if (compilerFilter != null) {
+            arguments.add("-Xcompiler-option");
+            arguments.add("--compiler-filter=" + compilerFilter);
+        }
+        if (foregroundGc != null) {
+            arguments.add("-Xgc:" + foregroundGc);
+        }
+        if (backgroundGc != null) {
+            arguments.add("-XX:BackgroundGC=" + backgroundGc);
+        }
+        arguments.addAll(extra);
+        return Collections.unmodifiableList(arguments);
+    }
+
+    @Override
+    public String toString() {
+        return toArguments().toString();
+    }
+
+    private static void checkSize(String what, long bytes) {
+        if (bytes < 0 || bytes % KB != 0) {
+            throw new IllegalArgumentException(what + " must be a non-negative multiple of 1KB, got " + bytes);
+        }
+    }
+
+    private static void checkCollector(String collector) {
+        if (collector != null && !collectors.contains(collector)) {
+            throw new IllegalArgumentException("unknown collector " + collector);
+        }
+    }
+
+    private static String formatSize(long bytes) {
+        if (bytes % MB == 0) {
+            return (bytes / MB) + "m";
+        }
+        return (bytes / KB) + "k";
+    }
+}
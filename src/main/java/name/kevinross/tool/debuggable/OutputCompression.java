@@ -0,0 +1,245 @@
+package name.kevinross.tool.debuggable;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate for tool output that would otherwise saturate the pipe from the tool to the app.
+ *
+ * The caller opts in by launching with -z <threshold> (AbstractTool#setOutputCompression), which it
+ * only does on paths that read the tool's output through #decode(InputStream): the direct and fork
+ * server launches. The tool writes plain text until it has written threshold bytes, then at the
+ * next line start writes #MARKER and deflates everything after it. Small outputs are never
+ * compressed and pay nothing. Deflate runs at its fastest level; text typically shrinks 4-10x, which
+ * pays off when the pipe, not the tool, is the bottleneck (su relays in particular).
+ */
+public class OutputCompression {
+    /**
+     * Line the compressed part of the stream starts after
+     */
+    public static final String MARKER = "\u0000deflate";
+    public static final long DEFAULT_THRESHOLD_BYTES = 1024 * 1024;
+
+    private static final byte[] MARKER_LINE = (MARKER + "\n").getBytes(Charset.forName("UTF-8"));
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private OutputCompression() {
+        // static utility
+    }
+
+    /**
+     * Tool side: raw until the threshold, deflated after
+     */
+    public static class Encoder extends OutputStream {
+        private final OutputStream target;
+        private final long threshold;
+        private long written = 0;
+        private boolean lineStart = true;
+        private DeflaterOutputStream deflating = null;
+
+        /**
+         * @param target the tool's stdout
+         * @param threshold raw bytes before compression starts
+         */
+        public Encoder(OutputStream target, long threshold) {
+            this.target = target;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            if (deflating == null && written >= threshold && lineStart) {
+                startDeflating();
+            }
+            if (deflating != null) {
+                deflating.write(b, off, len);
+                return;
+            }
+            int raw = len;
+            if (written + len >= threshold) {
+                // past the threshold: the marker goes at the first line start
+                for (int i = Math.max(0, (int) (threshold - written) - 1); i < len; i++) {
+                    if (b[off + i] == '\n') {
+                        raw = i + 1;
+                        break;
+                    }
+                }
+            }
+            target.write(b, off, raw);
+            written += raw;
+            lineStart = b[off + raw - 1] == '\n';
+            if (raw < len) {
+                startDeflating();
+                deflating.write(b, off + raw, len - raw);
+            }
+        }
+
+        private void startDeflating() throws IOException {
+            target.write(MARKER_LINE);
+            deflating = new DeflaterOutputStream(target, new Deflater(Deflater.BEST_SPEED), BUFFER_BYTES, true);
+        }
+
+        /**
+         * Sync-flushes the deflater once compressing, so everything written so far can be decoded
+         */
+        @Override
+        public synchronized void flush() throws IOException {
+            if (deflating != null) {
+                deflating.flush();
+            } else {
+                target.flush();
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (deflating != null) {
+                deflating.close();
+            } else {
+                target.close();
+            }
+        }
+
+        /**
+         * Whether the threshold was reached
+         * @return
+         */
+        public synchronized boolean isCompressing() {
+            return deflating != null;
+        }
+    }
+
+    /**
+     * Caller side: undo whatever the tool's Encoder did. Streams that never compress pass through
+     * unchanged, so this can wrap any tool output.
+     * @param raw the tool's output as it came out of the pipe
+     * @return the output as the tool wrote it
+     */
+    public static InputStream decode(InputStream raw) {
+        return new Decoder(raw);
+    }
+
+    private static class Decoder extends InputStream {
+        private final PushbackInputStream raw;
+        private InputStream inflating = null;
+        private boolean lineStart = true;
+
+        Decoder(InputStream in) {
+            // room to put back a whole read
+            raw = new PushbackInputStream(new BufferedInputStream(in, BUFFER_BYTES), BUFFER_BYTES);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (inflating != null) {
+                return readInflated();
+            }
+            int b = raw.read();
+            if (b == 0 && lineStart && matchMarker()) {
+                inflating = new InflaterInputStream(raw, new Inflater(), BUFFER_BYTES);
+                return readInflated();
+            }
+            if (b != -1) {
+                lineStart = b == '\n';
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (inflating != null) {
+                try {
+                    return inflating.read(b, off, len);
+                } catch (EOFException e) {
+                    // killed mid-stream, whatever was flushed has been returned
+                    return -1;
+                }
+            }
+            int n = raw.read(b, off, Math.min(len, BUFFER_BYTES));
+            if (n == -1) {
+                return -1;
+            }
+            // hand out everything up to the first NUL at a line start, that's where a marker could be
+            boolean atLineStart = lineStart;
+            for (int i = 0; i < n; i++) {
+                if (atLineStart && b[off + i] == 0) {
+                    if (i > 0) {
+                        raw.unread(b, off + i, n - i);
+                        lineStart = true;
+                        return i;
+                    }
+                    raw.unread(b, off, n);
+                    int first = read();
+                    if (first == -1) {
+                        return -1;
+                    }
+                    b[off] = (byte) first;
+                    return 1;
+                }
+                atLineStart = b[off + i] == '\n';
+            }
+            lineStart = atLineStart;
+            return n;
+        }
+
+        private int readInflated() throws IOException {
+            try {
+                return inflating.read();
+            } catch (EOFException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * After a NUL at a line start: consume the rest of the marker line if that's what follows,
+         * otherwise put back what was read. Report lines start with NUL too.
+         */
+        private boolean matchMarker() throws IOException {
+            byte[] seen = new byte[MARKER_LINE.length];
+            int n = 0;
+            for (int i = 1; i < MARKER_LINE.length; i++) {
+                int b = raw.read();
+                if (b == -1 || (byte) b != MARKER_LINE[i]) {
+                    if (b != -1) {
+                        seen[n++] = (byte) b;
+                    }
+                    raw.unread(seen, 0, n);
+                    lineStart = false;
+                    return false;
+                }
+                seen[n++] = (byte) b;
+            }
+            return true;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return inflating != null ? inflating.available() : raw.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            raw.close();
+        }
+    }
+}
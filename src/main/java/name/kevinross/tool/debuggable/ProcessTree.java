@@ -0,0 +1,119 @@
+package name.kevinross.tool.debuggable;
+
+import android.os.Process;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import name.kevinross.tool.ReflectionUtil;
+
+/**
+ * Finding and killing a process and everything it started, from /proc. A tool that shells out
+ * leaves children behind when only app_process is killed, and those keep the caller's pipes open.
+ */
+final class ProcessTree {
+    private static final File PROC = new File("/proc");
+
+    private ProcessTree() {
+        // static utility
+    }
+
+    /**
+     * @param pid
+     * @return the parent's pid, -1 if pid is gone
+     */
+    static int getParentPid(int pid) {
+        String stat = readLine(new File(PROC, pid + "/stat"));
+        return stat == null ? -1 : parseParentPid(stat);
+    }
+
+    /**
+     * ppid out of a /proc/<pid>/stat line: "pid (comm) state ppid ...", comm may hold spaces and
+     * parentheses of its own
+     */
+    static int parseParentPid(String stat) {
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        return Integer.parseInt(fields[1]);
+    }
+
+    /**
+     * Every live process below pid, children before grandchildren
+     * @param pid
+     * @return
+     */
+    static List<Integer> getDescendants(int pid) {
+        Map<Integer, List<Integer>> children = new HashMap<>();
+        String[] names = PROC.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.matches("\\d+")) {
+                    continue;
+                }
+                int child = Integer.parseInt(name);
+                int parent = getParentPid(child);
+                List<Integer> siblings = children.get(parent);
+                if (siblings == null) {
+                    siblings = new ArrayList<>();
+                    children.put(parent, siblings);
+                }
+                siblings.add(child);
+            }
+        }
+        List<Integer> descendants = new ArrayList<>();
+        List<Integer> level = children.containsKey(pid) ? children.get(pid) : new ArrayList<Integer>();
+        while (!level.isEmpty()) {
+            descendants.addAll(level);
+            List<Integer> next = new ArrayList<>();
+            for (int p : level) {
+                if (children.containsKey(p)) {
+                    next.addAll(children.get(p));
+                }
+            }
+            level = next;
+        }
+        return descendants;
+    }
+
+    /**
+     * SIGKILL everything below pid, deepest first so nothing gets reparented and missed
+     * @param pid
+     */
+    static void killDescendants(int pid) {
+        List<Integer> descendants = getDescendants(pid);
+        for (int i = descendants.size() - 1; i >= 0; i--) {
+            Process.sendSignal(descendants.get(i), Process.SIGNAL_KILL);
+        }
+    }
+
+    /**
+     * Kill a process started with ProcessBuilder and everything below it
+     * @param process
+     */
+    static void killTree(java.lang.Process process) {
+        Integer pid = ReflectionUtil.invokes().on((Object) process).name("pid").probe().<Integer>get();
+        if (pid != null) {
+            killDescendants(pid);
+        }
+        process.destroy();
+    }
+
+    private static String readLine(File file) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                return reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // gone in the meantime
+            return null;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package name.kevinross.tool.debuggable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a tool run cost its process, from /proc/<pid>: CPU time, peak resident set, context switches
+ * and I/O. Launched with -U, DebuggableTool reads its own numbers when the tool returns and reports
+ * them back (key #REPORT_KEY), where they show up as ToolResult#getResourceUsage(). AbstractTool
+ * always asks for them.
+ *
+ * The numbers cover the whole app_process, runtime startup included, and the children it waited
+ * for (CPU only). Context switches are those of the threads still alive at the end. Anything the
+ * kernel doesn't expose (eg /proc/<pid>/io without the permission to read it) is -1.
+ */
+public class ResourceUsage {
+    /**
+     * Report key the usage travels under
+     */
+    public static final String REPORT_KEY = "rusage";
+
+    // /proc reports CPU times in USER_HZ ticks, fixed at 100 for userspace on every ABI
+    private static final long MILLIS_PER_TICK = 10;
+
+    private long userMillis = -1;
+    private long systemMillis = -1;
+    private long peakRssKb = -1;
+    private long voluntarySwitches = -1;
+    private long involuntarySwitches = -1;
+    private long readBytes = -1;
+    private long writeBytes = -1;
+
+    /**
+     * Usage of the current process
+     * @return
+     */
+    public static ResourceUsage readSelf() {
+        return read(new File("/proc/self"));
+    }
+
+    /**
+     * @param procDir /proc/<pid>
+     * @return usage, with -1 for whatever couldn't be read
+     */
+    public static ResourceUsage read(File procDir) {
+        ResourceUsage usage = new ResourceUsage();
+        List<String> stat = readLines(new File(procDir, "stat"));
+        if (!stat.isEmpty()) {
+            // "pid (comm) state ppid ...": utime, stime, cutime and cstime are fields 14-17
+            String line = stat.get(0);
+            String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+            usage.userMillis = (Long.parseLong(fields[11]) + Long.parseLong(fields[13])) * MILLIS_PER_TICK;
+            usage.systemMillis = (Long.parseLong(fields[12]) + Long.parseLong(fields[14])) * MILLIS_PER_TICK;
+        }
+        for (String line : readLines(new File(procDir, "status"))) {
+            if (line.startsWith("VmHWM:")) {
+                usage.peakRssKb = parseValue(line);
+            }
+        }
+        // the process' own status only counts the main thread's switches, add up its live threads
+        String[] tasks = new File(procDir, "task").list();
+        if (tasks != null) {
+            for (String task : tasks) {
+                for (String line : readLines(new File(procDir, "task/" + task + "/status"))) {
+                    if (line.startsWith("voluntary_ctxt_switches:")) {
+                        usage.voluntarySwitches = add(usage.voluntarySwitches, parseValue(line));
+                    } else if (line.startsWith("nonvoluntary_ctxt_switches:")) {
+                        usage.involuntarySwitches = add(usage.involuntarySwitches, parseValue(line));
+                    }
+                }
+            }
+        }
+        for (String line : readLines(new File(procDir, "io"))) {
+            if (line.startsWith("read_bytes:")) {
+                usage.readBytes = parseValue(line);
+            } else if (line.startsWith("write_bytes:")) {
+                usage.writeBytes = parseValue(line);
+            }
+        }
+        return usage;
+    }
+
+    private static long add(long total, long value) {
+        if (value < 0) {
+            return total;
+        }
+        return total < 0 ? value : total + value;
+    }
+
+    /**
+     * "VmHWM:      1234 kB" -> 1234
+     */
+    private static long parseValue(String line) {
+        String[] words = line.substring(line.indexOf(':') + 1).trim().split("\\s+");
+        try {
+            return Long.parseLong(words[0]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static List<String> readLines(File file) {
+        List<String> lines = new ArrayList<>();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // missing or not ours to read
+        }
+        return lines;
+    }
+
+    /**
+     * Single-line form for the report channel, "name=value" pairs
+     * @return
+     */
+    public String encode() {
+        return "user_ms=" + userMillis +
+                " sys_ms=" + systemMillis +
+                " peak_rss_kb=" + peakRssKb +
+                " vcsw=" + voluntarySwitches +
+                " ivcsw=" + involuntarySwitches +
+                " read_bytes=" + readBytes +
+                " write_bytes=" + writeBytes;
+    }
+
+    /**
+     * Inverse of #encode(); unknown names are skipped so either side can be newer
+     * @param encoded
+     * @return
+     */
+    public static ResourceUsage decode(String encoded) {
+        ResourceUsage usage = new ResourceUsage();
+        for (String pair : encoded.trim().split(" ")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            long value;
+            try {
+                value = Long.parseLong(pair.substring(eq + 1));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            switch (pair.substring(0, eq)) {
+                case "user_ms": usage.userMillis = value; break;
+                case "sys_ms": usage.systemMillis = value; break;
+                case "peak_rss_kb": usage.peakRssKb = value; break;
+                case "vcsw": usage.voluntarySwitches = value; break;
+                case "ivcsw": usage.involuntarySwitches = value; break;
+                case "read_bytes": usage.readBytes = value; break;
+                case "write_bytes": usage.writeBytes = value; break;
+                default: break;
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * CPU time spent in user mode
+     * @return
+     */
+    public long getUserMillis() {
+        return userMillis;
+    }
+
+    /**
+     * CPU time spent in the kernel on the process' behalf
+     * @return
+     */
+    public long getSystemMillis() {
+        return systemMillis;
+    }
+
+    /**
+     * User plus system time, -1 if either is unknown
+     * @return
+     */
+    public long getCpuMillis() {
+        return userMillis < 0 || systemMillis < 0 ? -1 : userMillis + systemMillis;
+    }
+
+    /**
+     * Largest resident set the process had (VmHWM)
+     * @return
+     */
+    public long getPeakRssKb() {
+        return peakRssKb;
+    }
+
+    /**
+     * Times the process gave up the CPU, eg blocking on I/O
+     * @return
+     */
+    public long getVoluntaryContextSwitches() {
+        return voluntarySwitches;
+    }
+
+    /**
+     * Times the process was preempted, a sign of CPU contention
+     * @return
+     */
+    public long getInvoluntaryContextSwitches() {
+        return involuntarySwitches;
+    }
+
+    /**
+     * Bytes fetched from storage (page cache hits don't count)
+     * @return
+     */
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    /**
+     * Bytes sent to storage
+     * @return
+     */
+    public long getWriteBytes() {
+        return writeBytes;
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
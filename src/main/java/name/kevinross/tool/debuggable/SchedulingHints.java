@@ -0,0 +1,298 @@
+package name.kevinross.tool.debuggable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * How the kernel should schedule a launched tool: nice value, the CPUs it may run on and its I/O
+ * priority class. These are applied by starting app_process under toybox's nice, taskset and ionice,
+ * so every thread of the tool (runtime threads included) inherits them from the first instruction:
+ *
+ *      new YourTool().setSchedulingHints(new SchedulingHints().setNice(10).pinToLittleCores().setIoPriority(SchedulingHints.IoClass.IDLE, 0)).runTool();
+ *
+ * gives "nice -n 10 taskset 0f ionice -c 3 app_process ...". Check the effect in /proc/<pid>/stat
+ * (nice is field 19) and /proc/<pid>/status (Cpus_allowed).
+ *
+ * Lowering the nice value, ionice's REALTIME class and some affinities need root. A ToolForkServer
+ * child keeps the server's scheduling; start the server itself through #wrap(List).
+ */
+public class SchedulingHints {
+    public static final int NICE_MIN = -20;
+    public static final int NICE_MAX = 19;
+
+    /**
+     * ionice scheduling classes
+     */
+    public enum IoClass {
+        /**
+         * Served before everything else, root only
+         */
+        REALTIME(1),
+        /**
+         * The default, levels 0 (highest) to 7
+         */
+        BEST_EFFORT(2),
+        /**
+         * Only gets the disk when nobody else wants it
+         */
+        IDLE(3);
+
+        private final int value;
+
+        IoClass(int value) {
+            this.value = value;
+        }
+    }
+
+    private static final File SYSFS_CPUS = new File("/sys/devices/system/cpu");
+
+    private Integer nice = null;
+    private long cpuMask = 0;
+    private IoClass ioClass = null;
+    private int ioLevel = 0;
+
+    /**
+     * @param nice NICE_MIN (most favoured) to NICE_MAX (least), below 0 needs root
+     * @return
+     */
+    public SchedulingHints setNice(int nice) {
+        if (nice < NICE_MIN || nice > NICE_MAX) {
+            throw new IllegalArgumentException("nice must be between " + NICE_MIN + " and " + NICE_MAX + ", got " + nice);
+        }
+        this.nice = nice;
+        return this;
+    }
+
+    /**
+     * Only run on these CPUs
+     * @param cpus cpu numbers as in /sys/devices/system/cpu/cpuN, none to lift the restriction
+     * @return
+     */
+    public SchedulingHints setAffinity(int... cpus) {
+        long mask = 0;
+        for (int cpu : cpus) {
+            if (cpu < 0 || cpu > 63) {
+                throw new IllegalArgumentException("cpu out of range: " + cpu);
+            }
+            mask |= 1L << cpu;
+        }
+        cpuMask = mask;
+        return this;
+    }
+
+    /**
+     * Run on the highest-clocked cores only, for tools the user is waiting on
+     * @return
+     */
+    public SchedulingHints pinToBigCores() {
+        return setAffinity(toArray(getBigCores()));
+    }
+
+    /**
+     * Run on the lowest-clocked cores only, for background bulk work
+     * @return
+     */
+    public SchedulingHints pinToLittleCores() {
+        return setAffinity(toArray(getLittleCores()));
+    }
+
+    /**
+     * @param ioClass null for the default
+     * @param level 0 (highest) to 7 for REALTIME and BEST_EFFORT, ignored for IDLE
+     * @return
+     */
+    public SchedulingHints setIoPriority(IoClass ioClass, int level) {
+        if (level < 0 || level > 7) {
+            throw new IllegalArgumentException("io priority level must be between 0 and 7, got " + level);
+        }
+        this.ioClass = ioClass;
+        this.ioLevel = level;
+        return this;
+    }
+
+    /**
+     * Whether any hint is set
+     * @return
+     */
+    public boolean isEmpty() {
+        return nice == null && cpuMask == 0 && ioClass == null;
+    }
+
+    /**
+     * The commands to run app_process under, in a stable order
+     * @return
+     */
+    public List<String> toCommandPrefix() {
+        List<String> prefix = new ArrayList<>();
+        if (nice != null) {
+            prefix.add("nice");
+            prefix.add("-n");
+            prefix.add(Integer.toString(nice));
+        }
+        if (cpuMask != 0) {
+            prefix.add("taskset");
+            prefix.add(Long.toHexString(cpuMask));
+        }
+        if (ioClass != null) {
+            prefix.add("ionice");
+            prefix.add("-c");
+            prefix.add(Integer.toString(ioClass.value));
+            if (ioClass != IoClass.IDLE) {
+                prefix.add("-n");
+                prefix.add(Integer.toString(ioLevel));
+            }
+        }
+        return Collections.unmodifiableList(prefix);
+    }
+
+    /**
+     * Prefix an argument vector {@see DebuggableToolHelpers#getArgvForMainClass}
+     * @param argv
+     * @return a new list
+     */
+    public List<String> wrap(List<String> argv) {
+        List<String> wrapped = new ArrayList<>(toCommandPrefix());
+        wrapped.addAll(argv);
+        return wrapped;
+    }
+
+    /**
+     * Prefix a shell command line {@see DebuggableToolHelpers#getCommandLineForMainClass}
+     * @param commandLine
+     * @return
+     */
+    public String wrap(String commandLine) {
+        StringBuilder wrapped = new StringBuilder();
+        for (String word : toCommandPrefix()) {
+            wrapped.append(word).append(' ');
+        }
+        return wrapped.append(commandLine).toString();
+    }
+
+    @Override
+    public String toString() {
+        return toCommandPrefix().toString();
+    }
+
+    /**
+     * Online CPUs whose maximum frequency is the highest on this device, all of them on a device
+     * with identical cores. None without cpufreq, which leaves the affinity unrestricted.
+     * @return
+     */
+    public static List<Integer> getBigCores() {
+        TreeMap<Long, List<Integer>> byFrequency = getCoresByMaxFrequency(SYSFS_CPUS);
+        return byFrequency.isEmpty() ? Collections.<Integer>emptyList() : byFrequency.lastEntry().getValue();
+    }
+
+    /**
+     * Online CPUs whose maximum frequency is the lowest on this device
+     * @return
+     */
+    public static List<Integer> getLittleCores() {
+        TreeMap<Long, List<Integer>> byFrequency = getCoresByMaxFrequency(SYSFS_CPUS);
+        return byFrequency.isEmpty() ? Collections.<Integer>emptyList() : byFrequency.firstEntry().getValue();
+    }
+
+    /**
+     * Group the online cpuN directories by cpufreq/cpuinfo_max_freq. Offline (hot-unplugged) CPUs
+     * and CPUs without a readable frequency are left out: pinning to them fails the launch.
+     * @param cpuRoot normally /sys/devices/system/cpu
+     * @return frequency -> cpu numbers, ascending
+     */
+    static TreeMap<Long, List<Integer>> getCoresByMaxFrequency(File cpuRoot) {
+        TreeMap<Long, List<Integer>> byFrequency = new TreeMap<>();
+        String[] names = cpuRoot.list();
+        if (names == null) {
+            return byFrequency;
+        }
+        Set<Integer> online = readCpuList(new File(cpuRoot, "online"));
+        List<Integer> cpus = new ArrayList<>();
+        for (String name : names) {
+            if (name.matches("cpu\\d+")) {
+                int cpu = Integer.parseInt(name.substring(3));
+                // without the online list every cpu counts as online
+                if (online == null || online.contains(cpu)) {
+                    cpus.add(cpu);
+                }
+            }
+        }
+        Collections.sort(cpus);
+        for (int cpu : cpus) {
+            long frequency = readLong(new File(cpuRoot, "cpu" + cpu + "/cpufreq/cpuinfo_max_freq"));
+            if (frequency <= 0) {
+                continue;
+            }
+            List<Integer> group = byFrequency.get(frequency);
+            if (group == null) {
+                group = new ArrayList<>();
+                byFrequency.put(frequency, group);
+            }
+            group.add(cpu);
+        }
+        return byFrequency;
+    }
+
+    /**
+     * Parse a kernel cpu list like "0-3,6"
+     * @return the cpus, null if the file can't be read or parsed
+     */
+    private static Set<Integer> readCpuList(File file) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line = reader.readLine();
+                if (line == null) {
+                    return null;
+                }
+                Set<Integer> cpus = new HashSet<>();
+                for (String range : line.trim().split(",")) {
+                    if (range.isEmpty()) {
+                        continue;
+                    }
+                    int dash = range.indexOf('-');
+                    int first = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+                    int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1));
+                    for (int cpu = first; cpu <= last; cpu++) {
+                        cpus.add(cpu);
+                    }
+                }
+                return cpus;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long readLong(File file) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line = reader.readLine();
+                return line == null ? 0 : Long.parseLong(line.trim());
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            // offline cpu or no cpufreq driver
+            return 0;
+        }
+    }
+
+    private static int[] toArray(List<Integer> cpus) {
+        int[] array = new int[cpus.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = cpus.get(i);
+        }
+        return array;
+    }
+}
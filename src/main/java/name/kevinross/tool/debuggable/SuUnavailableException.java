@@ -0,0 +1,12 @@
+package name.kevinross.tool.debuggable;
+
+/**
+ * Thrown when a tool is to be run as root but su is missing or the request was denied
+ */
+public class SuUnavailableException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public SuUnavailableException() {
+        super("su not available!");
+    }
+}
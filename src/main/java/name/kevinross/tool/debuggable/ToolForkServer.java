@@ -0,0 +1,691 @@
+package name.kevinross.tool.debuggable;
+
+import android.app.ActivityThread;
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.MutableInt;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import name.kevinross.tool.ReflectionUtil;
+import name.kevinross.tool.ToolIndex;
+import name.kevinross.tool.nativehelpers.NativeToolHelpers;
+
+/**
+ * Server that runs tools for a client app over a local socket, started once:
+ *
+ *      app_process / name.kevinross.tool.debuggable.ToolForkServer -s <socket> -u <client uid> [-p <tool class prefix>]
+ *
+ * and used through DebuggableToolHelpers#runCommandOnForkServer or AbstractTool#setForkServer(String).
+ * Only clients with the given uid (and root) may connect.
+ *
+ * Requests are the launcher part of the app_process argv (DebuggableTool options, "--", class and
+ * tool arguments), anything the client sends after that is the tool's stdin. The tool's stdout and
+ * stderr go to the client, followed by an EXIT_MARKER line with the exit code. Runs are
+ * request/response, so resident services should keep using the regular launch.
+ *
+ * What a request costs depends on whether the server can fork:
+ *
+ * - Forked: the child starts from the template with the tool classes under the prefix already
+ *   loaded. This needs the native library of the debug build and a template with no threads but
+ *   the VM daemons ZygoteHooks stops itself; preFork would wait forever on any other. app_process
+ *   starts a binder pool and a signal catcher before main() runs, so on stock devices the check
+ *   fails and nothing is forked. The template still bootstraps no ActivityThread of its own, each
+ *   child does, so even a forked run pays for that.
+ * - Cold: a fresh app_process per request, the same VM start as any other launch plus a hop
+ *   through this process. The one thing it saves is su: a server started as root once runs root
+ *   tools for the app without a su round trip per launch. A server that can't fork and isn't root
+ *   has nothing to offer over AbstractTool#setDirectLaunch, so #main refuses to start as one.
+ *
+ * Cold runs are waited on from a small pool (#coldSpawner) so a slow tool doesn't hold up the
+ * accept loop. The bootstrap and the spawner are pluggable so the request handling can be driven
+ * from a plain JVM with #inProcessSpawner() and a no-op bootstrap.
+ */
+public class ToolForkServer {
+    /**
+     * Prefixes the last line of every response; the exit code follows
+     */
+    public static final String EXIT_MARKER = "\u0000exit ";
+    /**
+     * Cold launches the fallback runs at once
+     */
+    public static final int MAX_COLD_LAUNCHES = 4;
+    /**
+     * Cold launches waiting for one of the running ones to finish
+     */
+    public static final int MAX_QUEUED_COLD_LAUNCHES = 16;
+    private static final long COLD_THREAD_KEEPALIVE_MILLIS = 1000;
+    /**
+     * Limits on a request header; app_process couldn't take more than that on its command line
+     */
+    public static final int MAX_ARGUMENTS = 4096;
+    public static final int MAX_ARGUMENT_BYTES = 65535;
+    public static final int MAX_HEADER_BYTES = 1024 * 1024;
+    // a client gets this long to send its header, the run itself has no limit
+    private static final int HEADER_TIMEOUT_MILLIS = 5000;
+
+    private static final OptionParser parser = new OptionParser("s:u:p:");
+
+    private final Bootstrap bootstrap;
+    private final Spawner spawner;
+    private ActivityThread activityThread = null;
+
+    /**
+     * Sets up the template process once
+     */
+    public interface Bootstrap {
+        /**
+         * @return the process' activity thread, null when there is none (off-device)
+         */
+        ActivityThread bootstrap();
+    }
+
+    /**
+     * Runs one request to completion or hands it off to a thread or process that will. Whoever
+     * finishes with the request closes it, so #spawn may return before the run is over.
+     */
+    public interface Spawner {
+        void spawn(ActivityThread activityThread, Request request) throws IOException;
+    }
+
+    /**
+     * A request and the connection it came in on. The header is decoded by whoever runs the
+     * request, on first #getArgv(), so a slow client only holds up its own run.
+     */
+    public static class Request {
+        private List<String> argv;
+        private final InputStream in;
+        private final OutputStream out;
+        private final FileDescriptor fd;
+        private final FileDescriptor listenerFd;
+        private final Closeable connection;
+
+        /**
+         * @param argv launcher options, "--", tool class and tool arguments
+         * @param in the rest of the connection, given to the tool as stdin
+         * @param out where the tool's output goes
+         * @param fd the connection's descriptor, null if there is none (in-process)
+         * @param listenerFd the server's listening descriptor, closed in children, may be null
+         */
+        public Request(List<String> argv, InputStream in, OutputStream out, FileDescriptor fd, FileDescriptor listenerFd) {
+            this(argv, in, out, fd, listenerFd, null);
+        }
+
+        /**
+         * @see #Request(List, InputStream, OutputStream, FileDescriptor, FileDescriptor)
+         * @param connection closed by #close(), may be null
+         */
+        public Request(List<String> argv, InputStream in, OutputStream out, FileDescriptor fd, FileDescriptor listenerFd, Closeable connection) {
+            this.argv = argv;
+            this.in = in;
+            this.out = out;
+            this.fd = fd;
+            this.listenerFd = listenerFd;
+            this.connection = connection;
+        }
+
+        /**
+         * @see #Request(List, InputStream, OutputStream, FileDescriptor, FileDescriptor, Closeable)
+         * @param in the connection, starting with the header #getArgv() decodes
+         */
+        public Request(InputStream in, OutputStream out, FileDescriptor fd, FileDescriptor listenerFd, Closeable connection) {
+            this(null, in, out, fd, listenerFd, connection);
+        }
+
+        /**
+         * Done with the request: close this process' end of the connection. A forked child keeps
+         * its own copy of the descriptor.
+         */
+        public void close() {
+            closeQuietly(connection);
+        }
+
+        /**
+         * @return launcher options, "--", tool class and tool arguments
+         * @throws IOException the header was malformed, too large or didn't arrive in time
+         */
+        public synchronized List<String> getArgv() throws IOException {
+            if (argv == null) {
+                LocalSocket socket = connection instanceof LocalSocket ? (LocalSocket) connection : null;
+                if (socket != null) {
+                    socket.setSoTimeout(HEADER_TIMEOUT_MILLIS);
+                }
+                argv = readArgv(in);
+                if (socket != null) {
+                    // stdin may take as long as the tool wants
+                    socket.setSoTimeout(0);
+                }
+            }
+            return argv;
+        }
+
+        public InputStream getIn() {
+            return in;
+        }
+
+        public OutputStream getOut() {
+            return out;
+        }
+
+        public FileDescriptor getFd() {
+            return fd;
+        }
+    }
+
+    public ToolForkServer(Bootstrap bootstrap, Spawner spawner) {
+        this.bootstrap = bootstrap;
+        this.spawner = spawner;
+    }
+
+    /**
+     * Bootstrap the template and load every tool under the prefix so children start with them
+     * initialized
+     * @param codePath apk/dex the tools live in, null to skip preloading
+     * @param prefix class name prefix of the tools to preload
+     */
+    public void prepare(String codePath, String prefix) {
+        activityThread = bootstrap.bootstrap();
+        if (codePath == null) {
+            return;
+        }
+        try {
+            ClassLoader loader = ToolForkServer.class.getClassLoader();
+            for (ToolIndex.Entry entry : ToolIndex.scan(codePath, prefix, loader)) {
+                try {
+                    Class.forName(entry.getToolClass().getName(), true, loader);
+                } catch (ClassNotFoundException | LinkageError e) {
+                    // indexed but broken, the request for it will report the failure
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Run one request
+     * @param request
+     * @throws IOException
+     */
+    public void handle(Request request) throws IOException {
+        spawner.spawn(activityThread, request);
+    }
+
+    /**
+     * Accept and run requests until the socket fails
+     * @param server listening socket
+     * @param allowedUid uid allowed to connect besides root
+     */
+    public void serve(LocalServerSocket server, int allowedUid) {
+        while (true) {
+            LocalSocket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            try {
+                Credentials peer = socket.getPeerCredentials();
+                if (peer.getUid() != allowedUid && peer.getUid() != 0) {
+                    System.err.println("ToolForkServer: rejecting uid " + peer.getUid());
+                    closeQuietly(socket);
+                    continue;
+                }
+                // the spawner reads the header and closes the socket once it's done with it
+                handle(new Request(socket.getInputStream(), socket.getOutputStream(),
+                        socket.getFileDescriptor(), server.getFileDescriptor(), socket));
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeQuietly(socket);
+            } finally {
+                reapChildren();
+            }
+        }
+    }
+
+    /**
+     * Decode a request header: argument count, then each argument in modified UTF-8. Reads nothing
+     * past the header, the rest of the stream is the tool's stdin.
+     * @param in
+     * @return
+     * @throws IOException malformed or beyond #MAX_ARGUMENTS, #MAX_ARGUMENT_BYTES or #MAX_HEADER_BYTES
+     */
+    public static List<String> readArgv(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int count = data.readInt();
+        if (count < 0 || count > MAX_ARGUMENTS) {
+            throw new IOException("bad argument count " + count);
+        }
+        List<String> argv = new ArrayList<>(Math.min(count, 64));
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            int length = data.readUnsignedShort();
+            total += length;
+            if (length > MAX_ARGUMENT_BYTES || total > MAX_HEADER_BYTES) {
+                throw new IOException("request header too large");
+            }
+            byte[] utf = new byte[2 + length];
+            utf[0] = (byte) (length >> 8);
+            utf[1] = (byte) length;
+            data.readFully(utf, 2, length);
+            argv.add(new DataInputStream(new ByteArrayInputStream(utf)).readUTF());
+        }
+        return argv;
+    }
+
+    /**
+     * Decode the request's header, answering a bad one with EXIT_USAGE
+     * @return the argv, null if the request was rejected and closed
+     */
+    private static List<String> argvOrReject(Request request) {
+        try {
+            return request.getArgv();
+        } catch (IOException e) {
+            System.err.println("ToolForkServer: bad request: " + e);
+            writeExit(request.getOut(), DebuggableTool.EXIT_USAGE);
+            request.close();
+            return null;
+        }
+    }
+
+    private static void reapChildren() {
+        MutableInt status = new MutableInt(0);
+        try {
+            while (Os.waitpid(-1, status, OsConstants.WNOHANG) > 0) {
+                // keep going until nothing is left to reap
+            }
+        } catch (ErrnoException e) {
+            // ECHILD: no children
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    private static void writeExit(OutputStream out, int code) {
+        try {
+            // the marker starts with a NUL so the client finds it even after a partial last line
+            out.write((EXIT_MARKER + code + "\n").getBytes("UTF-8"));
+            out.flush();
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    /**
+     * Fork a child per request off the template, falling back to a cold app_process launch when
+     * forking isn't available or the template isn't single-threaded. Use it with a bootstrap that
+     * returns null: children bootstrap their own ActivityThread.
+     * @param codePath apk/dex for the fallback launches
+     * @return
+     */
+    public static Spawner forkSpawner(String codePath) {
+        return new ForkSpawner(coldSpawner(codePath));
+    }
+
+    /**
+     * Launch a fresh app_process per request, waiting on each from a pool of up to
+     * #MAX_COLD_LAUNCHES threads so the accept loop never waits on a run. Requests beyond the
+     * pool and #MAX_QUEUED_COLD_LAUNCHES waiting ones are turned away with EXIT_UNKNOWN.
+     * @param codePath apk/dex the tools live in
+     * @return
+     */
+    public static Spawner coldSpawner(final String codePath) {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_COLD_LAUNCHES, MAX_COLD_LAUNCHES,
+                COLD_THREAD_KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_COLD_LAUNCHES),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "ToolForkServer-cold");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        // idle threads go away, a template with threads left can't fork
+        pool.allowCoreThreadTimeOut(true);
+        return new Spawner() {
+            @Override
+            public void spawn(ActivityThread activityThread, final Request request) {
+                try {
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            List<String> header = argvOrReject(request);
+                            if (header == null) {
+                                return;
+                            }
+                            List<String> argv = new ArrayList<>();
+                            argv.add("app_process");
+                            argv.add("/");
+                            argv.add(DebuggableTool.class.getName());
+                            argv.addAll(withoutCompression(header));
+                            int code = DebuggableTool.EXIT_UNKNOWN;
+                            try {
+                                code = DebuggableToolHelpers.runCommandDirect(codePath, argv, request.getIn(), request.getOut()).getExitCode();
+                            } catch (RuntimeException e) {
+                                e.printStackTrace();
+                            } finally {
+                                writeExit(request.getOut(), code);
+                                request.close();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    System.err.println("ToolForkServer: too many launches waiting, rejecting a request");
+                    writeExit(request.getOut(), DebuggableTool.EXIT_UNKNOWN);
+                    request.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * The relay inflates the child's output to find where it ends before the exit line goes after
+     * it, so a compressing child would only spend CPU on the short hop to this process
+     * @param request launcher options, "--", tool class and tool arguments
+     * @return request without -z
+     */
+    static List<String> withoutCompression(List<String> request) {
+        List<String> argv = new ArrayList<>(request.size());
+        for (int i = 0; i < request.size(); i++) {
+            String arg = request.get(i);
+            if ("--".equals(arg)) {
+                argv.addAll(request.subList(i, request.size()));
+                break;
+            }
+            if ("-z".equals(arg)) {
+                // and its threshold
+                i++;
+                continue;
+            }
+            argv.add(arg);
+        }
+        return argv;
+    }
+
+    /**
+     * Run each request on the calling thread of this process, with System.out and System.err
+     * pointed at the request for the duration. No isolation: meant as the stand-in for exercising
+     * the server off-device.
+     * @return
+     */
+    public static Spawner inProcessSpawner() {
+        return new Spawner() {
+            @Override
+            public synchronized void spawn(ActivityThread activityThread, Request request) {
+                List<String> argv = argvOrReject(request);
+                if (argv == null) {
+                    return;
+                }
+                PrintStream oldOut = System.out;
+                PrintStream oldErr = System.err;
+                DebuggableTool.ExitHandler oldHandler = DebuggableTool.getExitHandler();
+                PrintStream out = new PrintStream(request.getOut(), true);
+                System.setOut(out);
+                System.setErr(out);
+                DebuggableTool.setExitHandler(new DebuggableTool.ExitHandler() {
+                    @Override
+                    public void exit(int code) {
+                        throw new ExitSignal(code);
+                    }
+                });
+                DebuggableTool.setSharedProcess(true);
+                int code = 0;
+                try {
+                    DebuggableTool.launch(activityThread, argv.toArray(new String[argv.size()]));
+                } catch (ExitSignal e) {
+                    code = e.code;
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                    code = DebuggableTool.EXIT_UNKNOWN;
+                } finally {
+                    out.flush();
+                    System.setOut(oldOut);
+                    System.setErr(oldErr);
+                    DebuggableTool.setExitHandler(oldHandler);
+                    DebuggableTool.setSharedProcess(false);
+                }
+                writeExit(request.getOut(), code);
+                request.close();
+            }
+        };
+    }
+
+    private static class ExitSignal extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        ExitSignal(int code) {
+            this.code = code;
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            // control flow, not an error
+            return this;
+        }
+    }
+
+    private static class ForkSpawner implements Spawner {
+        // stopped by ZygoteHooks#preFork, every other thread makes it wait forever
+        private static final Set<String> VM_DAEMONS = new HashSet<>(Arrays.asList(
+                "ReferenceQueueDaemon", "FinalizerDaemon", "FinalizerWatchdogDaemon", "HeapTaskDaemon"));
+
+        private final Spawner fallback;
+        private boolean canFork = true;
+
+        ForkSpawner(Spawner fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public void spawn(ActivityThread activityThread, final Request request) throws IOException {
+            if (!canFork || request.getFd() == null || activityThread != null || !isSingleThreaded()) {
+                fallback.spawn(activityThread, request);
+                return;
+            }
+            System.out.flush();
+            System.err.flush();
+            VmHooks hooks = new VmHooks();
+            hooks.preFork();
+            int pid = DebuggableToolNative.Fork();
+            if (pid == 0) {
+                runChild(hooks, request);
+                // not reached
+            }
+            hooks.postForkCommon();
+            if (pid < 0) {
+                canFork = false;
+                fallback.spawn(activityThread, request);
+                return;
+            }
+            request.close();
+        }
+
+        /**
+         * Whether every thread but the caller is a VM daemon preFork knows to stop; checked
+         * against the kernel's task list so native threads (binder, signal catcher, JDWP) count too
+         */
+        static boolean isSingleThreaded() {
+            String[] tasks = new File("/proc/self/task").list();
+            if (tasks == null) {
+                return false;
+            }
+            int daemons = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread != Thread.currentThread() && thread.isDaemon() && VM_DAEMONS.contains(thread.getName())) {
+                    daemons++;
+                }
+            }
+            return tasks.length == 1 + daemons;
+        }
+
+        private void runChild(VmHooks hooks, Request request) {
+            hooks.postForkChild();
+            hooks.postForkCommon();
+            try {
+                if (request.listenerFd != null) {
+                    Os.close(request.listenerFd);
+                }
+                Os.dup2(request.getFd(), OsConstants.STDIN_FILENO);
+                Os.dup2(request.getFd(), OsConstants.STDOUT_FILENO);
+                Os.dup2(request.getFd(), OsConstants.STDERR_FILENO);
+            } catch (ErrnoException e) {
+                System.exit(DebuggableTool.EXIT_UNKNOWN);
+            }
+            DebuggableTool.setExitHandler(new DebuggableTool.ExitHandler() {
+                @Override
+                public void exit(int code) {
+                    System.out.flush();
+                    System.err.flush();
+                    writeExit(System.out, code);
+                    System.exit(code);
+                }
+            });
+            try {
+                // read here rather than in the template, which went back to accepting
+                List<String> argv = request.getArgv();
+                // the template has none, its binder threads would have made forking impossible
+                ActivityThread activityThread = DebuggableTool.bootstrap();
+                if (activityThread == null) {
+                    DebuggableTool.exit(DebuggableTool.EXIT_UNKNOWN);
+                }
+                DebuggableTool.launch(activityThread, argv.toArray(new String[argv.size()]));
+                DebuggableTool.exit(0);
+            } catch (Throwable t) {
+                t.printStackTrace();
+                DebuggableTool.exit(DebuggableTool.EXIT_UNKNOWN);
+            }
+        }
+    }
+
+    /**
+     * dalvik.system.ZygoteHooks: stops the VM's daemon threads before fork and fixes up the
+     * runtime in both processes afterwards. The methods moved from instance to static and changed
+     * arity over API levels so they're matched by name and their parameters filled in by type.
+     */
+    private static class VmHooks {
+        private final Class<?> hooksClass;
+        private Object hooks = null;
+
+        VmHooks() {
+            hooksClass = ReflectionUtil.getClassByName(ClassLoader.getSystemClassLoader(), "dalvik.system.ZygoteHooks");
+        }
+
+        void preFork() {
+            call("preFork");
+        }
+
+        void postForkChild() {
+            call("postForkChild");
+        }
+
+        void postForkCommon() {
+            call("postForkCommon");
+        }
+
+        private void call(String name) {
+            for (Method m : hooksClass.getDeclaredMethods()) {
+                if (!m.getName().equals(name)) {
+                    continue;
+                }
+                Class<?>[] types = m.getParameterTypes();
+                Object[] params = new Object[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    if (types[i] == int.class) {
+                        params[i] = 0;
+                    } else if (types[i] == boolean.class) {
+                        params[i] = false;
+                    } else if (types[i] == String.class) {
+                        params[i] = NativeToolHelpers.VMRuntime.getCurrentInstructionSet();
+                    }
+                }
+                Object target = null;
+                if (!Modifier.isStatic(m.getModifiers())) {
+                    if (hooks == null) {
+                        hooks = ReflectionUtil.invokes().on(hooksClass).of().nosy().swallow().getNewInstance();
+                    }
+                    target = hooks;
+                }
+                ReflectionUtil.invokes().on(target).on(hooksClass).method(m).using(params).nosy().swallow().invoke();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Usage: ToolForkServer -s <socket name> -u <allowed uid> [-p <tool class prefix>]
+     * @param args
+     */
+    public static void main(String[] args) {
+        OptionSet opts;
+        synchronized (parser) {
+            opts = parser.parse(args);
+        }
+        if (!opts.has("s") || !opts.has("u")) {
+            System.err.println("Usage: ToolForkServer -s <socket name> -u <allowed uid> [-p <tool class prefix>]");
+            System.exit(1);
+        }
+        String codePath = System.getenv("CLASSPATH");
+        ToolForkServer server = new ToolForkServer(new Bootstrap() {
+            @Override
+            public ActivityThread bootstrap() {
+                // no ActivityThread (and binder pool) in the template, children make their own
+                return null;
+            }
+        }, forkSpawner(codePath));
+        server.prepare(codePath, opts.has("p") ? opts.valueOf("p").toString() : "");
+        if (!ForkSpawner.isSingleThreaded()) {
+            if (Os.getuid() != 0) {
+                System.err.println("ToolForkServer: can't fork from this process and not root, every launch would only take a detour; use a direct launch instead");
+                System.exit(1);
+            }
+            System.err.println("ToolForkServer: can't fork from this process, serving cold launches");
+        }
+        LocalServerSocket socket;
+        try {
+            socket = new LocalServerSocket(opts.valueOf("s").toString());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+        server.serve(socket, Integer.parseInt(opts.valueOf("u").toString()));
+    }
+}
@@ -0,0 +1,312 @@
+package name.kevinross.tool.debuggable;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Buffered stdout for tools that print a lot. System.out flushes every println, so each line costs
+ * a write to the pipe (and through su); with this installed lines collect in a buffer and go out in
+ * bufferSize chunks, optionally written by a background thread so the tool never waits on the pipe.
+ *
+ * DebuggableTool installs it for -b <bytes> [-f line|full|<ms>] [-a]
+ * (AbstractTool#setOutputBuffering) and flushes it when the tool returns, on its fatal exits and
+ * from a shutdown hook when the tool calls System.exit itself. stderr stays unbuffered, so with the two merged (as the direct launch
+ * path does) stderr lines can show up ahead of stdout printed before them.
+ */
+public class ToolOutput extends OutputStream {
+    public static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+    // chunks the async writer may fall behind by before the tool has to wait
+    private static final int ASYNC_CHUNKS = 4;
+
+    public enum FlushPolicy {
+        /**
+         * Every line, as plain System.out
+         */
+        LINE,
+        /**
+         * Every interval, for tools whose caller wants progress while they run
+         */
+        INTERVAL,
+        /**
+         * Only when the buffer is full and at the end
+         */
+        FULL
+    }
+
+    private static ToolOutput installed = null;
+
+    private final OutputStream target;
+    private final int bufferSize;
+    private byte[] buffer;
+    private int count = 0;
+    private volatile IOException failure = null;
+
+    // async only: full chunks on their way to target, and emptied ones to reuse
+    private final BlockingQueue<Chunk> pending;
+    private final BlockingQueue<byte[]> free;
+    // guards inFlight and failure apart from the stream lock, which a drain may hold while it
+    // waits for the writer to make room
+    private final Object progress = new Object();
+    private int inFlight = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * @param target where the bytes end up
+     * @param bufferSize bytes collected before a write
+     * @param policy when to flush besides a full buffer
+     * @param intervalMillis for FlushPolicy#INTERVAL
+     * @param async write from a background thread
+     */
+    public ToolOutput(OutputStream target, int bufferSize, FlushPolicy policy, long intervalMillis, boolean async) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("buffer size must be positive, got " + bufferSize);
+        }
+        this.target = target;
+        this.bufferSize = bufferSize;
+        this.buffer = new byte[bufferSize];
+        if (async) {
+            pending = new ArrayBlockingQueue<>(ASYNC_CHUNKS);
+            free = new ArrayBlockingQueue<>(ASYNC_CHUNKS + 1);
+            startDaemon(new Runnable() {
+                @Override
+                public void run() {
+                    writeChunks();
+                }
+            }, "ToolOutput-writer");
+        } else {
+            pending = null;
+            free = null;
+        }
+        if (policy == FlushPolicy.INTERVAL) {
+            if (intervalMillis < 1) {
+                throw new IllegalArgumentException("flush interval must be positive, got " + intervalMillis);
+            }
+            startFlusher(intervalMillis);
+        }
+    }
+
+    /**
+     * Point System.out at a new ToolOutput over stdout, flushed at shutdown
+     * @return the installed output
+     */
+    public static ToolOutput install(int bufferSize, FlushPolicy policy, long intervalMillis, boolean async) {
+        return install(new FileOutputStream(FileDescriptor.out), bufferSize, policy, intervalMillis, async);
+    }
+
+    /**
+     * @see #install(int, FlushPolicy, long, boolean)
+     * @param target what stands in for stdout, eg an OutputCompression.Encoder over it
+     * @return the installed output
+     */
+    public static synchronized ToolOutput install(OutputStream target, int bufferSize, FlushPolicy policy, long intervalMillis, boolean async) {
+        final ToolOutput output = new ToolOutput(target, bufferSize, policy, intervalMillis, async);
+        // PrintStream's autoflush is what makes LINE line-buffered
+        System.setOut(new PrintStream(output, policy == FlushPolicy.LINE));
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushQuietly(output);
+            }
+        }, "ToolOutput-exit"));
+        installed = output;
+        return output;
+    }
+
+    /**
+     * Flush what #install put in place, if anything. For exit paths.
+     */
+    public static void flushInstalled() {
+        ToolOutput output;
+        synchronized (ToolOutput.class) {
+            output = installed;
+        }
+        if (output != null) {
+            System.out.flush();
+            flushQuietly(output);
+        }
+    }
+
+    /**
+     * Parse a -f value
+     * @param spec "line", "full" or an interval in milliseconds
+     * @return the policy, FlushPolicy#INTERVAL for a number
+     */
+    public static FlushPolicy parsePolicy(String spec) {
+        if ("line".equals(spec)) {
+            return FlushPolicy.LINE;
+        }
+        if ("full".equals(spec)) {
+            return FlushPolicy.FULL;
+        }
+        if (Long.parseLong(spec) < 1) {
+            throw new IllegalArgumentException("flush interval must be positive, got " + spec);
+        }
+        return FlushPolicy.INTERVAL;
+    }
+
+    private static void flushQuietly(ToolOutput output) {
+        try {
+            output.flush();
+        } catch (IOException e) {
+            // nowhere left to complain to
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        checkFailure();
+        if (count == bufferSize) {
+            drain();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        checkFailure();
+        while (len > 0) {
+            if (count == bufferSize) {
+                drain();
+            }
+            int n = Math.min(len, bufferSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        checkFailure();
+        if (count > 0) {
+            drain();
+        }
+        if (pending != null) {
+            try {
+                synchronized (progress) {
+                    while (inFlight > 0 && failure == null) {
+                        progress.wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            checkFailure();
+        }
+        target.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        closed = true;
+        target.close();
+    }
+
+    /**
+     * Send the buffer on, called with the lock held
+     */
+    private void drain() throws IOException {
+        if (pending == null) {
+            target.write(buffer, 0, count);
+            count = 0;
+            return;
+        }
+        Chunk chunk = new Chunk(buffer, count);
+        byte[] next = free.poll();
+        buffer = next == null ? new byte[bufferSize] : next;
+        count = 0;
+        synchronized (progress) {
+            inFlight++;
+        }
+        try {
+            // blocks while the writer is ASYNC_CHUNKS behind. The lock stays held so no other
+            // drain (a second writer, the interval flusher) can queue its chunk ahead of this one;
+            // the writer never takes it, only progress.
+            pending.put(chunk);
+        } catch (InterruptedException e) {
+            synchronized (progress) {
+                inFlight--;
+                progress.notifyAll();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void writeChunks() {
+        while (!closed) {
+            Chunk chunk;
+            try {
+                chunk = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            IOException error = null;
+            try {
+                target.write(chunk.bytes, 0, chunk.length);
+            } catch (IOException e) {
+                error = e;
+            }
+            free.offer(chunk.bytes);
+            synchronized (progress) {
+                if (error != null && failure == null) {
+                    failure = error;
+                }
+                inFlight--;
+                progress.notifyAll();
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void startFlusher(final long intervalMillis) {
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        // the reader is gone, the tool will find out on its next write
+                        return;
+                    }
+                }
+            }
+        }, "ToolOutput-flusher");
+    }
+
+    private static void startDaemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static class Chunk {
+        final byte[] bytes;
+        final int length;
+
+        Chunk(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package name.kevinross.tool.debuggable;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of a tool run launched without a shell: what the tool printed, how it exited and how
+ * long it took from exec to exit.
+ */
+public class ToolResult {
+    private final List<String> output;
+    private final int exitCode;
+    private final long elapsedNanos;
+    private final long firstOutputNanos;
+    private final long outputBytes;
+    private final Map<String, String> reports;
+
+    public ToolResult(List<String> output, int exitCode, long elapsedNanos, long firstOutputNanos, long outputBytes) {
+        this(output, exitCode, elapsedNanos, firstOutputNanos, outputBytes, Collections.<String, String>emptyMap());
+    }
+
+    public ToolResult(List<String> output, int exitCode, long elapsedNanos, long firstOutputNanos, long outputBytes, Map<String, String> reports) {
+        this.output = output;
+        this.exitCode = exitCode;
+        this.elapsedNanos = elapsedNanos;
+        this.firstOutputNanos = firstOutputNanos;
+        this.outputBytes = outputBytes;
+        this.reports = reports;
+    }
+
+    /**
+     * Lines written to stdout and stderr, in order
+     * @return
+     */
+    public List<String> getOutput() {
+        return output;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * Wall-clock time from starting app_process to its exit
+     * @return
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Time from starting app_process to the first byte of output, -1 if the tool printed nothing
+     * @return
+     */
+    public long getFirstOutputNanos() {
+        return firstOutputNanos;
+    }
+
+    /**
+     * Raw bytes the tool wrote to stdout and stderr
+     * @return
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * What the launcher reported back besides the tool's output, eg DebuggableTool#REPORT_TRACE
+     * @return
+     */
+    public Map<String, String> getReports() {
+        return reports;
+    }
+
+    /**
+     * @param key
+     * @return the reported value, null if nothing was reported under key
+     */
+    public String getReport(String key) {
+        return reports.get(key);
+    }
+
+    /**
+     * What the run cost, as reported by the tool's process when the tool returned
+     * @return null if the launch didn't ask for it (-U), the tool exited the process itself or ran
+     * in a shared process
+     */
+    public ResourceUsage getResourceUsage() {
+        String encoded = reports.get(ResourceUsage.REPORT_KEY);
+        return encoded == null ? null : ResourceUsage.decode(encoded);
+    }
+
+    public boolean isSuccess() {
+        return exitCode == 0;
+    }
+}
@@ -0,0 +1,411 @@
+package name.kevinross.tool.debuggable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of idempotent tool runs, so asking the same question twice doesn't launch a second
+ * (root) process. Entries are keyed on the tool class, its arguments, how it's launched and the
+ * size and modification time of the input files it declares, so changing an input misses the
+ * cache instead of returning a stale answer:
+ *
+ *      ToolResultCache cache = new ToolResultCache(64, 1024 * 1024).setDiskTier(new File(ctx.getCacheDir(), "tools"), 8 * 1024 * 1024);
+ *      new ListPackagesTool().setResultCache(cache, new File("/data/system/packages.xml")).runTool(true);
+ *
+ * Memory is an LRU bounded by entry count and (estimated) bytes. The optional disk tier keeps every
+ * entry as a file named after the key's digest and drops the least recently used files past its
+ * byte limit. It survives process restarts. Only runs that exited with 0 are stored. Shell runs
+ * report no exit code, so a failed su run (a stack trace, "permission denied") looks the same as a
+ * good one: they aren't stored unless #setShellRunMaxAge(long) says for how long they may be.
+ * #setMaxAge(long) bounds how long any entry counts as fresh.
+ */
+public class ToolResultCache {
+    private static final int DISK_FORMAT = 1;
+    // per-entry and per-line bookkeeping on top of the characters themselves
+    private static final long ENTRY_OVERHEAD = 128;
+    private static final long LINE_OVERHEAD = 40;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long maxAgeMillis = 0;
+    private long shellRunMaxAgeMillis = 0;
+    private File diskDir = null;
+    private long maxDiskBytes = 0;
+
+    private long hits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxEntries entries kept in memory
+     * @param maxBytes estimated memory the entries may take
+     */
+    public ToolResultCache(int maxEntries, long maxBytes) {
+        if (maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("cache limits must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Keep entries on disk as well
+     * @param dir created if missing, should be private to the app
+     * @param maxBytes size the directory is trimmed to
+     * @return
+     */
+    public synchronized ToolResultCache setDiskTier(File dir, long maxBytes) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("can't create " + dir);
+        }
+        diskDir = dir;
+        maxDiskBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @param millis how long an entry counts as fresh, 0 for as long as its inputs are unchanged
+     * @return
+     */
+    public synchronized ToolResultCache setMaxAge(long millis) {
+        maxAgeMillis = millis;
+        return this;
+    }
+
+    /**
+     * Store runs with no exit code (shell and su launches) too, each fresh for at most this long.
+     * Their output is stored whether or not the tool failed.
+     * @param millis how long such an entry counts as fresh, 0 to not store them (the default)
+     * @return
+     */
+    public synchronized ToolResultCache setShellRunMaxAge(long millis) {
+        shellRunMaxAgeMillis = millis;
+        return this;
+    }
+
+    /**
+     * Key for a run
+     * @param tool tool class name
+     * @param launch how it's launched, eg "su" and the uid, anything that changes the answer
+     * @param args tool arguments
+     * @param inputs files the answer depends on; missing files are part of the key too
+     * @return
+     */
+    public static String keyFor(String tool, String launch, String[] args, File... inputs) {
+        StringBuilder key = new StringBuilder();
+        key.append(tool).append('\n').append(launch).append('\n').append(args.length).append('\n');
+        for (String arg : args) {
+            // length-prefixed so ["a b"] and ["a", "b"] differ
+            key.append(arg.length()).append(':').append(arg).append('\n');
+        }
+        for (File input : inputs) {
+            if (input == null) {
+                continue;
+            }
+            key.append(input.getAbsolutePath()).append(' ');
+            if (input.exists()) {
+                key.append(input.length()).append(' ').append(input.lastModified());
+            } else {
+                key.append("missing");
+            }
+            key.append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param key from #keyFor
+     * @return the cached result, null on a miss
+     */
+    public synchronized ToolResult get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && !isFresh(entry.storedAt, entry.result.getExitCode())) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null && diskDir != null) {
+            entry = readFromDisk(key);
+            if (entry != null) {
+                diskHits++;
+                putInMemory(key, entry);
+            }
+        } else if (entry != null) {
+            hits++;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        return entry.result;
+    }
+
+    /**
+     * Store a result if it exited with 0, or if it has no exit code and #setShellRunMaxAge(long)
+     * allows those
+     * @param key from #keyFor
+     * @param result
+     */
+    public synchronized void put(String key, ToolResult result) {
+        if (result.getExitCode() > 0 || (result.getExitCode() < 0 && shellRunMaxAgeMillis <= 0)) {
+            return;
+        }
+        // the caller keeps its own copy of the lines to do with as it pleases
+        ToolResult copy = new ToolResult(new ArrayList<>(result.getOutput()), result.getExitCode(),
+                result.getElapsedNanos(), result.getFirstOutputNanos(), result.getOutputBytes(), result.getReports());
+        Entry entry = new Entry(copy, System.currentTimeMillis());
+        putInMemory(key, entry);
+        if (diskDir != null) {
+            writeToDisk(key, entry);
+        }
+    }
+
+    /**
+     * Drop everything, on disk too
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+        if (diskDir != null) {
+            for (File file : listDisk()) {
+                file.delete();
+            }
+        }
+    }
+
+    private boolean isFresh(long storedAt, int exitCode) {
+        long age = System.currentTimeMillis() - storedAt;
+        if (exitCode < 0 && (shellRunMaxAgeMillis <= 0 || age >= shellRunMaxAgeMillis)) {
+            return false;
+        }
+        return maxAgeMillis <= 0 || age < maxAgeMillis;
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        remove(key);
+        if (entry.size > maxBytes) {
+            // would push everything else out
+            return;
+        }
+        entries.put(key, entry);
+        bytes += entry.size;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().size;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            bytes -= old.size;
+        }
+    }
+
+    private File diskFile(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(UTF8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest) {
+                name.append(String.format("%02x", b & 0xff));
+            }
+            return new File(diskDir, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Entry readFromDisk(String key) {
+        File file = diskFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != DISK_FORMAT || !key.equals(readString(in))) {
+                    // another version's file, or a digest collision
+                    return null;
+                }
+                long storedAt = in.readLong();
+                int exitCode = in.readInt();
+                if (!isFresh(storedAt, exitCode)) {
+                    file.delete();
+                    return null;
+                }
+                Map<String, String> reports = new HashMap<>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    reports.put(readString(in), readString(in));
+                }
+                int count = in.readInt();
+                List<String> lines = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    lines.add(readString(in));
+                }
+                file.setLastModified(System.currentTimeMillis());
+                return new Entry(new ToolResult(lines, exitCode, 0, -1, 0, reports), storedAt);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // truncated or unreadable, treat as a miss
+            file.delete();
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        File file = diskFile(key);
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(DISK_FORMAT);
+                writeString(out, key);
+                out.writeLong(entry.storedAt);
+                out.writeInt(entry.result.getExitCode());
+                out.writeInt(entry.result.getReports().size());
+                for (Map.Entry<String, String> report : entry.result.getReports().entrySet()) {
+                    writeString(out, report.getKey());
+                    writeString(out, report.getValue());
+                }
+                out.writeInt(entry.result.getOutput().size());
+                for (String line : entry.result.getOutput()) {
+                    writeString(out, line);
+                }
+            } finally {
+                out.close();
+            }
+            // readers never see a half-written entry
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        trimDisk();
+    }
+
+    private void trimDisk() {
+        List<File> files = listDisk();
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxDiskBytes) {
+            return;
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long am = a.lastModified();
+                long bm = b.lastModified();
+                return am < bm ? -1 : (am == bm ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (total <= maxDiskBytes) {
+                break;
+            }
+            total -= file.length();
+            file.delete();
+        }
+    }
+
+    private List<File> listDisk() {
+        File[] files = diskDir.listFiles();
+        return files == null ? new ArrayList<File>() : new ArrayList<>(Arrays.asList(files));
+    }
+
+    // writeUTF caps strings at 64KB, tool output lines aren't
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] encoded = s.getBytes(UTF8);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] encoded = new byte[in.readInt()];
+        in.readFully(encoded);
+        return new String(encoded, UTF8);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Estimated memory taken by the entries
+     * @return
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Hits served from the disk tier, not counted in #getHits()
+     * @return
+     */
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Entries pushed out of memory by the limits
+     * @return
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private static class Entry {
+        final ToolResult result;
+        final long storedAt;
+        final long size;
+
+        Entry(ToolResult result, long storedAt) {
+            this.result = result;
+            this.storedAt = storedAt;
+            long estimate = ENTRY_OVERHEAD;
+            for (String line : result.getOutput()) {
+                estimate += LINE_OVERHEAD + 2L * line.length();
+            }
+            for (Map.Entry<String, String> report : result.getReports().entrySet()) {
+                estimate += LINE_OVERHEAD + 2L * (report.getKey().length() + report.getValue().length());
+            }
+            this.size = estimate;
+        }
+    }
+}
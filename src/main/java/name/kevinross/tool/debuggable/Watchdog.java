@@ -0,0 +1,72 @@
+package name.kevinross.tool.debuggable;
+
+import android.os.Process;
+
+import name.kevinross.tool.CancellationToken;
+
+/**
+ * Runs next to the tool in its process (DebuggableTool -T/-G) and cancels the tool's
+ * CancellationToken when its time is up or when the process that launched it goes away. A tool that
+ * is still running a grace period later has its process tree killed and exits with
+ * DebuggableTool#EXIT_TIMEOUT or DebuggableTool#EXIT_CANCELLED.
+ *
+ * Cancelling through the control socket (DebuggerControl "cancel") starts the same grace period.
+ */
+final class Watchdog implements Runnable {
+    /**
+     * Report key: why the run was cancelled
+     */
+    static final String REPORT_CANCELLED = "cancelled";
+    static final String REASON_TIMEOUT = "timeout";
+    static final String REASON_CALLER_GONE = "caller gone";
+
+    private static final long POLL_MILLIS = 250;
+
+    private final CancellationToken token;
+    private final long timeoutMillis;
+    private final long graceMillis;
+
+    private Watchdog(CancellationToken token, long timeoutMillis, long graceMillis) {
+        this.token = token;
+        this.timeoutMillis = timeoutMillis;
+        this.graceMillis = graceMillis;
+    }
+
+    /**
+     * @param token the tool's
+     * @param timeoutMillis 0 to only watch for the caller going away
+     * @param graceMillis how long a cancelled tool gets to wind down
+     * @return the watchdog thread
+     */
+    static Thread start(CancellationToken token, long timeoutMillis, long graceMillis) {
+        Thread thread = new Thread(new Watchdog(token, timeoutMillis, graceMillis), "DebuggableTool-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        int pid = Process.myPid();
+        int parent = ProcessTree.getParentPid(pid);
+        long deadline = timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1000000L : Long.MAX_VALUE;
+        try {
+            while (!token.isCancelled()) {
+                Thread.sleep(POLL_MILLIS);
+                if (System.nanoTime() - deadline >= 0) {
+                    token.cancel(REASON_TIMEOUT);
+                } else if (parent > 1 && ProcessTree.getParentPid(pid) != parent) {
+                    // reparented: whoever was waiting for our output is gone
+                    token.cancel(REASON_CALLER_GONE);
+                }
+            }
+            DebuggableTool.report(REPORT_CANCELLED, token.getReason());
+            Thread.sleep(graceMillis);
+        } catch (InterruptedException e) {
+            return;
+        }
+        System.err.println("DebuggableTool: still running " + graceMillis + "ms after being cancelled (" + token.getReason() + "), killing it");
+        ProcessTree.killDescendants(pid);
+        DebuggableTool.exit(REASON_TIMEOUT.equals(token.getReason()) ? DebuggableTool.EXIT_TIMEOUT : DebuggableTool.EXIT_CANCELLED);
+    }
+}
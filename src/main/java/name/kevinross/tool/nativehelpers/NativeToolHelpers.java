@@ -18,11 +18,17 @@ public class NativeToolHelpers {
      * Wrapper for internal VMRuntime class that exposes the current runtime instruction set
      */
     public static class VMRuntime {
+        private static volatile String currentInstructionSet = null;
+
         public static String getCurrentInstructionSet() {
-            // get the internal VMRuntime class
-            Class VMRuntimeClass = ReflectionUtil.getClassByName(ClassLoader.getSystemClassLoader(), "dalvik.system.VMRuntime");
-            // and the instruction set of the running process
-            return ReflectionUtil.invokes().on(VMRuntimeClass).name("getCurrentInstructionSet").nosy().swallow().<String>invoke();
+            // fixed for the life of the process
+            if (currentInstructionSet == null) {
+                // get the internal VMRuntime class
+                Class VMRuntimeClass = ReflectionUtil.getClassByName(ClassLoader.getSystemClassLoader(), "dalvik.system.VMRuntime");
+                // and the instruction set of the running process
+                currentInstructionSet = ReflectionUtil.invokes().on(VMRuntimeClass).name("getCurrentInstructionSet").nosy().swallow().<String>invoke();
+            }
+            return currentInstructionSet;
         }
     }
 
@@ -0,0 +1,177 @@
+package simpleton.dalvik_patch;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dalvik.system.DexFile;
+
+/**
+ * Class name -> dex index over the elements DexInjector appended to a PathClassLoader.
+ *
+ * BaseDexClassLoader#findClass probes every element of the path list in order, so with many
+ * injected dexes a class near the end costs one lookup per dex in front of it. #install() puts the
+ * index in that loader's way: it becomes the loader's parent (with the old parent as its own), so
+ * every lookup, explicit or from resolving bytecode, asks it right after the boot classes and it
+ * defines an injected class straight from the dex that has it, on the loader the elements were
+ * merged into.
+ *
+ * Elements are indexed lazily from their dex's class list the first time a lookup happens after
+ * they were added. The loader's own dexes are indexed too, only to know which names they define
+ * first: those are left to the path list, so a class resolves to the same dex it would without the
+ * index. Any loader in the chain that isn't a BaseDexClassLoader makes ART give up its native
+ * lookup for the chain and call loadClass from Java, so the index only pays off with many injected
+ * dexes.
+ */
+public class DexElementIndex {
+    private final ClassLoader definingLoader;
+    private final List<Object> pending = new ArrayList<>();
+    private final List<Boolean> pendingInjected = new ArrayList<>();
+    // null for names one of the loader's own dexes has first
+    private final Map<String, DexFile> owners = new HashMap<>();
+
+    public DexElementIndex(ClassLoader definingLoader) {
+        this.definingLoader = definingLoader;
+    }
+
+    /**
+     * Queue up injected elements for indexing
+     * @param dexElements a DexPathList$Element[]
+     */
+    public synchronized void add(Object dexElements) {
+        add(dexElements, true);
+    }
+
+    /**
+     * Queue up the elements the loader had before anything was injected; call before #add(Object)
+     * @param dexElements a DexPathList$Element[]
+     */
+    public synchronized void addOriginal(Object dexElements) {
+        add(dexElements, false);
+    }
+
+    private void add(Object dexElements, boolean injected) {
+        for (int i = 0; i < Array.getLength(dexElements); i++) {
+            pending.add(Array.get(dexElements, i));
+            pendingInjected.add(injected);
+        }
+    }
+
+    /**
+     * Make the index part of the defining loader's lookups
+     * @throws ReflectiveOperationException the runtime's ClassLoader has no parent field
+     */
+    public void install() throws ReflectiveOperationException {
+        Field parent = ClassLoader.class.getDeclaredField("parent");
+        parent.setAccessible(true);
+        synchronized (definingLoader) {
+            Object current = parent.get(definingLoader);
+            if (current instanceof Lookup) {
+                return;
+            }
+            parent.set(definingLoader, new Lookup((ClassLoader) current, this));
+        }
+    }
+
+    /**
+     * Load a class from the injected dex that contains it
+     * @param name binary class name ("com.example.Foo$Bar")
+     * @return the class, null if no injected dex has it first
+     */
+    public Class<?> findClass(String name) {
+        DexFile owner = ownerOf(name);
+        if (owner == null) {
+            return null;
+        }
+        // DexFile#loadClass returns the already-defined class if the loader has one
+        return owner.loadClass(name, definingLoader);
+    }
+
+    /**
+     * @param name binary class name
+     * @return whether the class comes from an injected dex
+     */
+    public synchronized boolean contains(String name) {
+        indexPending();
+        return owners.get(name) != null;
+    }
+
+    /**
+     * Number of classes indexed so far, the loader's own included
+     * @return
+     */
+    public synchronized int size() {
+        return owners.size();
+    }
+
+    private synchronized DexFile ownerOf(String name) {
+        indexPending();
+        return owners.get(name);
+    }
+
+    private void indexPending() {
+        for (int i = 0; i < pending.size(); i++) {
+            DexFile dex = getDexFile(pending.get(i));
+            if (dex == null) {
+                // resource-only or directory element
+                continue;
+            }
+            boolean injected = pendingInjected.get(i);
+            Enumeration<String> names = dex.entries();
+            while (names.hasMoreElements()) {
+                String name = names.nextElement();
+                // path list order: the first element with the class wins
+                if (!owners.containsKey(name)) {
+                    owners.put(name, injected ? dex : null);
+                }
+            }
+        }
+        pending.clear();
+        pendingInjected.clear();
+    }
+
+    private static DexFile getDexFile(Object element) {
+        try {
+            Field field = element.getClass().getDeclaredField("dexFile");
+            field.setAccessible(true);
+            return (DexFile) field.get(element);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * The loader #install() puts between the defining loader and its parent. ClassLoader#loadClass
+     * asks the old parent first, then #findClass.
+     */
+    private static class Lookup extends ClassLoader {
+        // thrown for every class the index doesn't serve, and always caught by the loader below
+        private static final ClassNotFoundException NOT_INJECTED = new ClassNotFoundException("not in an injected dex") {
+            @Override
+            public synchronized Throwable fillInStackTrace() {
+                return this;
+            }
+        };
+
+        private final DexElementIndex index;
+
+        Lookup(ClassLoader parent, DexElementIndex index) {
+            super(parent);
+            this.index = index;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            Class<?> found = index.findClass(name);
+            if (found == null) {
+                throw NOT_INJECTED;
+            }
+            return found;
+        }
+    }
+}
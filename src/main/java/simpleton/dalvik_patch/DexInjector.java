@@ -6,16 +6,48 @@ package simpleton.dalvik_patch;
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import dalvik.system.DexClassLoader;
 import dalvik.system.PathClassLoader;
+import name.kevinross.tool.ReflectionUtil;
 
 public class DexInjector {
 
     private static final String TAG = DexInjector.class.getSimpleName();
+    private static DexElementIndex index = null;
+
+    /**
+     * The index of dexes injected so far with BaseDexClassLoader-based injection, which the loader
+     * consults on every lookup
+     * @return null if nothing was injected that way
+     */
+    public static synchronized DexElementIndex getIndex() {
+        return index;
+    }
+
+    private static synchronized void addToIndex(ClassLoader loader, Object originalElements, Object injected) {
+        if (index == null) {
+            DexElementIndex created = new DexElementIndex(loader);
+            created.addOriginal(originalElements);
+            try {
+                created.install();
+            } catch (ReflectiveOperationException e) {
+                // lookups keep probing the path list
+                Log.w(TAG, "can't index injected dexes", e);
+                return;
+            }
+            index = created;
+        }
+        index.add(injected);
+    }
     /**
      * inject your dex file to PathClassLoader
      * @param dexPath  the list of jar/apk files containing classes and resources, delimited by File.pathSeparator, which defaults to ":" on Android
@@ -26,7 +58,11 @@ public class DexInjector {
     public static synchronized Boolean inject(String dexPath, String defaultDexOptPath, String nativeLibPath, String dummyClassName) {
         try {
             Class.forName("dalvik.system.LexClassLoader");
-            return injectInAliyunOs(dexPath, defaultDexOptPath, nativeLibPath, dummyClassName);
+            Boolean injected = injectInAliyunOs(dexPath, defaultDexOptPath, nativeLibPath, dummyClassName);
+            if (injected) {
+                ReflectionUtil.forgetMissingClasses(DexInjector.class.getClassLoader());
+            }
+            return injected;
         } catch (ClassNotFoundException e) {
         }
 
@@ -38,10 +74,75 @@ public class DexInjector {
             hasBaseDexClassLoader = false;
         }
 
+        Boolean injected;
         if (!hasBaseDexClassLoader) {
-            return injectBelowApiLevel14(dexPath, defaultDexOptPath, nativeLibPath, dummyClassName);
+            injected = injectBelowApiLevel14(dexPath, defaultDexOptPath, nativeLibPath, dummyClassName);
         } else {
-            return injectAboveEqualApiLevel14(dexPath, defaultDexOptPath, nativeLibPath, dummyClassName);
+            injected = injectAboveEqualApiLevel14(dexPath, defaultDexOptPath, nativeLibPath, dummyClassName);
+        }
+        if (injected) {
+            // classes that weren't there before may be now
+            ReflectionUtil.forgetMissingClasses(DexInjector.class.getClassLoader());
+        }
+        return injected;
+    }
+
+    /**
+     * inject in-memory dexes to PathClassLoader (API 26+, InMemoryDexClassLoader), skipping the
+     * file writes and dexopt of #inject(String, String, String, String)
+     * @param dexBuffers  dex file contents, heap or memory-mapped {@see #mapDex(File)}; each buffer is read from its position to its limit
+     * @return whether success
+     */
+    public static synchronized Boolean inject(ByteBuffer... dexBuffers) {
+        Log.i(TAG, "--> injectInMemory");
+        PathClassLoader pathClassLoader = (PathClassLoader) DexInjector.class.getClassLoader();
+        try {
+            Class<?> inMemoryClassLoader = Class.forName("dalvik.system.InMemoryDexClassLoader");
+            ClassLoader dexClassLoader;
+            try {
+                // API 27+ takes all the buffers at once
+                dexClassLoader = (ClassLoader) inMemoryClassLoader.getConstructor(ByteBuffer[].class, ClassLoader.class)
+                        .newInstance(dexBuffers, pathClassLoader);
+            } catch (NoSuchMethodException e) {
+                if (dexBuffers.length != 1) {
+                    Log.e(TAG, "this runtime only loads one in-memory dex per loader");
+                    return false;
+                }
+                dexClassLoader = (ClassLoader) inMemoryClassLoader.getConstructor(ByteBuffer.class, ClassLoader.class)
+                        .newInstance(dexBuffers[0], pathClassLoader);
+            }
+            Object injected = getDexElements(getPathList(dexClassLoader));
+            Object original = getDexElements(getPathList(pathClassLoader));
+            Object dexElements = combineArray(original, injected);
+
+            Object pathList = getPathList(pathClassLoader);
+            setField(pathList, pathList.getClass(), "dexElements", dexElements);
+            addToIndex(pathClassLoader, original, injected);
+            ReflectionUtil.forgetMissingClasses(pathClassLoader);
+        } catch (ClassNotFoundException e) {
+            Log.e(TAG, "InMemoryDexClassLoader needs API 26+");
+            return false;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return false;
+        }
+        Log.i(TAG, "<-- injectInMemory End.");
+        return true;
+    }
+
+    /**
+     * Map a dex file read-only for #inject(ByteBuffer...). The mapping stays valid after the file is
+     * closed, so downloaded code can be used without copying it onto the heap.
+     * @param dex plain dex file (not an apk/jar)
+     * @return the mapping
+     * @throws IOException
+     */
+    public static MappedByteBuffer mapDex(File dex) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(dex, "r");
+        try {
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
         }
     }
 
@@ -149,12 +250,13 @@ public class DexInjector {
         DexClassLoader dexClassLoader = new DexClassLoader(dexPath, defaultDexOptPath, nativeLibPath, pathClassLoader);
         try {
             dexClassLoader.loadClass(dummyClassName);
-            Object dexElements = combineArray(
-                    getDexElements(getPathList(pathClassLoader)),
-                    getDexElements(getPathList(dexClassLoader)));
+            Object injected = getDexElements(getPathList(dexClassLoader));
+            Object original = getDexElements(getPathList(pathClassLoader));
+            Object dexElements = combineArray(original, injected);
 
             Object pathList = getPathList(pathClassLoader);
             setField(pathList, pathList.getClass(), "dexElements", dexElements);
+            addToIndex(pathClassLoader, original, injected);
         } catch (Throwable e) {
             e.printStackTrace();
             return false;
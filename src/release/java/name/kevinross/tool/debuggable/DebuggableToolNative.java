@@ -18,12 +18,19 @@ public class DebuggableToolNative {
     }
     public static void StartJdwp() {
     }
+    public static void StopJdwp() {
+    }
     public static void SetJdwpAllowed(boolean allowed) {
     }
     public static void ConfigureJdwp() {
     }
+    public static int Fork() {
+        return -1;
+    }
     public static void StartDebugger() {
     }
+    public static void StopDebugger() {
+    }
     public static boolean IsDebuggerConnected() {
         return false;
     }
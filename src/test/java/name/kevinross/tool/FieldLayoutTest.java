@@ -0,0 +1,93 @@
+package name.kevinross.tool;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class FieldLayoutTest {
+    static class Base {
+        private String hidden = "base";
+        static int counter = 7;
+    }
+
+    static class Element extends Base {
+        private final String path;
+        private int size;
+
+        Element(String path, int size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    @Test
+    public void namedFieldsThroughTheHierarchy() throws NoSuchFieldException {
+        FieldLayout layout = FieldLayout.of(Element.class, "size", "hidden", "counter");
+        assertEquals(3, layout.size());
+        assertEquals(Element.class, layout.getLayoutClass());
+        assertEquals(1, layout.indexOf("hidden"));
+        assertEquals(-1, layout.indexOf("path"));
+        Object[] values = layout.snapshot(new Element("a", 3), null);
+        assertArrayEquals(new Object[]{3, "base", 7}, values);
+        assertEquals("name.kevinross.tool.FieldLayoutTest$Element[size, hidden, counter]", layout.toString());
+    }
+
+    @Test
+    public void missingField() {
+        try {
+            FieldLayout.of(Element.class, "size", "nope");
+            fail("layout with a missing field");
+        } catch (NoSuchFieldException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void allInstanceFieldsOwnFirst() {
+        FieldLayout layout = FieldLayout.allOf(Element.class);
+        String[] names = new String[layout.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = layout.getField(i).getName();
+        }
+        // no statics, and nothing from Object
+        assertEquals(Arrays.asList("path", "size", "hidden"), Arrays.asList(names));
+        assertEquals(-1, layout.indexOf("counter"));
+    }
+
+    @Test
+    public void snapshotReusesBigEnoughArrays() throws NoSuchFieldException {
+        FieldLayout layout = FieldLayout.of(Element.class, "path", "size");
+        Object[] big = new Object[4];
+        assertSame(big, layout.snapshot(new Element("a", 1), big));
+        Object[] small = new Object[1];
+        Object[] grown = layout.snapshot(new Element("b", 2), small);
+        assertEquals(2, grown.length);
+        assertArrayEquals(new Object[]{"b", 2}, grown);
+    }
+
+    @Test
+    public void restoreWritesFinalFields() throws NoSuchFieldException {
+        FieldLayout layout = FieldLayout.of(Element.class, "path", "size");
+        Element from = new Element("from", 10);
+        Element to = new Element("to", 20);
+        layout.restore(to, layout.snapshot(from, null));
+        assertEquals("from", to.path);
+        assertEquals(10, to.size);
+        layout.set(to, 1, 11);
+        String path = layout.get(to, 0);
+        int size = layout.get(to, 1);
+        assertEquals("from", path);
+        assertEquals(11, size);
+        try {
+            layout.restore(to, new Object[1]);
+            fail("short value array restored");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package name.kevinross.tool;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ObjectGraphDumperTest {
+    static class Node {
+        String name;
+        Node next;
+
+        Node(String name, Node next) {
+            this.name = name;
+            this.next = next;
+        }
+    }
+
+    static class Holder {
+        Object[] items;
+        int[] numbers;
+    }
+
+    private static final String NODE = "name.kevinross.tool.ObjectGraphDumperTest$Node";
+
+    @Test
+    public void cyclesAreExpandedOnce() throws IOException {
+        Node a = new Node("a", null);
+        Node b = new Node("b", a);
+        a.next = b;
+        StringWriter out = new StringWriter();
+        assertEquals(2, new ObjectGraphDumper().dump(a, out));
+        assertEquals("#1 " + NODE + "\n"
+                + "  name = \"a\"\n"
+                + "  next -> #2 " + NODE + "\n"
+                + "    name = \"b\"\n"
+                + "    next -> #1 (seen)\n", out.toString());
+    }
+
+    @Test
+    public void depthLimit() throws IOException {
+        Node chain = null;
+        for (int i = 0; i < 10; i++) {
+            chain = new Node("n" + i, chain);
+        }
+        StringWriter out = new StringWriter();
+        assertEquals(3, new ObjectGraphDumper().setMaxDepth(2).dump(chain, out));
+        assertTrue(out.toString(), out.toString().endsWith("    next -> #3 " + NODE + "\n      ...\n"));
+        assertFalse(out.toString().contains("n6"));
+    }
+
+    @Test
+    public void objectLimit() throws IOException {
+        Node chain = null;
+        for (int i = 0; i < 10; i++) {
+            chain = new Node("n" + i, chain);
+        }
+        StringWriter out = new StringWriter();
+        assertEquals(4, new ObjectGraphDumper().setMaxObjects(4).dump(chain, out));
+        assertTrue(out.toString(), out.toString().endsWith("next -> <object limit reached>\n"));
+    }
+
+    @Test
+    public void arrayAndStringLimits() throws IOException {
+        Holder holder = new Holder();
+        holder.items = new Object[]{"abcdefgh", 'c', Thread.State.NEW, String.class, null};
+        holder.numbers = new int[]{1, 2, 3, 4};
+        StringWriter out = new StringWriter();
+        new ObjectGraphDumper().setMaxArrayElements(3).setMaxStringLength(4).dump(holder, out);
+        assertEquals("#1 name.kevinross.tool.ObjectGraphDumperTest$Holder\n"
+                + "  items -> #2 java.lang.Object[5]\n"
+                + "    [0] = \"abcd\"...(8 chars)\n"
+                + "    [1] = 'c'\n"
+                + "    [2] = java.lang.Thread$State.NEW\n"
+                + "    <2 more>\n"
+                + "  numbers -> #3 int[4] [1, 2, 3, <1 more>]\n", out.toString());
+    }
+
+    @Test
+    public void charLimit() throws IOException {
+        Node chain = null;
+        for (int i = 0; i < 1000; i++) {
+            chain = new Node("node number " + i, chain);
+        }
+        StringWriter out = new StringWriter();
+        int expanded = new ObjectGraphDumper().setMaxDepth(2000).setMaxChars(500).dump(chain, out);
+        assertTrue(expanded < 1000);
+        String dump = out.toString();
+        assertTrue(dump, dump.endsWith("\n<output limit reached>\n"));
+        // stops within one write of the limit
+        assertTrue(dump.length() + " chars", dump.length() < 500 + 100);
+    }
+}
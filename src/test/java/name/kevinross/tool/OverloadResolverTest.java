@@ -0,0 +1,172 @@
+package name.kevinross.tool;
+
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class OverloadResolverTest {
+    @SuppressWarnings("unused")
+    static class Overloads {
+        Overloads(Object o) {
+        }
+
+        Overloads(String s) {
+        }
+
+        Overloads(long l) {
+        }
+
+        void f(Integer i) {
+        }
+
+        void f(long l) {
+        }
+
+        void h(Object o) {
+        }
+
+        void h(double d) {
+        }
+
+        void g(long l) {
+        }
+
+        void g(double d) {
+        }
+
+        void k(int i) {
+        }
+
+        void s(Object o) {
+        }
+
+        void s(CharSequence c) {
+        }
+
+        void s(String s) {
+        }
+
+        void a(String s) {
+        }
+
+        void a(Integer i) {
+        }
+
+        void m(int i, String s) {
+        }
+
+        void m(long l, Object o) {
+        }
+
+        void n(int i, Object o) {
+        }
+
+        void n(long l, String s) {
+        }
+
+        void o(Number n) {
+        }
+    }
+
+    static class Override extends Overloads {
+        Override() {
+            super(null);
+        }
+
+        @java.lang.Override
+        void o(Number n) {
+        }
+    }
+
+    @Test
+    public void subtypingBeatsUnboxing() throws NoSuchMethodException {
+        // javac: f(Integer) and h(Object), no unboxing while a candidate fits without it
+        assertParams(resolve("f", 1), Integer.class);
+        assertParams(resolve("h", 1), Object.class);
+    }
+
+    @Test
+    public void unboxesWhenNothingElseFits() throws NoSuchMethodException {
+        assertParams(resolve("g", 1), long.class);
+        assertParams(resolve("g", 1.5f), double.class);
+        assertParams(resolve("k", (short) 1), int.class);
+        assertParams(resolve("k", 'c'), int.class);
+        assertNoMatch("k", 1L);
+        assertNoMatch("k", true);
+    }
+
+    @Test
+    public void mostSpecificReference() throws NoSuchMethodException {
+        assertParams(resolve("s", "x"), String.class);
+        assertParams(resolve("s", new StringBuilder()), CharSequence.class);
+        assertParams(resolve("s", 1), Object.class);
+        assertParams(resolve("s", (Object) null), String.class);
+    }
+
+    @Test
+    public void mixedParameters() throws NoSuchMethodException {
+        assertParams(resolve("m", 1, "x"), int.class, String.class);
+        // int <: long but Object isn't a String: neither is more specific
+        assertNoMatch("n", 1, "x");
+    }
+
+    @Test
+    public void ambiguousNull() {
+        assertNoMatch("a", (Object) null);
+    }
+
+    @Test
+    public void overrideHidesOverridden() throws NoSuchMethodException {
+        Method method = OverloadResolver.method(Override.class, "o", new Object[]{1});
+        assertEquals(Override.class, method.getDeclaringClass());
+    }
+
+    @Test
+    public void constructors() throws NoSuchMethodException {
+        assertArrayEquals(new Class<?>[]{String.class}, constructor("x").getParameterTypes());
+        assertArrayEquals(new Class<?>[]{Object.class}, constructor(1).getParameterTypes());
+        // as javac: the Long fits Object without unboxing
+        assertArrayEquals(new Class<?>[]{Object.class}, constructor(1L).getParameterTypes());
+    }
+
+    @Test
+    public void decisionsSurviveCollection() throws NoSuchMethodException {
+        Method first = resolve("g", 7);
+        System.gc();
+        System.runFinalization();
+        System.gc();
+        // getDeclaredMethods hands out copies, the same instance means the decision was cached
+        assertSame(first, resolve("g", 7));
+        OverloadResolver.evict(Overloads.class.getClassLoader());
+        Method again = resolve("g", 7);
+        assertNotSame(first, again);
+        assertEquals(first, again);
+    }
+
+    private static Method resolve(String name, Object... params) throws NoSuchMethodException {
+        return OverloadResolver.method(Overloads.class, name, params);
+    }
+
+    private static Constructor<?> constructor(Object... params) throws NoSuchMethodException {
+        return OverloadResolver.constructor(Overloads.class, params);
+    }
+
+    private static void assertParams(Method method, Class<?>... types) {
+        assertArrayEquals(method.toString(), types, method.getParameterTypes());
+    }
+
+    private static void assertNoMatch(String name, Object... params) {
+        try {
+            fail("resolved to " + resolve(name, params));
+        } catch (NoSuchMethodException e) {
+            // expected
+        }
+    }
+}
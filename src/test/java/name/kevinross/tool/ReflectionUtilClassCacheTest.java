@@ -0,0 +1,72 @@
+package name.kevinross.tool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReflectionUtilClassCacheTest {
+    /**
+     * Knows one class name once it's told to, counting how often it's asked
+     */
+    static class CountingLoader extends ClassLoader {
+        int lookups = 0;
+        volatile boolean hasGreeting = false;
+
+        CountingLoader() {
+            super(null);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            lookups++;
+            if (hasGreeting && name.equals("com.example.Greeting")) {
+                return Runnable.class;
+            }
+            throw new ClassNotFoundException(name);
+        }
+    }
+
+    @Test
+    public void missIsCached() {
+        CountingLoader loader = new CountingLoader();
+        assertNull(ReflectionUtil.findClassByName(loader, "com.example.Greeting"));
+        assertNull(ReflectionUtil.findClassByName(loader, "com.example.Greeting"));
+        assertEquals(1, loader.lookups);
+        try {
+            ReflectionUtil.getClassByName(loader, "com.example.Greeting");
+            fail("missing class returned");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof ClassNotFoundException);
+            assertEquals("com.example.Greeting", e.getCause().getMessage());
+        }
+        assertEquals(1, loader.lookups);
+    }
+
+    @Test
+    public void forgetMissingClasses() {
+        CountingLoader loader = new CountingLoader();
+        assertNull(ReflectionUtil.findClassByName(loader, "com.example.Greeting"));
+        assertNull(ReflectionUtil.findClassByName(loader, "com.example.Other"));
+        loader.hasGreeting = true;
+        // still the cached miss
+        assertNull(ReflectionUtil.findClassByName(loader, "com.example.Greeting"));
+        ReflectionUtil.forgetMissingClasses(loader);
+        assertSame(Runnable.class, ReflectionUtil.findClassByName(loader, "com.example.Greeting"));
+        assertEquals(3, loader.lookups);
+        // hits are kept across a forget
+        ReflectionUtil.forgetMissingClasses(loader);
+        assertSame(Runnable.class, ReflectionUtil.getClassByName(loader, "com.example.Greeting"));
+        assertEquals(3, loader.lookups);
+        assertNull(ReflectionUtil.findClassByName(loader, "com.example.Other"));
+        assertEquals(4, loader.lookups);
+    }
+
+    @Test
+    public void forgetUnknownLoader() {
+        ReflectionUtil.forgetMissingClasses(new CountingLoader());
+    }
+}
@@ -0,0 +1,73 @@
+package name.kevinross.tool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReflectionUtilProbeTest {
+    static class Target {
+        private int value = 5;
+
+        private int twice(int x) {
+            return 2 * x;
+        }
+    }
+
+    static class Hit {
+        private int value = 5;
+
+        private int twice(int x) {
+            return 2 * x;
+        }
+    }
+
+    static class Capped {
+    }
+
+    @Test
+    public void hitsAreNotRemembered() {
+        Hit hit = new Hit();
+        int doubled = ReflectionUtil.invokes().on(hit).name("twice").of(int.class).using(21).probe().invoke();
+        assertEquals(42, doubled);
+        int value = ReflectionUtil.invokes().on(hit).name("value").probe().get();
+        assertEquals(5, value);
+        assertEquals(0, ReflectionUtil.InvokerProbe.getMissCount(Hit.class));
+    }
+
+    @Test
+    public void missIsRememberedOnce() {
+        IInvoker.ProbeInterface probe = ReflectionUtil.invokes().on(Target.class).name("thrice").of(int.class).probe();
+        assertFalse(probe.hasMethod());
+        assertEquals(1, ReflectionUtil.InvokerProbe.getMissCount(Target.class));
+        // same lookup again: answered from the stored miss, which still matches after detaching
+        assertFalse(ReflectionUtil.invokes().on(Target.class).name("thrice").of(int.class).probe().hasMethod());
+        assertEquals(1, ReflectionUtil.InvokerProbe.getMissCount(Target.class));
+        // other parameter types or kinds are other lookups
+        assertFalse(ReflectionUtil.invokes().on(Target.class).name("thrice").of(long.class).probe().hasMethod());
+        assertFalse(ReflectionUtil.invokes().on(Target.class).name("thrice").probe().hasField());
+        assertEquals(3, ReflectionUtil.InvokerProbe.getMissCount(Target.class));
+        // a miss doesn't hide what is there
+        assertTrue(ReflectionUtil.invokes().on(Target.class).name("twice").of(int.class).probe().hasMethod());
+        assertNull(ReflectionUtil.invokes().on(new Target()).name("thrice").of(int.class).using(1).probe().invoke());
+        assertEquals("fallback", ReflectionUtil.invokes().on(new Target()).name("nope").probe().get("fallback"));
+    }
+
+    @Test
+    public void missesPerClassAreCapped() {
+        int cap = ReflectionUtil.InvokerProbe.MAX_MISSES_PER_CLASS;
+        for (int i = 0; i < cap; i++) {
+            assertFalse(ReflectionUtil.invokes().on(Capped.class).name("missing" + i).probe().hasMethod());
+        }
+        assertEquals(cap, ReflectionUtil.InvokerProbe.getMissCount(Capped.class));
+        // one past the cap starts over rather than growing
+        assertFalse(ReflectionUtil.invokes().on(Capped.class).name("missing" + cap).probe().hasMethod());
+        assertEquals(1, ReflectionUtil.InvokerProbe.getMissCount(Capped.class));
+        for (int i = 0; i < 3 * cap; i++) {
+            ReflectionUtil.invokes().on(Capped.class).name("more" + i).probe().hasField();
+            assertTrue(ReflectionUtil.InvokerProbe.getMissCount(Capped.class) <= cap);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package name.kevinross.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import name.kevinross.tool.debuggable.DebuggableToolHelpers;
+
+/**
+ * Swapping in a new version of a tool with ReloadableToolLoader and running it, against a cold
+ * app_process start of the same tool. Needs a device (both sides load dex), so it's not a test;
+ * dex the test and main classes together with the tool and run its main() there:
+ *
+ * CLASSPATH=/data/local/tmp/bench.dex app_process / name.kevinross.tool.ReloadBenchmark /data/local/tmp/tool.dex com.example.tools.Scan [runs]
+ *
+ * The tool must live in its own package, which is used as the reloadable prefix. Prints the
+ * median and best of each.
+ */
+public class ReloadBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: ReloadBenchmark <tool dex> <tool class> [runs]");
+            System.exit(1);
+        }
+        String dex = args[0];
+        String toolClass = args[1];
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        File optimized = new File(System.getProperty("java.io.tmpdir", "/data/local/tmp"));
+        ReloadableToolLoader tools = new ReloadableToolLoader(ReloadBenchmark.class.getClassLoader(),
+                toolClass.substring(0, toolClass.lastIndexOf('.') + 1), optimized);
+
+        List<Long> reload = new ArrayList<>();
+        List<Long> swapOnly = new ArrayList<>();
+        List<Long> cold = new ArrayList<>();
+        for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            swapOnly.add(tools.reload(dex));
+            tools.run(toolClass, null);
+            reload.add(System.nanoTime() - start);
+            cold.add(coldStart(dex, toolClass));
+        }
+        print("swap", swapOnly);
+        print("swap+run", reload);
+        print("cold start", cold);
+    }
+
+    /**
+     * @return nanoseconds from exec to the tool's exit
+     */
+    private static long coldStart(String dex, String toolClass) throws IOException, InterruptedException {
+        List<String> argv = DebuggableToolHelpers.getArgvForMainClass(toolClass, false, null, Collections.<String>emptyList(), null);
+        ProcessBuilder builder = new ProcessBuilder(argv).redirectErrorStream(true);
+        builder.environment().put("CLASSPATH", dex);
+        long start = System.nanoTime();
+        Process process = builder.start();
+        InputStream out = process.getInputStream();
+        byte[] buffer = new byte[8192];
+        while (out.read(buffer) != -1) {
+            // drain so the tool never blocks on a full pipe
+        }
+        process.waitFor();
+        return System.nanoTime() - start;
+    }
+
+    private static void print(String what, List<Long> nanos) {
+        Long[] sorted = nanos.toArray(new Long[nanos.size()]);
+        Arrays.sort(sorted);
+        System.out.println(String.format("%-10s median %6.1fms best %6.1fms", what,
+                sorted[sorted.length / 2] / 1e6, sorted[0] / 1e6));
+    }
+}
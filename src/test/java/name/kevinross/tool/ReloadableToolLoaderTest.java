@@ -0,0 +1,71 @@
+package name.kevinross.tool;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReloadableToolLoaderTest {
+    private final ReloadableToolLoader tools = new ReloadableToolLoader(getClass().getClassLoader(), "com.example.tools.",
+            new File(System.getProperty("java.io.tmpdir")));
+
+    @Test
+    public void nothingLoaded() {
+        try {
+            tools.acquire();
+            fail("lease without a version");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void idleVersionIsDroppedOnReload() throws InterruptedException {
+        tools.reload("v1.dex");
+        tools.reload("v2.dex");
+        assertEquals(0, tools.getRetiredCount());
+        assertTrue(tools.awaitRetired(0));
+        assertTrue(tools.getLastReloadNanos() >= 0);
+    }
+
+    @Test
+    public void pinnedVersionIsDroppedByItsLastLease() throws InterruptedException {
+        tools.reload("v1.dex");
+        ReloadableToolLoader.Lease first = tools.acquire();
+        ReloadableToolLoader.Lease second = tools.acquire();
+        tools.reload("v2.dex");
+        ReloadableToolLoader.Lease third = tools.acquire();
+        assertNotSame(first.getClassLoader(), third.getClassLoader());
+        assertEquals(1, tools.getRetiredCount());
+        assertFalse(tools.awaitRetired(10));
+        first.close();
+        // closing twice doesn't count twice
+        first.close();
+        assertEquals(1, tools.getRetiredCount());
+        second.close();
+        // dropped without anyone waiting for it
+        assertEquals(0, tools.getRetiredCount());
+        assertTrue(tools.awaitRetired(0));
+        third.close();
+        assertEquals(0, tools.getRetiredCount());
+    }
+
+    @Test
+    public void manyVersionsDrainIndependently() {
+        tools.reload("v1.dex");
+        ReloadableToolLoader.Lease v1 = tools.acquire();
+        tools.reload("v2.dex");
+        ReloadableToolLoader.Lease v2 = tools.acquire();
+        tools.reload("v3.dex");
+        assertEquals(2, tools.getRetiredCount());
+        v2.close();
+        assertEquals(1, tools.getRetiredCount());
+        v1.close();
+        assertEquals(0, tools.getRetiredCount());
+    }
+}
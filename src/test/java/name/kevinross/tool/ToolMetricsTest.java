@@ -0,0 +1,133 @@
+package name.kevinross.tool;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Random;
+
+import name.kevinross.tool.debuggable.DebuggableTool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ToolMetricsTest {
+    private static final ToolMetrics metrics = ToolMetrics.get();
+
+    @After
+    public void tearDown() {
+        metrics.reset();
+    }
+
+    @Test
+    public void bucketsTileTheRange() {
+        assertEquals(0, ToolMetrics.Histogram.indexOf(0));
+        for (int value = 0; value < ToolMetrics.Histogram.SUB_BUCKETS; value++) {
+            assertEquals(value, ToolMetrics.Histogram.indexOf(value));
+            assertEquals(value, ToolMetrics.Histogram.highestValueAt(value));
+        }
+        // every bucket ends where the next begins, up to the one holding Long.MAX_VALUE
+        int top = ToolMetrics.Histogram.indexOf(Long.MAX_VALUE);
+        for (int index = 0; index < top; index++) {
+            long highest = ToolMetrics.Histogram.highestValueAt(index);
+            assertEquals(index, ToolMetrics.Histogram.indexOf(highest));
+            assertEquals(index + 1, ToolMetrics.Histogram.indexOf(highest + 1));
+        }
+        assertEquals(Long.MAX_VALUE, ToolMetrics.Histogram.highestValueAt(top));
+        assertTrue(top < ToolMetrics.Histogram.BUCKETS);
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        int subBuckets = ToolMetrics.Histogram.SUB_BUCKETS;
+        // first log-linear bucket is twice as wide as the exact ones
+        assertEquals(subBuckets, ToolMetrics.Histogram.indexOf(subBuckets));
+        assertEquals(subBuckets, ToolMetrics.Histogram.indexOf(subBuckets + 1));
+        assertEquals(subBuckets + 1, ToolMetrics.Histogram.indexOf(subBuckets + 2));
+        assertEquals(subBuckets + 1, ToolMetrics.Histogram.highestValueAt(subBuckets));
+        // the next power of two starts a new run of SUB_BUCKETS/2
+        assertEquals(subBuckets + subBuckets / 2, ToolMetrics.Histogram.indexOf(2 * subBuckets));
+        assertEquals(subBuckets + subBuckets / 2 - 1, ToolMetrics.Histogram.indexOf(2 * subBuckets - 1));
+        assertEquals(Long.MAX_VALUE, ToolMetrics.Histogram.highestValueAt(ToolMetrics.Histogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void relativeError() {
+        Random random = new Random(42);
+        double bound = 2.0 / ToolMetrics.Histogram.SUB_BUCKETS;
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            long highest = ToolMetrics.Histogram.highestValueAt(ToolMetrics.Histogram.indexOf(value));
+            assertTrue(value + " in bucket ending at " + highest, highest >= value);
+            assertTrue(value + " in bucket ending at " + highest, (double) (highest - value) <= value * bound);
+        }
+    }
+
+    @Test
+    public void extremesAndPercentiles() {
+        ToolMetrics.Histogram histogram = new ToolMetrics.Histogram();
+        ToolMetrics.HistogramSnapshot empty = histogram.snapshot();
+        assertEquals(0, empty.getMin());
+        assertEquals(0, empty.getMax());
+        assertEquals(0, empty.getPercentile(0.99));
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        ToolMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(1002, snapshot.getCount());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(Long.MAX_VALUE, snapshot.getMax());
+        assertEquals(Long.MAX_VALUE, snapshot.getPercentile(1.0));
+        assertEquals(0, snapshot.getPercentile(0.0));
+        double bound = 2.0 / ToolMetrics.Histogram.SUB_BUCKETS;
+        for (double quantile : new double[]{0.1, 0.5, 0.9, 0.99}) {
+            long exact = (long) Math.ceil(quantile * 1002 - 1) * 1000;
+            long reported = snapshot.getPercentile(quantile);
+            assertTrue(quantile + ": " + reported + " vs " + exact, reported >= exact && reported - exact <= exact * bound);
+        }
+    }
+
+    @Test
+    public void exportFormat() {
+        String tool = "com.example.Tool";
+        metrics.recordLaunch(tool, 2000, 500, 0, 10);
+        metrics.recordLaunch(tool, 4000, -1, DebuggableTool.EXIT_TIMEOUT, 5);
+        metrics.recordLaunch(tool, 3000, 700, 42, 0);
+        metrics.recordLaunch(tool, 1000, 100, null, 1);
+        metrics.recordLaunchError(tool);
+        metrics.recordSuDenied(tool);
+        metrics.recordSuDenied("com.example.Denied");
+        assertEquals("com.example.Denied.launches 0\n"
+                + "com.example.Denied.launch_errors 0\n"
+                + "com.example.Denied.failures 0\n"
+                + "com.example.Denied.su_denied 1\n"
+                + "com.example.Denied.output_bytes 0\n"
+                + "com.example.Denied.launch_latency_ns.count 0\n"
+                + "com.example.Denied.first_output_ns.count 0\n"
+                + "com.example.Tool.launches 5\n"
+                + "com.example.Tool.launch_errors 1\n"
+                + "com.example.Tool.failures 2\n"
+                + "com.example.Tool.su_denied 1\n"
+                + "com.example.Tool.output_bytes 16\n"
+                + "com.example.Tool.exit.ok 1\n"
+                + "com.example.Tool.exit.timeout 1\n"
+                + "com.example.Tool.exit.42 1\n"
+                + "com.example.Tool.launch_latency_ns.count 4\n"
+                + "com.example.Tool.launch_latency_ns.min 1000\n"
+                + "com.example.Tool.launch_latency_ns.mean 2500\n"
+                + "com.example.Tool.launch_latency_ns.p50 2047\n"
+                + "com.example.Tool.launch_latency_ns.p90 4000\n"
+                + "com.example.Tool.launch_latency_ns.p99 4000\n"
+                + "com.example.Tool.launch_latency_ns.max 4000\n"
+                + "com.example.Tool.first_output_ns.count 3\n"
+                + "com.example.Tool.first_output_ns.min 100\n"
+                + "com.example.Tool.first_output_ns.mean 433\n"
+                + "com.example.Tool.first_output_ns.p50 511\n"
+                + "com.example.Tool.first_output_ns.p90 700\n"
+                + "com.example.Tool.first_output_ns.p99 700\n"
+                + "com.example.Tool.first_output_ns.max 700\n", metrics.export());
+        metrics.reset();
+        assertEquals("", metrics.export());
+    }
+}
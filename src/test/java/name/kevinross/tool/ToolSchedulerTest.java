@@ -0,0 +1,249 @@
+package name.kevinross.tool;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ToolSchedulerTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final List<String> granted = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Thread> threads = new ArrayList<>();
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.interrupt();
+            thread.join(TIMEOUT_MILLIS);
+        }
+    }
+
+    @Test
+    public void globalLimit() throws Exception {
+        ToolScheduler scheduler = new ToolScheduler(2);
+        ToolScheduler.Permit first = scheduler.acquire("c", "A", ToolScheduler.Priority.NORMAL);
+        scheduler.acquire("c", "B", ToolScheduler.Priority.NORMAL);
+        assertEquals(2, scheduler.getRunning());
+        CountDownLatch third = acquireInBackground(scheduler, "c", "C", ToolScheduler.Priority.NORMAL, "C", false);
+        awaitQueueDepth(scheduler, 1);
+        assertFalse(third.await(50, TimeUnit.MILLISECONDS));
+        first.release();
+        assertTrue(third.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(2, scheduler.getRunning());
+        // a second release of the same permit doesn't free another slot
+        first.release();
+        assertEquals(2, scheduler.getRunning());
+    }
+
+    @Test
+    public void classLimitLetsOtherToolsPass() throws Exception {
+        ToolScheduler scheduler = new ToolScheduler(4).setClassLimit("A", 1);
+        ToolScheduler.Permit a = scheduler.acquire("c", "A", ToolScheduler.Priority.NORMAL);
+        CountDownLatch secondA = acquireInBackground(scheduler, "c", "A", ToolScheduler.Priority.NORMAL, "A2", false);
+        awaitQueueDepth(scheduler, 1);
+        // queued behind A in the same lane and caller, but its class has room
+        scheduler.acquire("c", "B", ToolScheduler.Priority.NORMAL);
+        assertFalse(secondA.await(50, TimeUnit.MILLISECONDS));
+        assertEquals(Integer.valueOf(1), scheduler.snapshot().getQueuedByTool().get("A"));
+        a.release();
+        assertTrue(secondA.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void higherLanesGoFirst() throws Exception {
+        ToolScheduler scheduler = new ToolScheduler(1);
+        ToolScheduler.Permit held = scheduler.acquire("c", "T", ToolScheduler.Priority.NORMAL);
+        queue(scheduler, "c", ToolScheduler.Priority.LOW, "low");
+        queue(scheduler, "c", ToolScheduler.Priority.NORMAL, "normal");
+        queue(scheduler, "c", ToolScheduler.Priority.HIGH, "high");
+        assertEquals(1, scheduler.getQueueDepth(ToolScheduler.Priority.HIGH));
+        held.release();
+        awaitGranted(3);
+        assertEquals(Arrays.asList("high", "normal", "low"), granted);
+    }
+
+    @Test
+    public void callersTakeTurns() throws Exception {
+        ToolScheduler scheduler = new ToolScheduler(1);
+        ToolScheduler.Permit held = scheduler.acquire("c", "T", ToolScheduler.Priority.NORMAL);
+        queue(scheduler, "x", ToolScheduler.Priority.NORMAL, "x1");
+        queue(scheduler, "x", ToolScheduler.Priority.NORMAL, "x2");
+        queue(scheduler, "x", ToolScheduler.Priority.NORMAL, "x3");
+        queue(scheduler, "y", ToolScheduler.Priority.NORMAL, "y1");
+        queue(scheduler, "y", ToolScheduler.Priority.NORMAL, "y2");
+        held.release();
+        awaitGranted(5);
+        assertEquals(Arrays.asList("x1", "y1", "x2", "y2", "x3"), granted);
+        assertEquals(5 + 1, scheduler.snapshot().getGranted());
+        assertEquals(5, scheduler.snapshot().getMaxQueued());
+    }
+
+    @Test
+    public void interruptedWhileQueued() throws Exception {
+        ToolScheduler scheduler = new ToolScheduler(1);
+        ToolScheduler.Permit held = scheduler.acquire("c", "T", ToolScheduler.Priority.NORMAL);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Thread waiter = start(new Interruptible(scheduler, interrupted));
+        awaitQueueDepth(scheduler, 1);
+        waiter.interrupt();
+        assertTrue(interrupted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(0, scheduler.snapshot().getQueuedByTool().size());
+        held.release();
+        assertEquals(0, scheduler.getRunning());
+    }
+
+    @Test
+    public void interruptedAfterBeingGranted() throws Exception {
+        final ToolScheduler scheduler = new ToolScheduler(1);
+        ToolScheduler.Permit held = scheduler.acquire("c", "T", ToolScheduler.Priority.NORMAL);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Interruptible waiting = new Interruptible(scheduler, interrupted);
+        Thread waiter = start(waiting);
+        awaitQueueDepth(scheduler, 1);
+        synchronized (scheduler) {
+            // the waiter can only wake up once this block is left: interrupted and granted at once
+            waiter.interrupt();
+            held.release();
+            assertEquals(1, scheduler.getRunning());
+        }
+        waiter.join(TIMEOUT_MILLIS);
+        assertFalse(waiter.isAlive());
+        if (waiting.permit != null) {
+            // returned normally with the interrupt pending, also allowed
+            assertTrue(waiting.stillInterrupted);
+            waiting.permit.release();
+        }
+        // either way nothing leaks
+        assertEquals(0, scheduler.getRunning());
+        assertEquals(0, scheduler.getQueueDepth());
+        scheduler.acquire("c", "T", ToolScheduler.Priority.NORMAL).release();
+    }
+
+    @Test
+    public void raisingTheLimitDispatches() throws Exception {
+        ToolScheduler scheduler = new ToolScheduler(1);
+        scheduler.acquire("c", "T", ToolScheduler.Priority.NORMAL);
+        CountDownLatch second = acquireInBackground(scheduler, "c", "T", ToolScheduler.Priority.NORMAL, "second", false);
+        awaitQueueDepth(scheduler, 1);
+        scheduler.setGlobalLimit(2);
+        assertTrue(second.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void rejectsBadLimits() {
+        try {
+            new ToolScheduler(0);
+            fail("global limit 0 accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new ToolScheduler(1).setClassLimit("A", -1);
+            fail("negative class limit accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void exportsState() throws Exception {
+        ToolScheduler scheduler = new ToolScheduler(2);
+        scheduler.acquire("c", "A", ToolScheduler.Priority.NORMAL);
+        String export = scheduler.export();
+        assertTrue(export, export.contains("scheduler.running 1\n"));
+        assertTrue(export, export.contains("scheduler.running.A 1\n"));
+        assertTrue(export, export.contains("scheduler.wait_ns.count 1\n"));
+    }
+
+    /**
+     * Queue a launch that records itself and gives its permit straight back once granted, and
+     * wait until it's in the queue so arrival order is known
+     */
+    private void queue(ToolScheduler scheduler, String caller, ToolScheduler.Priority priority, String name) throws InterruptedException {
+        int depth = scheduler.getQueueDepth();
+        acquireInBackground(scheduler, caller, "T", priority, name, true);
+        awaitQueueDepth(scheduler, depth + 1);
+    }
+
+    private CountDownLatch acquireInBackground(final ToolScheduler scheduler, final String caller, final String tool,
+                                               final ToolScheduler.Priority priority, final String name, final boolean release) {
+        final CountDownLatch done = new CountDownLatch(1);
+        start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ToolScheduler.Permit permit = scheduler.acquire(caller, tool, priority);
+                    granted.add(name);
+                    if (release) {
+                        permit.release();
+                    }
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    // test over
+                }
+            }
+        });
+        return done;
+    }
+
+    private Thread start(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        threads.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitQueueDepth(ToolScheduler scheduler, int depth) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (scheduler.getQueueDepth() != depth) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("queue depth " + scheduler.getQueueDepth() + ", expected " + depth);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitGranted(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (granted.size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("granted " + granted);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static class Interruptible implements Runnable {
+        private final ToolScheduler scheduler;
+        private final CountDownLatch interrupted;
+        volatile ToolScheduler.Permit permit = null;
+        volatile boolean stillInterrupted = false;
+
+        Interruptible(ToolScheduler scheduler, CountDownLatch interrupted) {
+            this.scheduler = scheduler;
+            this.interrupted = interrupted;
+        }
+
+        @Override
+        public void run() {
+            try {
+                permit = scheduler.acquire("w", "T", ToolScheduler.Priority.NORMAL);
+                stillInterrupted = Thread.currentThread().isInterrupted();
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        }
+    }
+}
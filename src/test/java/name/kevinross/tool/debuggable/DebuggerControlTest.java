@@ -0,0 +1,79 @@
+package name.kevinross.tool.debuggable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import name.kevinross.tool.CancellationToken;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DebuggerControlTest {
+    private DebuggerControl.StubBackend backend;
+    private DebuggerControl control;
+
+    @Before
+    public void setUp() {
+        backend = DebuggerControl.stubBackend();
+        control = new DebuggerControl(backend);
+    }
+
+    @Test
+    public void startAndStop() {
+        assertEquals("ok stopped", control.handle("status"));
+        assertEquals("ok started", control.handle("start"));
+        assertEquals("ok already running", control.handle("start"));
+        assertEquals(1, backend.getStarts());
+        assertTrue(control.isRunning());
+        assertEquals("ok running", control.handle("status"));
+        backend.setAttached(true);
+        assertEquals("ok running attached", control.handle(" status "));
+        assertEquals("ok stopped", control.handle("stop"));
+        assertEquals("ok not running", control.handle("stop"));
+        assertEquals(1, backend.getStops());
+        assertFalse(control.isRunning());
+    }
+
+    @Test
+    public void alreadyRunning() {
+        control = new DebuggerControl(backend, true);
+        assertEquals("ok already running", control.handle("start"));
+        assertEquals(0, backend.getStarts());
+        assertEquals("ok stopped", control.handle("stop"));
+    }
+
+    @Test
+    public void failedStart() {
+        control = new DebuggerControl(new DebuggerControl.StubBackend() {
+            @Override
+            public synchronized boolean start() {
+                super.start();
+                return false;
+            }
+        });
+        assertEquals("error couldn't start jdwp", control.handle("start"));
+        assertFalse(control.isRunning());
+    }
+
+    @Test
+    public void cancel() {
+        assertEquals("error nothing to cancel", control.handle("cancel"));
+        CancellationToken token = new CancellationToken();
+        control.setCancellationToken(token);
+        assertEquals("ok cancelling", control.handle("cancel"));
+        assertTrue(token.isCancelled());
+        assertEquals("ok already cancelled", control.handle("cancel"));
+    }
+
+    @Test
+    public void missingArguments() {
+        assertEquals("error hprof needs a path", control.handle("hprof"));
+        assertEquals("error alloc-stop needs a path", control.handle("alloc-stop"));
+    }
+
+    @Test
+    public void unknownCommand() {
+        assertEquals("error unknown command frobnicate now", control.handle("frobnicate now"));
+    }
+}
@@ -0,0 +1,119 @@
+package name.kevinross.tool.debuggable;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class HeapDiagnosticsTest {
+    private static final int HEADER = 15;
+    private static final int ENTRY_HEADER = 9;
+    private static final int STACK_FRAME = 8;
+
+    @Test
+    public void talliesByClass() throws IOException {
+        byte[] chunk = chunk(new int[][]{{16, 0, 2}, {24, 1, 0}, {16, 0, 1}, {100, 1, 3}},
+                "Ljava/lang/String;", "[B");
+        HeapDiagnostics.AllocationSummary summary = HeapDiagnostics.parseRecentAllocations(chunk);
+        assertEquals(4, summary.getRecordCount());
+        assertEquals(-1, summary.getTotalBytes());
+        assertTallies(summary, "[B 124 2", "java.lang.String 32 2");
+    }
+
+    @Test
+    public void outOfRangeClassIndex() throws IOException {
+        byte[] chunk = chunk(new int[][]{{8, 0, 0}, {40, 7, 1}}, "Ljava/lang/Object;");
+        assertTallies(HeapDiagnostics.parseRecentAllocations(chunk), "? 40 1", "java.lang.Object 8 1");
+    }
+
+    @Test
+    public void truncatedChunks() throws IOException {
+        byte[] chunk = chunk(new int[][]{{16, 0, 0}, {24, 0, 2}, {32, 0, 0}}, "Ljava/lang/String;");
+        // every prefix parses, whatever it cuts through
+        for (int length = 0; length < chunk.length; length++) {
+            HeapDiagnostics.parseRecentAllocations(Arrays.copyOf(chunk, length));
+        }
+        // cut inside the string table: all entries are there, the names aren't
+        int strings = HEADER + 3 * ENTRY_HEADER + 2 * STACK_FRAME;
+        HeapDiagnostics.AllocationSummary summary = HeapDiagnostics.parseRecentAllocations(Arrays.copyOf(chunk, strings + 6));
+        assertEquals(3, summary.getRecordCount());
+        assertTallies(summary, "? 72 3");
+        // cut inside the second entry's stack: it's counted, the third entry isn't
+        summary = HeapDiagnostics.parseRecentAllocations(Arrays.copyOf(chunk, HEADER + 2 * ENTRY_HEADER + 4));
+        assertEquals(2, summary.getRecordCount());
+        // cut inside the first entry's header
+        summary = HeapDiagnostics.parseRecentAllocations(Arrays.copyOf(chunk, HEADER + 4));
+        assertEquals(0, summary.getRecordCount());
+    }
+
+    @Test
+    public void corruptHeader() throws IOException {
+        byte[] chunk = chunk(new int[][]{{16, 0, 0}}, "Ljava/lang/String;");
+        byte[] badOffset = chunk.clone();
+        badOffset[5] = (byte) 0x80;
+        assertTallies(HeapDiagnostics.parseRecentAllocations(badOffset), "? 16 1");
+        byte[] badLength = chunk.clone();
+        badLength[HEADER + ENTRY_HEADER] = (byte) 0x7f;
+        assertTallies(HeapDiagnostics.parseRecentAllocations(badLength), "? 16 1");
+        byte[] badEntryHeader = chunk.clone();
+        badEntryHeader[1] = 2;
+        assertEquals(0, HeapDiagnostics.parseRecentAllocations(badEntryHeader).getRecordCount());
+        byte[] moreEntries = chunk.clone();
+        moreEntries[4] = 50;
+        assertEquals(1, HeapDiagnostics.parseRecentAllocations(moreEntries).getRecordCount());
+    }
+
+    /**
+     * A REAL chunk: entries of {size, class index, stack depth}, then the class name table;
+     * the method and file name tables are left empty
+     */
+    private static byte[] chunk(int[][] entries, String... classNames) throws IOException {
+        int stringsOffset = HEADER;
+        for (int[] entry : entries) {
+            stringsOffset += ENTRY_HEADER + entry[2] * STACK_FRAME;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(HEADER);
+        out.writeByte(ENTRY_HEADER);
+        out.writeByte(STACK_FRAME);
+        out.writeShort(entries.length);
+        out.writeInt(stringsOffset);
+        out.writeShort(classNames.length);
+        out.writeShort(0);
+        out.writeShort(0);
+        for (int[] entry : entries) {
+            out.writeInt(entry[0]);
+            out.writeShort(1);
+            out.writeShort(entry[1]);
+            out.writeByte(entry[2]);
+            for (int frame = 0; frame < entry[2]; frame++) {
+                out.writeShort(0);
+                out.writeShort(0);
+                out.writeShort(0);
+                out.writeShort(frame);
+            }
+        }
+        for (String name : classNames) {
+            out.writeInt(name.length());
+            out.writeChars(name);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void assertTallies(HeapDiagnostics.AllocationSummary summary, String... expected) {
+        List<HeapDiagnostics.ClassAllocations> byClass = summary.getByClass();
+        String[] actual = new String[byClass.size()];
+        for (int i = 0; i < actual.length; i++) {
+            HeapDiagnostics.ClassAllocations allocations = byClass.get(i);
+            actual[i] = allocations.getName() + " " + allocations.getBytes() + " " + allocations.getCount();
+        }
+        assertEquals(Arrays.asList(expected), Arrays.asList(actual));
+    }
+}
@@ -0,0 +1,79 @@
+package name.kevinross.tool.debuggable;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LaunchOptionsTest {
+    @Test
+    public void rendersInStableOrder() {
+        LaunchOptions options = new LaunchOptions()
+                .setBackgroundGc("CMS")
+                .setGc("CC")
+                .setCompilerFilter("speed")
+                .setExecutionMode(LaunchOptions.ExecutionMode.JIT)
+                .setHeapGrowthLimit(256 * LaunchOptions.MB)
+                .setMaxHeap(512 * LaunchOptions.MB)
+                .setInitialHeap(1536 * LaunchOptions.KB)
+                .addOption("-Xcheck:jni");
+        assertEquals(Arrays.asList("-Xms1536k", "-Xmx512m", "-XX:HeapGrowthLimit=256m", "-Xusejit:true",
+                "-Xcompiler-option", "--compiler-filter=speed", "-Xgc:CC", "-XX:BackgroundGC=CMS", "-Xcheck:jni"),
+                options.toArguments());
+    }
+
+    @Test
+    public void setterOrderDoesNotMatter() {
+        // the initial heap is above the default max heap of 0 until the max heap is set
+        LaunchOptions options = new LaunchOptions().setInitialHeap(64 * LaunchOptions.MB).setMaxHeap(128 * LaunchOptions.MB);
+        assertEquals(Arrays.asList("-Xms64m", "-Xmx128m"), options.toArguments());
+        options = new LaunchOptions().setCompilerFilter("quicken").setExecutionMode(LaunchOptions.ExecutionMode.INTERPRET);
+        options.setCompilerFilter(null);
+        assertEquals(Arrays.asList("-Xint"), options.toArguments());
+    }
+
+    @Test
+    public void rejectedValueIsNotKept() {
+        LaunchOptions options = new LaunchOptions().setMaxHeap(128 * LaunchOptions.MB).setGc("CC");
+        try {
+            options.setMaxHeap(1000);
+            fail("size that isn't a multiple of 1KB accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            options.setGc("G1");
+            fail("unknown collector accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            options.addOption("--verbose");
+            fail("non-runtime option accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList("-Xmx128m", "-Xgc:CC"), options.toArguments());
+    }
+
+    @Test
+    public void combinationCheckedWhenRendered() {
+        LaunchOptions options = new LaunchOptions().setMaxHeap(64 * LaunchOptions.MB).setInitialHeap(128 * LaunchOptions.MB);
+        expectInvalid(options);
+        options.setMaxHeap(0);
+        assertEquals(Arrays.asList("-Xms128m"), options.toArguments());
+        expectInvalid(new LaunchOptions().setMaxHeap(64 * LaunchOptions.MB).setHeapGrowthLimit(128 * LaunchOptions.MB));
+        expectInvalid(new LaunchOptions().setExecutionMode(LaunchOptions.ExecutionMode.INTERPRET).setCompilerFilter("speed"));
+    }
+
+    private static void expectInvalid(LaunchOptions options) {
+        try {
+            options.toArguments();
+            fail("invalid combination rendered: " + options.validate());
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package name.kevinross.tool.debuggable;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Raw vs deflated tool output through a real pipe (cat standing in for the tool's stdout), read by
+ * a caller behind a link throttled to a few rates to stand in for su. Not a test; run its main()
+ * on a host with cat on the path:
+ *
+ * java -cp <test classes>:<classes> name.kevinross.tool.debuggable.OutputCompressionBenchmark [sizes MB...]
+ *
+ * Prints the best of a few runs for each size, rate and mode.
+ */
+public class OutputCompressionBenchmark {
+    private static final int[] RATES_MB_PER_SECOND = {0, 40, 10};
+    private static final int RUNS = 3;
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1, 8, 64};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int megabytes : sizes) {
+            byte[] data = packageList(megabytes << 20);
+            for (int rate : RATES_MB_PER_SECOND) {
+                if (rate > 0 && megabytes / rate > 2) {
+                    // raw would take more than a few seconds a run
+                    continue;
+                }
+                for (long threshold : new long[]{Long.MAX_VALUE, 0}) {
+                    long best = Long.MAX_VALUE;
+                    for (int run = 0; run < RUNS; run++) {
+                        best = Math.min(best, throughPipe(data, threshold, rate));
+                    }
+                    System.out.println(String.format("%3dMB %-9s %-7s %6dms", megabytes,
+                            rate == 0 ? "pipe" : rate + "MB/s", threshold == 0 ? "deflate" : "raw", best / 1000000));
+                }
+            }
+        }
+    }
+
+    /**
+     * Text shaped like pm list packages -f, about as compressible as typical tool output
+     */
+    private static byte[] packageList(int bytes) {
+        StringBuilder out = new StringBuilder(bytes + 100);
+        for (int i = 0; out.length() < bytes; i++) {
+            out.append("package:/data/app/com.example.app").append(i % 500).append("-1/base.apk=com.example.app")
+                    .append(i).append('\n');
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param threshold Encoder threshold, Long.MAX_VALUE for raw
+     * @param rate link speed in MB/s, 0 for the bare pipe
+     * @return nanoseconds until the caller read the last line
+     */
+    private static long throughPipe(final byte[] data, final long threshold, final int rate) throws Exception {
+        final Process cat = new ProcessBuilder("cat").start();
+        final long start = System.nanoTime();
+        Thread tool = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = new OutputCompression.Encoder(cat.getOutputStream(), threshold);
+                    for (int i = 0; i < data.length; i += CHUNK_BYTES) {
+                        out.write(data, i, Math.min(CHUNK_BYTES, data.length - i));
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, "benchmark-tool");
+        tool.start();
+        InputStream link = rate == 0 ? cat.getInputStream() : new Throttled(cat.getInputStream(), rate, start);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(OutputCompression.decode(link),
+                StandardCharsets.UTF_8));
+        while (reader.readLine() != null) {
+            // the caller's work per line is not what's measured
+        }
+        long elapsed = System.nanoTime() - start;
+        tool.join();
+        cat.waitFor();
+        return elapsed;
+    }
+
+    private static class Throttled extends FilterInputStream {
+        private final long bytesPerSecond;
+        private final long start;
+        private long total = 0;
+
+        Throttled(InputStream in, int megabytesPerSecond, long start) {
+            super(in);
+            this.bytesPerSecond = megabytesPerSecond * 1048576L;
+            this.start = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, Math.min(len, 16384));
+            if (n > 0) {
+                total += n;
+                long wait = start + total * 1000000000L / bytesPerSecond - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException(e);
+                    }
+                }
+            }
+            return n;
+        }
+    }
+}
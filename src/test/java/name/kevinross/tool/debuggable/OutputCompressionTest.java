@@ -0,0 +1,155 @@
+package name.kevinross.tool.debuggable;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutputCompressionTest {
+    private static final byte[] MARKER_LINE = (OutputCompression.MARKER + "\n").getBytes(StandardCharsets.UTF_8);
+    private static byte[] text;
+
+    @BeforeClass
+    public static void makeText() {
+        // tool output with report lines and a NUL line that is almost, but not, the marker
+        StringBuilder out = new StringBuilder();
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            if (i % 37 == 0) {
+                out.append(DebuggableTool.REPORT_MARKER).append("key ").append(i).append('\n');
+            } else if (i % 53 == 0) {
+                out.append("\u0000defl\n");
+            } else if (i % 71 == 0) {
+                out.append('\u0000').append('\n');
+            } else {
+                out.append("line ").append(i).append(' ').append(random.nextInt()).append('\n');
+            }
+        }
+        text = out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void roundTrips() throws IOException {
+        for (long threshold : new long[]{0, 1, 100, 5000, text.length - 1, Long.MAX_VALUE}) {
+            for (int chunk : new int[]{1, 7, 4096, text.length}) {
+                for (boolean close : new boolean[]{true, false}) {
+                    byte[] encoded = encode(text, threshold, chunk, close);
+                    String what = "threshold " + threshold + " chunk " + chunk + " close " + close;
+                    assertArrayEquals(what + " bulk", text, decode(encoded, 777));
+                    assertArrayEquals(what + " single", text, decode(encoded, 0));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void passesThroughBelowThreshold() throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        OutputCompression.Encoder encoder = new OutputCompression.Encoder(target, text.length + 1);
+        encoder.write(text);
+        encoder.flush();
+        assertFalse(encoder.isCompressing());
+        assertArrayEquals(text, target.toByteArray());
+        // streams that never met an Encoder decode unchanged too
+        assertArrayEquals(text, decode(text, 4096));
+    }
+
+    @Test
+    public void markerGoesAtTheNextLineStart() throws IOException {
+        byte[] lines = "aaaa\nbbbb\ncccc\n".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        OutputCompression.Encoder encoder = new OutputCompression.Encoder(target, 7);
+        encoder.write(lines);
+        encoder.close();
+        assertTrue(encoder.isCompressing());
+        byte[] encoded = target.toByteArray();
+        // "aaaa\n" is 5 bytes, under the threshold; "bbbb\n" crosses it and stays raw
+        byte[] head = Arrays.copyOf(encoded, 10 + MARKER_LINE.length);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(lines, 0, 10);
+        expected.write(MARKER_LINE);
+        assertArrayEquals(expected.toByteArray(), head);
+        assertArrayEquals(lines, decode(encoded, 3));
+    }
+
+    @Test
+    public void nulLinesAfterTheThresholdSurvive() throws IOException {
+        // after the marker everything is deflated, including text that looks like another marker
+        String lines = "first\n" + DebuggableTool.REPORT_MARKER + "k v\n" + OutputCompression.MARKER + "\nlast\n";
+        byte[] bytes = lines.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = encode(bytes, 1, 1, true);
+        assertArrayEquals(bytes, decode(encoded, 0));
+        assertArrayEquals(bytes, decode(encoded, 5));
+    }
+
+    @Test
+    public void truncatedStreamDecodesWhatWasFlushed() throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        OutputCompression.Encoder encoder = new OutputCompression.Encoder(target, 100);
+        encoder.write(text, 0, text.length / 2);
+        encoder.flush();
+        int flushed = target.size();
+        encoder.write(text, text.length / 2, text.length - text.length / 2);
+        encoder.close();
+        byte[] encoded = target.toByteArray();
+        // killed before close: the sync-flushed half and maybe part of what followed arrived
+        assertArrayEquals(Arrays.copyOf(text, text.length / 2), decode(Arrays.copyOf(encoded, flushed), 0));
+        for (int cut = flushed; cut < encoded.length; cut += (encoded.length - flushed) / 7 + 1) {
+            byte[] decoded = decode(Arrays.copyOf(encoded, cut), 4096);
+            assertTrue(decoded.length >= text.length / 2);
+            assertArrayEquals(Arrays.copyOf(text, decoded.length), decoded);
+        }
+    }
+
+    @Test
+    public void compresses() throws IOException {
+        byte[] encoded = encode(text, 0, 4096, true);
+        assertTrue(encoded.length * 2 < text.length);
+    }
+
+    private static byte[] encode(byte[] bytes, long threshold, int chunk, boolean close) throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        OutputCompression.Encoder encoder = new OutputCompression.Encoder(target, threshold);
+        for (int i = 0; i < bytes.length; i += chunk) {
+            encoder.write(bytes, i, Math.min(chunk, bytes.length - i));
+        }
+        if (close) {
+            encoder.close();
+        } else {
+            encoder.flush();
+        }
+        return target.toByteArray();
+    }
+
+    /**
+     * @param readSize bytes per read(byte[]), 0 for read()
+     */
+    private static byte[] decode(byte[] encoded, int readSize) throws IOException {
+        InputStream in = OutputCompression.decode(new ByteArrayInputStream(encoded));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (readSize == 0) {
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+        } else {
+            byte[] buffer = new byte[readSize];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
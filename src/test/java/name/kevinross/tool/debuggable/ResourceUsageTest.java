@@ -0,0 +1,95 @@
+package name.kevinross.tool.debuggable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResourceUsageTest {
+    private File proc;
+
+    @Before
+    public void setUp() throws IOException {
+        proc = File.createTempFile("proc", null);
+        proc.delete();
+        proc.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(proc);
+    }
+
+    @Test
+    public void readsProcTree() throws IOException {
+        // comm with a space and a parenthesis, utime 150 stime 20 cutime 7 cstime 3 ticks
+        write("stat", "4242 (app (process) x) S 1 4242 0 0 -1 4194560 1200 0 0 0 150 20 7 3 20 0 12 0 5000 1000000 2000\n");
+        write("status", "Name:\tapp_process\nVmPeak:\t  200000 kB\nVmHWM:\t   81234 kB\nVmRSS:\t   80000 kB\n");
+        write("task/4242/status", "voluntary_ctxt_switches:\t10\nnonvoluntary_ctxt_switches:\t2\n");
+        write("task/4243/status", "voluntary_ctxt_switches:\t5\nnonvoluntary_ctxt_switches:\t1\n");
+        write("io", "rchar: 100\nwchar: 200\nread_bytes: 4096\nwrite_bytes: 8192\n");
+
+        ResourceUsage usage = ResourceUsage.read(proc);
+        assertEquals(1570, usage.getUserMillis());
+        assertEquals(230, usage.getSystemMillis());
+        assertEquals(1800, usage.getCpuMillis());
+        assertEquals(81234, usage.getPeakRssKb());
+        assertEquals(15, usage.getVoluntaryContextSwitches());
+        assertEquals(3, usage.getInvoluntaryContextSwitches());
+        assertEquals(4096, usage.getReadBytes());
+        assertEquals(8192, usage.getWriteBytes());
+    }
+
+    @Test
+    public void missingFilesAreUnknown() throws IOException {
+        // no io (not readable without the permission), no task dir
+        write("status", "Name:\tapp_process\n");
+        ResourceUsage usage = ResourceUsage.read(proc);
+        assertEquals(-1, usage.getUserMillis());
+        assertEquals(-1, usage.getCpuMillis());
+        assertEquals(-1, usage.getPeakRssKb());
+        assertEquals(-1, usage.getVoluntaryContextSwitches());
+        assertEquals(-1, usage.getReadBytes());
+    }
+
+    @Test
+    public void encodeRoundTrips() throws IOException {
+        write("stat", "1 (sh) R 0 1 1 0 -1 0 0 0 0 0 4 5 0 0 20 0 1 0 1 1 1\n");
+        write("status", "VmHWM:\t 512 kB\n");
+        ResourceUsage usage = ResourceUsage.decode(ResourceUsage.read(proc).encode());
+        assertEquals(40, usage.getUserMillis());
+        assertEquals(50, usage.getSystemMillis());
+        assertEquals(512, usage.getPeakRssKb());
+        assertEquals(-1, usage.getWriteBytes());
+        // newer senders may add names, older ones may lack some
+        usage = ResourceUsage.decode("user_ms=3 gpu_ms=9 sys_ms=x");
+        assertEquals(3, usage.getUserMillis());
+        assertEquals(-1, usage.getSystemMillis());
+    }
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(proc, path);
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
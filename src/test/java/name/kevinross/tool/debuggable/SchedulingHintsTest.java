@@ -0,0 +1,108 @@
+package name.kevinross.tool.debuggable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SchedulingHintsTest {
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("cpus", null);
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    @Test
+    public void groupsByMaxFrequency() throws IOException {
+        addCpu(0, "1800000");
+        addCpu(1, "1800000");
+        addCpu(2, "2400000");
+        addCpu(3, "2400000");
+        write("online", "0-3\n");
+        TreeMap<Long, List<Integer>> groups = SchedulingHints.getCoresByMaxFrequency(root);
+        assertEquals(Arrays.asList(0, 1), groups.firstEntry().getValue());
+        assertEquals(Arrays.asList(2, 3), groups.lastEntry().getValue());
+    }
+
+    @Test
+    public void skipsOfflineCpus() throws IOException {
+        addCpu(0, "1800000");
+        addCpu(1, "1800000");
+        addCpu(2, "2400000");
+        // hot-unplugged: no cpufreq, not in the online list
+        addCpu(3, null);
+        write("online", "0,2\n");
+        TreeMap<Long, List<Integer>> groups = SchedulingHints.getCoresByMaxFrequency(root);
+        assertEquals(2, groups.size());
+        assertEquals(Arrays.asList(0), groups.firstEntry().getValue());
+        assertEquals(Arrays.asList(2), groups.lastEntry().getValue());
+    }
+
+    @Test
+    public void skipsCpusWithoutFrequency() throws IOException {
+        addCpu(0, "1800000");
+        addCpu(1, null);
+        TreeMap<Long, List<Integer>> groups = SchedulingHints.getCoresByMaxFrequency(root);
+        assertEquals(1, groups.size());
+        assertEquals(Arrays.asList(0), groups.firstEntry().getValue());
+    }
+
+    @Test
+    public void noCpufreq() throws IOException {
+        addCpu(0, null);
+        addCpu(1, null);
+        assertTrue(SchedulingHints.getCoresByMaxFrequency(root).isEmpty());
+    }
+
+    @Test
+    public void commandPrefix() {
+        SchedulingHints hints = new SchedulingHints().setNice(10).setAffinity(0, 1, 2, 3);
+        assertEquals("nice -n 10 taskset f app_process", hints.wrap("app_process"));
+        assertEquals(Arrays.asList("nice", "-n", "10", "taskset", "f", "app_process"), hints.wrap(Arrays.asList("app_process")));
+    }
+
+    private void addCpu(int cpu, String maxFrequency) throws IOException {
+        File dir = new File(root, "cpu" + cpu);
+        dir.mkdirs();
+        if (maxFrequency != null) {
+            new File(dir, "cpufreq").mkdirs();
+            write("cpu" + cpu + "/cpufreq/cpuinfo_max_freq", maxFrequency + "\n");
+        }
+    }
+
+    private void write(String path, String content) throws IOException {
+        FileWriter writer = new FileWriter(new File(root, path));
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
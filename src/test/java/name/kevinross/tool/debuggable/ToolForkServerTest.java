@@ -0,0 +1,192 @@
+package name.kevinross.tool.debuggable;
+
+import android.app.ActivityThread;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import joptsimple.OptionSet;
+import name.kevinross.tool.AbstractTool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ToolForkServerTest {
+    private ToolForkServer server;
+
+    public static class EchoTool extends AbstractTool {
+        @Override
+        protected void run(OptionSet parser) {
+            StringBuilder line = new StringBuilder("echo");
+            for (String arg : getArgs()) {
+                line.append(' ').append(arg);
+            }
+            System.out.println(line);
+            DebuggableTool.report("answer", "42");
+            // the exit marker has to be found after a partial last line too
+            System.out.print("partial");
+        }
+    }
+
+    public static class ExitingTool extends AbstractTool {
+        @Override
+        protected void run(OptionSet parser) {
+            System.out.println("leaving");
+            DebuggableTool.exit(3);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        server = new ToolForkServer(new ToolForkServer.Bootstrap() {
+            @Override
+            public ActivityThread bootstrap() {
+                return null;
+            }
+        }, ToolForkServer.inProcessSpawner());
+        server.prepare(null, "");
+    }
+
+    @Test
+    public void readArgvDecodesTheHeader() throws IOException {
+        byte[] request = encodeRequest("--", EchoTool.class.getName(), "a b", "");
+        assertEquals(Arrays.asList("--", EchoTool.class.getName(), "a b", ""), ToolForkServer.readArgv(new ByteArrayInputStream(request)));
+    }
+
+    @Test
+    public void readArgvLeavesStdinAlone() throws IOException {
+        byte[] header = encodeRequest("--", EchoTool.class.getName());
+        byte[] request = Arrays.copyOf(header, header.length + 3);
+        request[header.length] = 'i';
+        ByteArrayInputStream in = new ByteArrayInputStream(request);
+        ToolForkServer.readArgv(in);
+        assertEquals(3, in.available());
+        assertEquals('i', in.read());
+    }
+
+    @Test
+    public void readArgvRejectsBadHeaders() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(Integer.MAX_VALUE);
+        assertRejected(bytes.toByteArray());
+
+        bytes.reset();
+        out.writeInt(-1);
+        assertRejected(bytes.toByteArray());
+
+        // promises two arguments, delivers one
+        bytes.reset();
+        out.writeInt(2);
+        out.writeUTF("--");
+        assertRejected(bytes.toByteArray());
+
+        // every argument within the format's limit, too many bytes together
+        char[] big = new char[ToolForkServer.MAX_ARGUMENT_BYTES];
+        Arrays.fill(big, 'x');
+        bytes.reset();
+        int count = ToolForkServer.MAX_HEADER_BYTES / big.length + 1;
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeUTF(new String(big));
+        }
+        assertRejected(bytes.toByteArray());
+    }
+
+    @Test
+    public void badHeaderIsAnsweredWithUsage() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        server.handle(new ToolForkServer.Request(new ByteArrayInputStream(new byte[]{0, 0}), out, null, null, null));
+        ToolResult result = DebuggableToolHelpers.readForkServerResponse(new ByteArrayInputStream(out.toByteArray()), System.nanoTime());
+        assertEquals(DebuggableTool.EXIT_USAGE, result.getExitCode());
+    }
+
+    @Test
+    public void headerIsReadByTheSpawner() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(encodeRequest("--", EchoTool.class.getName(), "lazy"));
+        server.handle(new ToolForkServer.Request(in, out, null, null, null));
+        ToolResult result = DebuggableToolHelpers.readForkServerResponse(new ByteArrayInputStream(out.toByteArray()), System.nanoTime());
+        assertEquals(0, result.getExitCode());
+        assertEquals("echo lazy", result.getOutput().get(0));
+    }
+
+    @Test
+    public void responseEndsWithExitCode() throws IOException {
+        ToolResult result = run("--", EchoTool.class.getName(), "one", "two");
+        assertEquals(0, result.getExitCode());
+        assertEquals(Arrays.asList("echo one two", "partial"), result.getOutput());
+        assertEquals("42", result.getReports().get("answer"));
+    }
+
+    @Test
+    public void exitFromToolIsReported() throws IOException {
+        ToolResult result = run("--", ExitingTool.class.getName());
+        assertEquals(3, result.getExitCode());
+        assertEquals(Arrays.asList("leaving"), result.getOutput());
+    }
+
+    @Test
+    public void missingToolClassIsReported() throws IOException {
+        ToolResult result = run("--", "name.kevinross.tool.NoSuchTool");
+        assertEquals(DebuggableTool.EXIT_CLASS_NOT_FOUND, result.getExitCode());
+    }
+
+    @Test
+    public void responseWithoutExitMarker() throws IOException {
+        ToolResult result = DebuggableToolHelpers.readForkServerResponse(new ByteArrayInputStream("died\n".getBytes("UTF-8")), System.nanoTime());
+        assertEquals(-1, result.getExitCode());
+        assertEquals(Arrays.asList("died"), result.getOutput());
+    }
+
+    @Test
+    public void outputAfterExitMarkerIsIgnored() throws IOException {
+        String response = "line\n" + ToolForkServer.EXIT_MARKER + "5\nstray\n";
+        ToolResult result = DebuggableToolHelpers.readForkServerResponse(new ByteArrayInputStream(response.getBytes("UTF-8")), System.nanoTime());
+        assertEquals(5, result.getExitCode());
+        assertEquals(Arrays.asList("line"), result.getOutput());
+        assertTrue(result.getOutputBytes() > 0);
+    }
+
+    @Test
+    public void coldRelayDropsCompression() {
+        List<String> request = Arrays.asList("-b", "65536", "-z", "1048576", "-U", "--", EchoTool.class.getName(), "-z", "5");
+        assertEquals(Arrays.asList("-b", "65536", "-U", "--", EchoTool.class.getName(), "-z", "5"), ToolForkServer.withoutCompression(request));
+    }
+
+    private ToolResult run(String... argv) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(encodeRequest(argv));
+        List<String> decoded = ToolForkServer.readArgv(in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        server.handle(new ToolForkServer.Request(decoded, in, out, null, null));
+        return DebuggableToolHelpers.readForkServerResponse(new ByteArrayInputStream(out.toByteArray()), start);
+    }
+
+    private static void assertRejected(byte[] header) {
+        try {
+            fail("decoded " + ToolForkServer.readArgv(new ByteArrayInputStream(header)));
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] encodeRequest(String... argv) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(argv.length);
+        for (String arg : argv) {
+            out.writeUTF(arg);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
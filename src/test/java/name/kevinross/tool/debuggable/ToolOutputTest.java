@@ -0,0 +1,171 @@
+package name.kevinross.tool.debuggable;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ToolOutputTest {
+
+    @Test
+    public void fullHoldsUntilBufferFills() throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        ToolOutput output = new ToolOutput(target, 8, ToolOutput.FlushPolicy.FULL, 0, false);
+        output.write(bytes("1234567"));
+        assertEquals(0, target.size());
+        output.write(bytes("89"));
+        assertEquals("12345678", target.toString("UTF-8"));
+        output.flush();
+        assertEquals("123456789", target.toString("UTF-8"));
+    }
+
+    @Test
+    public void asyncKeepsOrder() throws IOException {
+        SlowOutput target = new SlowOutput();
+        ToolOutput output = new ToolOutput(target, 16, ToolOutput.FlushPolicy.FULL, 0, true);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 500; i++) {
+            byte[] line = bytes("line " + i + "\n");
+            output.write(line);
+            expected.write(line);
+            if (i % 37 == 0) {
+                output.write('!');
+                expected.write('!');
+            }
+        }
+        output.flush();
+        assertArrayEquals(expected.toByteArray(), target.toByteArray());
+    }
+
+    @Test
+    public void asyncKeepsEachWritersOrderUnderTheFlusher() throws Exception {
+        SlowOutput target = new SlowOutput();
+        // interval flushes race the writers' own drains for the queue
+        final ToolOutput output = new ToolOutput(target, 32, ToolOutput.FlushPolicy.INTERVAL, 1, true);
+        final int writers = 4;
+        final int lines = 300;
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < lines; i++) {
+                            output.write(bytes(writer + ":" + i + "\n"));
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        output.flush();
+
+        int[] next = new int[writers];
+        for (String line : target.toString("UTF-8").split("\n")) {
+            String[] parts = line.split(":");
+            int writer = Integer.parseInt(parts[0]);
+            assertEquals(line, next[writer]++, Integer.parseInt(parts[1]));
+        }
+        for (int w = 0; w < writers; w++) {
+            assertEquals(lines, next[w]);
+        }
+    }
+
+    @Test
+    public void intervalFlushesWithoutBeingAsked() throws Exception {
+        SlowOutput target = new SlowOutput();
+        ToolOutput output = new ToolOutput(target, 1024, ToolOutput.FlushPolicy.INTERVAL, 10, false);
+        output.write(bytes("progress\n"));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (target.size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals("progress\n", target.toString("UTF-8"));
+        output.close();
+        assertTrue(target.closed);
+    }
+
+    @Test
+    public void asyncWriteFailureSurfaces() throws Exception {
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("EPIPE");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("EPIPE");
+            }
+        };
+        ToolOutput output = new ToolOutput(broken, 4, ToolOutput.FlushPolicy.FULL, 0, true);
+        output.write(bytes("12345"));
+        try {
+            output.flush();
+            fail("flush should report the writer's failure");
+        } catch (IOException e) {
+            assertEquals("EPIPE", e.getMessage());
+        }
+        try {
+            output.write('x');
+            fail("writes after a failure should fail");
+        } catch (IOException e) {
+            assertEquals("EPIPE", e.getMessage());
+        }
+    }
+
+    @Test
+    public void parsesPolicies() {
+        assertEquals(ToolOutput.FlushPolicy.LINE, ToolOutput.parsePolicy("line"));
+        assertEquals(ToolOutput.FlushPolicy.FULL, ToolOutput.parsePolicy("full"));
+        assertEquals(ToolOutput.FlushPolicy.INTERVAL, ToolOutput.parsePolicy("250"));
+        try {
+            ToolOutput.parsePolicy("0");
+            fail("zero interval accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A pipe whose reader is a little slow, so the async writer falls behind
+     */
+    private static class SlowOutput extends ByteArrayOutputStream {
+        volatile boolean closed = false;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            try {
+                Thread.sleep(0, 200000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
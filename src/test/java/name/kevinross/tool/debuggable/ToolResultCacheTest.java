@@ -0,0 +1,163 @@
+package name.kevinross.tool.debuggable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ToolResultCacheTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("toolcache", null);
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ToolResultCache cache = new ToolResultCache(2, 1024 * 1024);
+        cache.put("a", result(0, "a"));
+        cache.put("b", result(0, "b"));
+        // touch a so b is the eldest
+        assertNotNull(cache.get("a"));
+        cache.put("c", result(0, "c"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("b"));
+        assertEquals(Arrays.asList("a"), cache.get("a").getOutput());
+        assertEquals(Arrays.asList("c"), cache.get("c").getOutput());
+    }
+
+    @Test
+    public void evictsPastByteLimit() {
+        ToolResultCache cache = new ToolResultCache(100, 2000);
+        char[] line = new char[300];
+        Arrays.fill(line, 'x');
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, result(0, new String(line)));
+        }
+        assertTrue(cache.getBytes() <= 2000);
+        assertNotNull(cache.get("k9"));
+        assertNull(cache.get("k0"));
+    }
+
+    @Test
+    public void storesOnlySuccessfulRuns() {
+        ToolResultCache cache = new ToolResultCache(10, 1024 * 1024);
+        cache.put("failed", result(1, "Exception in thread main"));
+        cache.put("shell", result(-1, "permission denied"));
+        assertNull(cache.get("failed"));
+        assertNull(cache.get("shell"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void shellRunsWhenAllowed() throws InterruptedException {
+        ToolResultCache cache = new ToolResultCache(10, 1024 * 1024).setShellRunMaxAge(50);
+        cache.put("shell", result(-1, "out"));
+        assertNotNull(cache.get("shell"));
+        Thread.sleep(80);
+        assertNull(cache.get("shell"));
+    }
+
+    @Test
+    public void expiresAfterMaxAge() throws InterruptedException {
+        ToolResultCache cache = new ToolResultCache(10, 1024 * 1024).setMaxAge(50);
+        cache.put("k", result(0, "out"));
+        assertNotNull(cache.get("k"));
+        Thread.sleep(80);
+        assertNull(cache.get("k"));
+    }
+
+    @Test
+    public void keyFollowsInputs() throws IOException {
+        File input = new File(dir, "input");
+        String missing = ToolResultCache.keyFor("Tool", "sh 0", new String[]{"-a"}, input);
+        write(input, "one");
+        String first = ToolResultCache.keyFor("Tool", "sh 0", new String[]{"-a"}, input);
+        assertNotEquals(missing, first);
+        write(input, "longer");
+        assertNotEquals(first, ToolResultCache.keyFor("Tool", "sh 0", new String[]{"-a"}, input));
+        assertNotEquals(ToolResultCache.keyFor("Tool", "sh 0", new String[]{"a b"}),
+                ToolResultCache.keyFor("Tool", "sh 0", new String[]{"a", "b"}));
+    }
+
+    @Test
+    public void diskRoundTrip() {
+        ToolResultCache cache = new ToolResultCache(10, 1024 * 1024).setDiskTier(dir, 1024 * 1024);
+        ToolResult stored = new ToolResult(new ArrayList<>(Arrays.asList("line one", "", "l\u00efne three")), 0, 10, 5, 30,
+                Collections.singletonMap(ResourceUsage.REPORT_KEY, "user_ms=10"));
+        cache.put("key\nwith newline", stored);
+
+        // a new process: nothing in memory, everything on disk
+        ToolResultCache reopened = new ToolResultCache(10, 1024 * 1024).setDiskTier(dir, 1024 * 1024);
+        ToolResult loaded = reopened.get("key\nwith newline");
+        assertNotNull(loaded);
+        assertEquals(stored.getOutput(), loaded.getOutput());
+        assertEquals(0, loaded.getExitCode());
+        assertEquals("user_ms=10", loaded.getReport(ResourceUsage.REPORT_KEY));
+        assertEquals(1, reopened.getDiskHits());
+        // served from memory from then on
+        assertNotNull(reopened.get("key\nwith newline"));
+        assertEquals(1, reopened.getHits());
+        assertNull(reopened.get("other"));
+        assertEquals(1, reopened.getMisses());
+    }
+
+    @Test
+    public void diskTierIsTrimmed() {
+        ToolResultCache cache = new ToolResultCache(100, 1024 * 1024).setDiskTier(dir, 600);
+        char[] line = new char[200];
+        Arrays.fill(line, 'y');
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, result(0, new String(line)));
+        }
+        long total = 0;
+        for (File file : dir.listFiles()) {
+            total += file.length();
+        }
+        assertTrue(total <= 600);
+        cache.clear();
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    private static ToolResult result(int exitCode, String... lines) {
+        List<String> output = new ArrayList<>(Arrays.asList(lines));
+        return new ToolResult(output, exitCode, 0, -1, 0);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}